@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BSONEncoder;
+import org.bson.BasicBSONEncoder;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+
+/**
+ * Keeps documents as BSON in memory. Documents are encoded on save and
+ * decoded on find, like the driver does, so that benchmarks include the
+ * cost of the BSON round trip but no I/O.
+ * <p>
+ * The cursors need a {@link DBCollection}. It is taken from a
+ * {@link MongoClient} which is never used to send a request.
+ */
+final class InMemoryMongoDBConnection implements MongoDBConnection {
+
+	private final MongoClient mongoClient;
+	private final DBCollection dbCollection;
+	private final BSONEncoder encoder = new BasicBSONEncoder();
+	private final Map<Object, byte[]> documents = new HashMap<>();
+
+	@SuppressWarnings("deprecation") // DBCollection is only available via getDB
+	InMemoryMongoDBConnection() {
+		Logger.getLogger("org.mongodb.driver").setLevel(Level.OFF);
+		mongoClient = new MongoClient();
+		dbCollection = mongoClient.getDB("benchmark").getCollection("records");
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject) {
+		return new InMemoryDBCursor(documents.get(dbObject.get(
+				MongoDBKeys.RECORD_ID_KEY)));
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject, final DBObject projection) {
+		return find(dbObject);
+	}
+
+	@Override
+	public Cursor aggregate(final List<DBObject> pipeline,
+			final AggregationOptions options) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void createIndex(final DBObject keys) {
+		// documents are only looked up by id
+	}
+
+	@Override
+	public void save(final DBObject dbObject) {
+		documents.put(dbObject.get(MongoDBKeys.RECORD_ID_KEY), encode(dbObject));
+	}
+
+	@Override
+	public void saveAll(final List<DBObject> dbObjects) {
+		for (final DBObject dbObject : dbObjects) {
+			save(dbObject);
+		}
+	}
+
+	@Override
+	public void close() {
+		mongoClient.close();
+	}
+
+	private byte[] encode(final DBObject dbObject) {
+		if (dbObject instanceof RawDBObject) {
+			return ((RawDBObject) dbObject).toRawBsonDocument().getByteBuffer()
+					.array();
+		}
+		return encoder.encode(dbObject);
+	}
+
+	/**
+	 * Returns a single document which is decoded with the decoder set on the
+	 * cursor.
+	 */
+	private final class InMemoryDBCursor extends DBCursor {
+
+		private byte[] document;
+		private DBDecoder decoder = DefaultDBDecoder.FACTORY.create();
+
+		InMemoryDBCursor(final byte[] document) {
+			super(dbCollection, null, null, ReadPreference.primary());
+			this.document = document;
+		}
+
+		@Override
+		public DBCursor setDecoderFactory(final DBDecoderFactory factory) {
+			decoder = factory.create();
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return document != null;
+		}
+
+		@Override
+		public DBObject next() {
+			final DBObject dbObject = decoder.decode(document, dbCollection);
+			document = null;
+			return dbObject;
+		}
+
+		@Override
+		public void close() {
+			document = null;
+		}
+
+	}
+
+}
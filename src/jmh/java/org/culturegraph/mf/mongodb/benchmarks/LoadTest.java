@@ -0,0 +1,392 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.culturegraph.mf.framework.helpers.DefaultStreamReceiver;
+import org.culturegraph.mf.mongodb.MongoDBReader;
+import org.culturegraph.mf.mongodb.MongoDBScanner;
+import org.culturegraph.mf.mongodb.MongoDBWriter;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBConnections;
+import org.culturegraph.mf.mongodb.common.OperationStatsMXBean;
+
+import com.mongodb.MongoClientURI;
+
+/**
+ * Measures whole {@code to-mongodb} and {@code from-mongodb} pipelines
+ * against a MongoDB server: synthetic records are written with
+ * {@link MongoDBWriter}, read back by id with {@link MongoDBReader} and
+ * read again with {@link MongoDBScanner}. For each phase the report lists
+ * records per second, the latency percentiles of the database operations,
+ * the peak heap usage and the garbage collection time.
+ * <p>
+ * Without a {@code uri} argument, the test starts a {@link StandInServer}
+ * in a separate process, so that it runs on machines without a MongoDB
+ * installation. Its numbers are only comparable with other runs against
+ * the stand-in; use a local {@code mongod} for numbers which carry over to
+ * production. The stand-in cannot split a collection for
+ * {@link MongoDBScanner}, so the scan uses a single partition and a cursor
+ * batch size of 100 unless given otherwise. A given
+ * collection should be a scratch collection as the test writes into it.
+ * <p>
+ * Arguments are given as {@code name=value} pairs:
+ * <ul>
+ * <li>{@code uri} — MongoDB URI including database and collection
+ * (default: stand-in server)</li>
+ * <li>{@code standinheap} — maximum heap of the stand-in server
+ * (default: 2g)</li>
+ * <li>{@code records} — number of records (default: 10000)</li>
+ * <li>{@code shape} — {@link RecordShape} of the records (default: WIDE)</li>
+ * <li>{@code phases} — comma-separated phases out of {@code write},
+ * {@code read} and {@code scan} (default: all)</li>
+ * <li>{@code report} — file to which the report is written in addition to
+ * stdout</li>
+ * <li>all other names are options of the modules as in Flux, prefixed with
+ * {@code writer.}, {@code reader.} or {@code scanner.}, e.g.
+ * {@code writer.batchsize=1000}</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+	private static final int VARIANTS = 64;
+	private static final String[] OPERATIONS = { "save", "saveAll", "find",
+			"aggregate", "cursor" };
+
+	private final Map<String, String> arguments;
+	private final String uri;
+	private final int recordCount;
+	private final RecordShape shape;
+	private final List<String> report = new ArrayList<>();
+
+	private LoadTest(final Map<String, String> arguments, final String uri) {
+		this.arguments = arguments;
+		this.uri = uri;
+		recordCount = Integer.parseInt(argument("records", "10000"));
+		shape = RecordShape.valueOf(argument("shape", "WIDE").toUpperCase());
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> arguments = new LinkedHashMap<>();
+		for (final String arg : args) {
+			final int separator = arg.indexOf('=');
+			if (separator < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			arguments.put(arg.substring(0, separator).toLowerCase(),
+					arg.substring(separator + 1));
+		}
+		final String uri = arguments.get("uri");
+		if (uri != null) {
+			new LoadTest(arguments, uri).run();
+			return;
+		}
+		// The stand-in does not support $sample, which the scanner needs
+		// to split the collection, and does not limit the size of cursor
+		// batches by itself:
+		arguments.putIfAbsent("scanner.partitions", "1");
+		arguments.putIfAbsent("scanner.cursorbatchsize", "100");
+		try (StandInServer server = StandInServer.start(arguments
+				.getOrDefault("standinheap", "2g"))) {
+			new LoadTest(arguments, "mongodb://127.0.0.1:" + server.getPort()
+					+ "/loadtest.records").run();
+		}
+	}
+
+	private void run() throws Exception {
+		final String phases = argument("phases", "write,read,scan");
+		report.add(String.format("records: %d, shape: %s, server: %s",
+				Integer.valueOf(recordCount), shape,
+				arguments.containsKey("uri") ? server() : "in-memory stand-in"));
+		final Map<String, String> options = new TreeMap<>(arguments);
+		options.remove("uri");
+		report.add("arguments: " + options);
+		report.add(String.format("%-6s %9s %8s %10s %-9s %8s %10s %10s %10s",
+				"phase", "records", "seconds", "records/s", "operation", "calls",
+				"p50 us", "p99 us", "mean us"));
+		if (phases.contains("write")) {
+			write();
+		}
+		if (phases.contains("read")) {
+			read();
+		}
+		if (phases.contains("scan")) {
+			scan();
+		}
+		final StringWriter text = new StringWriter();
+		final PrintWriter printWriter = new PrintWriter(text);
+		for (final String line : report) {
+			printWriter.println(line);
+		}
+		printWriter.flush();
+		System.out.print(text);
+		final String reportFile = arguments.get("report");
+		if (reportFile != null) {
+			Files.write(Paths.get(reportFile),
+					text.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private void write() throws Exception {
+		final List<SyntheticRecord> variants = new ArrayList<>();
+		for (int i = 0; i < VARIANTS; ++i) {
+			variants.add(SyntheticRecord.create(shape, "", i));
+		}
+		final Phase phase = new Phase("write");
+		final MongoDBConnection connection = phase.openConnection();
+		final MongoDBWriter mongoDBWriter = new MongoDBWriter(
+				MongoDBConnections.unclosableConnection(connection));
+		configure(mongoDBWriter, "writer.");
+		for (int i = 0; i < recordCount; ++i) {
+			variants.get(i % VARIANTS).replay(mongoDBWriter, recordId(i));
+		}
+		mongoDBWriter.closeStream();
+		phase.finish(recordCount, connection);
+	}
+
+	private void read() throws Exception {
+		final List<String> ids = new ArrayList<>(recordCount);
+		for (int i = 0; i < recordCount; ++i) {
+			ids.add(recordId(i));
+		}
+		Collections.shuffle(ids, new Random(42));
+		final Phase phase = new Phase("read");
+		final MongoDBConnection connection = phase.openConnection();
+		final MongoDBReader mongoDBReader = new MongoDBReader(
+				MongoDBConnections.unclosableConnection(connection));
+		configure(mongoDBReader, "reader.");
+		final RecordCounter counter = mongoDBReader.setReceiver(
+				new RecordCounter());
+		for (final String id : ids) {
+			mongoDBReader.process(id);
+		}
+		mongoDBReader.closeStream();
+		phase.finish(counter.records, connection);
+	}
+
+	private void scan() throws Exception {
+		final Phase phase = new Phase("scan");
+		final MongoDBConnection connection = phase.openConnection();
+		final MongoDBScanner mongoDBScanner = new MongoDBScanner(
+				MongoDBConnections.unclosableConnection(connection));
+		configure(mongoDBScanner, "scanner.");
+		final RecordCounter counter = mongoDBScanner.setReceiver(
+				new RecordCounter());
+		mongoDBScanner.process("");
+		mongoDBScanner.closeStream();
+		phase.finish(counter.records, connection);
+	}
+
+	/**
+	 * Describes the server without the credentials of the URI.
+	 */
+	private String server() {
+		final MongoClientURI mongoClientURI = new MongoClientURI(uri);
+		return mongoClientURI.getHosts() + "/" + mongoClientURI.getDatabase()
+				+ "." + mongoClientURI.getCollection();
+	}
+
+	private static String recordId(final int index) {
+		return String.format("%09d", Integer.valueOf(index));
+	}
+
+	private String argument(final String name, final String defaultValue) {
+		final String value = arguments.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Sets the options with the given prefix through the setters of the
+	 * module like Flux does: the option name is the lower case setter name,
+	 * enum values are upper-cased.
+	 */
+	private void configure(final Object module, final String prefix)
+			throws Exception {
+		for (final Map.Entry<String, String> entry : arguments.entrySet()) {
+			if (!entry.getKey().startsWith(prefix)) {
+				continue;
+			}
+			final String setterName = "set" + entry.getKey().substring(
+					prefix.length());
+			Method setter = null;
+			for (final Method method : module.getClass()
+					.getMethods()) {
+				if (method.getName().equalsIgnoreCase(setterName)
+						&& method.getParameterCount() == 1) {
+					setter = method;
+				}
+			}
+			if (setter == null) {
+				throw new IllegalArgumentException("Unknown option: "
+						+ entry.getKey());
+			}
+			setter.invoke(module, convert(setter.getParameterTypes()[0],
+					entry.getValue()));
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object convert(final Class<?> type, final String value) {
+		if (type == int.class) {
+			return Integer.valueOf(value);
+		}
+		if (type == boolean.class) {
+			return Boolean.valueOf(value);
+		}
+		if (type.isEnum()) {
+			return Enum.valueOf((Class<? extends Enum>) type, value.toUpperCase());
+		}
+		return value;
+	}
+
+	/**
+	 * Takes the measurements of one phase.
+	 */
+	private final class Phase {
+
+		private final String name;
+		private final long startGcMillis;
+		private final long startNanos;
+
+		Phase(final String name) {
+			this.name = name;
+			System.gc();
+			for (final MemoryPoolMXBean pool : ManagementFactory
+					.getMemoryPoolMXBeans()) {
+				pool.resetPeakUsage();
+			}
+			startGcMillis = gcMillis();
+			startNanos = System.nanoTime();
+		}
+
+		MongoDBConnection openConnection() throws IOException {
+			return MongoDBConnections.instrumentedConnection(
+					MongoDBConnections.sharedConnection(uri), "load-test-" + name, 0);
+		}
+
+		void finish(final long records, final MongoDBConnection connection)
+				throws MalformedObjectNameException {
+			final long nanos = System.nanoTime() - startNanos;
+			final double seconds = nanos / 1e9;
+			final String throughput = String.format("%-6s %9d %8.2f %10.0f",
+					name, Long.valueOf(records), Double.valueOf(seconds),
+					Double.valueOf(records / seconds));
+			final List<String> operations = operationLines();
+			if (operations.isEmpty()) {
+				report.add(throughput);
+			}
+			for (int i = 0; i < operations.size(); ++i) {
+				report.add((i == 0 ? throughput : String.format("%37s", ""))
+						+ " " + operations.get(i));
+			}
+			long peakHeap = 0;
+			for (final MemoryPoolMXBean pool : ManagementFactory
+					.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP) {
+					peakHeap += pool.getPeakUsage().getUsed();
+				}
+			}
+			report.add(String.format("%-6s peak heap %d MiB, gc %d ms", "",
+					Long.valueOf(peakHeap >> 20), Long.valueOf(gcMillis()
+							- startGcMillis)));
+			connection.close();
+		}
+
+		private List<String> operationLines()
+				throws MalformedObjectNameException {
+			final MBeanServer mBeanServer = ManagementFactory
+					.getPlatformMBeanServer();
+			final Set<String> present = new TreeSet<>();
+			for (final ObjectName objectName : mBeanServer.queryNames(
+					new ObjectName("org.culturegraph.mf.mongodb:"
+							+ "type=MongoDBConnection,name="
+							+ ObjectName.quote("load-test-" + name) + ",*"), null)) {
+				present.add(objectName.getKeyProperty("operation"));
+			}
+			final List<String> lines = new ArrayList<>();
+			for (final String operation : OPERATIONS) {
+				if (!present.contains(operation)) {
+					continue;
+				}
+				final OperationStatsMXBean stats = JMX.newMXBeanProxy(mBeanServer,
+						new ObjectName("org.culturegraph.mf.mongodb:"
+								+ "type=MongoDBConnection,name="
+								+ ObjectName.quote("load-test-" + name)
+								+ ",operation=" + operation),
+						OperationStatsMXBean.class);
+				if (stats.getCalls() == 0) {
+					continue;
+				}
+				lines.add(String.format("%-9s %8d %10d %10d %10d", operation,
+						Long.valueOf(stats.getCalls()),
+						Long.valueOf(stats.getMedianMicros()),
+						Long.valueOf(stats.getP99Micros()),
+						Long.valueOf(stats.getMeanMicros())));
+			}
+			return lines;
+		}
+
+		private long gcMillis() {
+			long millis = 0;
+			for (final GarbageCollectorMXBean gc : ManagementFactory
+					.getGarbageCollectorMXBeans()) {
+				millis += Math.max(0, gc.getCollectionTime());
+			}
+			return millis;
+		}
+
+	}
+
+	/**
+	 * Counts the records it receives.
+	 */
+	private static final class RecordCounter extends DefaultStreamReceiver {
+
+		long records;
+
+		@Override
+		public void endRecord() {
+			++records;
+		}
+
+	}
+
+}
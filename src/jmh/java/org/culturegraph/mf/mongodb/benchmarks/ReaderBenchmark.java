@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.MongoDBReader;
+import org.culturegraph.mf.mongodb.MongoDBWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the mapping of documents to stream events in
+ * {@link MongoDBReader}, including the BSON decoding of the documents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+
+	@Param({ "FLAT", "NESTED", "WIDE" })
+	private RecordShape shape;
+
+	@Param({ "false", "true" })
+	private boolean rawBson;
+
+	@Param({ "LEGACY", "COMPACT" })
+	private MongoDBWriter.Layout layout;
+
+	private InMemoryMongoDBConnection connection;
+	private MongoDBReader mongoDBReader;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		connection = new InMemoryMongoDBConnection();
+		final SyntheticRecord record = SyntheticRecord.create(shape, "1");
+		final MongoDBWriter mongoDBWriter = new MongoDBWriter(connection);
+		mongoDBWriter.setLayout(layout);
+		record.replay(mongoDBWriter);
+		mongoDBReader = new MongoDBReader(connection);
+		mongoDBReader.setRawBson(rawBson);
+		mongoDBReader.setReceiver(new BlackholeReceiver(blackhole));
+	}
+
+	@TearDown
+	public void tearDown() {
+		connection.close();
+	}
+
+	@Benchmark
+	public void readRecord() {
+		mongoDBReader.process("1");
+	}
+
+	/**
+	 * Hands all events to a {@link Blackhole}.
+	 */
+	private static final class BlackholeReceiver implements StreamReceiver {
+
+		private final Blackhole blackhole;
+
+		BlackholeReceiver(final Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void startRecord(final String identifier) {
+			blackhole.consume(identifier);
+		}
+
+		@Override
+		public void endRecord() {
+			// nothing to consume
+		}
+
+		@Override
+		public void startEntity(final String name) {
+			blackhole.consume(name);
+		}
+
+		@Override
+		public void endEntity() {
+			// nothing to consume
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			blackhole.consume(name);
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void resetStream() {
+			// nothing to do
+		}
+
+		@Override
+		public void closeStream() {
+			// nothing to do
+		}
+
+	}
+
+}
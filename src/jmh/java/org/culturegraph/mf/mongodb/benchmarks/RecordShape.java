@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+/**
+ * The shapes of the synthetic records used in the benchmarks.
+ */
+public enum RecordShape {
+	/** 20 top-level literals. */
+	FLAT,
+	/** Entities nested ten levels deep with a few literals per level. */
+	NESTED,
+	/**
+	 * 300 PICA-like fields: entities with three-digit tags and two to five
+	 * single-letter subfields each.
+	 */
+	WIDE
+}
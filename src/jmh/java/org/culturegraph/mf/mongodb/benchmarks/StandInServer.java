@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * An in-memory server which speaks the MongoDB wire protocol. It runs in a
+ * process of its own, so that the documents it holds do not count towards
+ * the heap usage measured by {@link LoadTest}.
+ * <p>
+ * The server prints its port to stdout and stops when its stdin is closed,
+ * i.e. when the parent process ends.
+ */
+final class StandInServer implements AutoCloseable {
+
+	private final Process process;
+	private final int port;
+
+	private StandInServer(final Process process, final int port) {
+		this.process = process;
+		this.port = port;
+	}
+
+	/**
+	 * Starts the server in a new JVM with the class path of this one.
+	 *
+	 * @param maxHeap maximum heap of the server process, e.g. {@code 2g}
+	 * @return the running server
+	 */
+	static StandInServer start(final String maxHeap) throws IOException {
+		final String java = System.getProperty("java.home") + File.separator
+				+ "bin" + File.separator + "java";
+		final Process process = new ProcessBuilder(Arrays.asList(java,
+				"-Xmx" + maxHeap, "-classpath",
+				System.getProperty("java.class.path"),
+				StandInServer.class.getName()))
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		final BufferedReader output = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), StandardCharsets.UTF_8));
+		final String line = output.readLine();
+		if (line == null) {
+			process.destroy();
+			throw new IOException("Stand-in server did not start");
+		}
+		return new StandInServer(process, Integer.parseInt(line.trim()));
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		process.destroy();
+		process.waitFor();
+	}
+
+	public static void main(final String[] args) throws IOException {
+		final MongoServer server = new MongoServer(new MemoryBackend());
+		final InetSocketAddress address = server.bind();
+		System.out.println(address.getPort());
+		System.out.flush();
+		try {
+			while (System.in.read() >= 0) {
+				// wait for the parent process to end
+			}
+		} finally {
+			server.shutdownNow();
+		}
+	}
+
+}
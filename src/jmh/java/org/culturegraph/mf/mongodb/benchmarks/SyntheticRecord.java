@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+
+/**
+ * Pre-generated stream events of a synthetic record. The events are
+ * generated once with a fixed seed, so that replaying them costs next to
+ * nothing and all runs see the same records.
+ */
+final class SyntheticRecord {
+
+	private static final int START_ENTITY = 0;
+	private static final int END_ENTITY = 1;
+	private static final int LITERAL = 2;
+
+	private final String id;
+	private final List<Integer> opcodes = new ArrayList<>();
+	private final List<String> strings = new ArrayList<>();
+	private int[] opcodeArray;
+	private String[] stringArray;
+
+	private SyntheticRecord(final String id) {
+		this.id = id;
+	}
+
+	static SyntheticRecord create(final RecordShape shape, final String id) {
+		return create(shape, id, 42);
+	}
+
+	static SyntheticRecord create(final RecordShape shape, final String id,
+			final long seed) {
+		final SyntheticRecord record = new SyntheticRecord(id);
+		final Random random = new Random(seed);
+		switch (shape) {
+			case FLAT:
+				for (int i = 0; i < 20; ++i) {
+					record.literal("field" + i, text(random, 5, 40));
+				}
+				break;
+			case NESTED:
+				for (int depth = 0; depth < 10; ++depth) {
+					record.startEntity("level" + depth);
+					record.literal("a", text(random, 5, 20));
+					record.literal("b", text(random, 5, 20));
+				}
+				for (int depth = 0; depth < 10; ++depth) {
+					record.literal("c", text(random, 5, 20));
+					record.endEntity();
+				}
+				break;
+			case WIDE:
+				for (int i = 0; i < 300; ++i) {
+					record.startEntity(String.format("%03d%c", 100 + random.nextInt(
+							100), (char) ('@' + random.nextInt(3))));
+					final int subfields = 2 + random.nextInt(4);
+					for (int j = 0; j < subfields; ++j) {
+						record.literal(String.valueOf((char) ('a' + random.nextInt(26))),
+								text(random, 3, 60));
+					}
+					record.endEntity();
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown shape: " + shape);
+		}
+		record.opcodeArray = new int[record.opcodes.size()];
+		for (int i = 0; i < record.opcodeArray.length; ++i) {
+			record.opcodeArray[i] = record.opcodes.get(i).intValue();
+		}
+		record.stringArray = record.strings.toArray(new String[0]);
+		return record;
+	}
+
+	String getId() {
+		return id;
+	}
+
+	void replay(final StreamReceiver receiver) {
+		replay(receiver, id);
+	}
+
+	/**
+	 * Replays the events of the record under a different identifier.
+	 */
+	void replay(final StreamReceiver receiver, final String recordId) {
+		receiver.startRecord(recordId);
+		int string = 0;
+		for (final int opcode : opcodeArray) {
+			switch (opcode) {
+				case START_ENTITY:
+					receiver.startEntity(stringArray[string++]);
+					break;
+				case END_ENTITY:
+					receiver.endEntity();
+					break;
+				default:
+					receiver.literal(stringArray[string], stringArray[string + 1]);
+					string += 2;
+					break;
+			}
+		}
+		receiver.endRecord();
+	}
+
+	private void startEntity(final String name) {
+		opcodes.add(Integer.valueOf(START_ENTITY));
+		strings.add(name);
+	}
+
+	private void endEntity() {
+		opcodes.add(Integer.valueOf(END_ENTITY));
+	}
+
+	private void literal(final String name, final String value) {
+		opcodes.add(Integer.valueOf(LITERAL));
+		strings.add(name);
+		strings.add(value);
+	}
+
+	private static String text(final Random random, final int minLength,
+			final int maxLength) {
+		final int length = minLength + random.nextInt(maxLength - minLength);
+		final StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; ++i) {
+			builder.append((char) ('a' + random.nextInt(26)));
+		}
+		return builder.toString();
+	}
+
+}
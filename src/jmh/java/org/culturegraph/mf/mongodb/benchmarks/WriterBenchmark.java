@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.culturegraph.mf.mongodb.MongoDBWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the mapping of stream events to documents in
+ * {@link MongoDBWriter}, including the BSON encoding of the documents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriterBenchmark {
+
+	@Param({ "FLAT", "NESTED", "WIDE" })
+	private RecordShape shape;
+
+	@Param({ "false", "true" })
+	private boolean rawBson;
+
+	@Param({ "LEGACY", "COMPACT" })
+	private MongoDBWriter.Layout layout;
+
+	private SyntheticRecord record;
+	private MongoDBWriter mongoDBWriter;
+
+	@Setup
+	public void setup() {
+		record = SyntheticRecord.create(shape, "1");
+		mongoDBWriter = new MongoDBWriter(new InMemoryMongoDBConnection());
+		mongoDBWriter.setRawBson(rawBson);
+		mongoDBWriter.setLayout(layout);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mongoDBWriter.closeStream();
+	}
+
+	@Benchmark
+	public void writeRecord() {
+		record.replay(mongoDBWriter);
+	}
+
+}
@@ -0,0 +1,278 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * An aggregation over the values of a literal of records in the legacy
+ * layout of {@link MongoDBWriter}, given as
+ *
+ * <pre>
+ * operation path [by path]
+ * </pre>
+ *
+ * Paths are key paths as for {@link MongoDBWriter#setKeyFields(String)},
+ * e.g. {@code 028A.a}. The operations are:
+ * <ul>
+ * <li>{@code count}: the number of occurrences of each value,
+ * <li>{@code distinct}: the number of distinct values,
+ * <li>{@code occurrences}: the number of records containing the literal and
+ * its total number of occurrences.
+ * </ul>
+ * With {@code by}, the results are computed separately for each value of
+ * the second literal; records without it are left out.
+ * <p>
+ * The pipeline unwinds {@link MongoDBKeys#DATA_KEY} along the path, so the
+ * server only returns the results. If the names of both paths have codes in
+ * the {@link NameDictionary}, records storing codes are matched as well: each
+ * unwound element is replaced by the value under either its name or its
+ * code, as a record stores either names or codes throughout.
+ */
+final class AggregationSpec {
+
+	/**
+	 * The operations of an aggregation.
+	 */
+	enum Operation {
+		COUNT, DISTINCT, OCCURRENCES
+	}
+
+	static final String GROUP_FIELD = "group";
+	static final String VALUE_FIELD = "value";
+	static final String COUNT_FIELD = "count";
+	static final String DISTINCT_FIELD = "distinct";
+	static final String RECORDS_FIELD = "records";
+	static final String OCCURRENCES_FIELD = "occurrences";
+
+	private static final String BY = "by";
+	private static final String GROUP_COPY = "group";
+	private static final String PER_RECORD = "n";
+
+	private final Operation operation;
+	private final String[] path;
+	private final String[] groupPath;
+
+	private AggregationSpec(final Operation operation, final String[] path,
+			final String[] groupPath) {
+		this.operation = operation;
+		this.path = path;
+		this.groupPath = groupPath;
+	}
+
+	/**
+	 * @param spec the aggregation, e.g. {@code count 028A.a by 002@.0}
+	 * @return the parsed aggregation
+	 * @throws IllegalArgumentException if the spec is invalid
+	 */
+	static AggregationSpec parse(final String spec) {
+		final String[] words = spec.trim().split("\\s+");
+		if (words.length != 2 && !(words.length == 4 && BY.equals(words[2]))) {
+			throw invalid(spec);
+		}
+		final Operation operation;
+		try {
+			operation = Operation.valueOf(words[0].toUpperCase(Locale.ROOT));
+		} catch (final IllegalArgumentException e) {
+			throw invalid(spec);
+		}
+		return new AggregationSpec(operation, parsePath(spec, words[1]),
+				words.length == 4 ? parsePath(spec, words[3]) : null);
+	}
+
+	private static String[] parsePath(final String spec, final String path) {
+		final String[] names = path.split("\\.", -1);
+		for (final String name : names) {
+			if (name.isEmpty() || name.startsWith("$")) {
+				throw invalid(spec);
+			}
+		}
+		return names;
+	}
+
+	private static IllegalArgumentException invalid(final String spec) {
+		return new IllegalArgumentException("Invalid aggregation: '" + spec
+				+ "'; expected 'count|distinct|occurrences path [by path]'");
+	}
+
+	Operation getOperation() {
+		return operation;
+	}
+
+	boolean isGrouped() {
+		return groupPath != null;
+	}
+
+	/**
+	 * @param dictionary the name dictionary of the collection
+	 * @return the stages of the aggregation
+	 */
+	List<DBObject> toPipeline(final NameDictionary dictionary) {
+		String[] codes = find(dictionary, path);
+		String[] groupCodes = null;
+		if (codes != null && groupPath != null) {
+			groupCodes = find(dictionary, groupPath);
+			if (groupCodes == null) {
+				codes = null;
+			}
+		}
+		final List<DBObject> pipeline = new ArrayList<>();
+		DBObject present = present(path, groupPath);
+		if (codes != null) {
+			present = new BasicDBObject("$or", Arrays.asList(present,
+					present(codes, groupCodes)));
+		}
+		final DBObject projection = new BasicDBObject(MongoDBKeys.DATA_KEY,
+				Integer.valueOf(1));
+		String group = null;
+		if (groupPath != null) {
+			projection.put(GROUP_COPY, "$" + MongoDBKeys.DATA_KEY);
+		}
+		pipeline.add(new BasicDBObject("$match", present));
+		pipeline.add(new BasicDBObject("$project", projection));
+		if (groupPath != null) {
+			group = unwind(pipeline, GROUP_COPY, groupPath, groupCodes);
+		}
+		final String value = unwind(pipeline, MongoDBKeys.DATA_KEY, path, codes);
+		final String groupOfKey = group == null ? null
+				: "$" + MongoDBKeys.RECORD_ID_KEY + "." + GROUP_FIELD;
+		switch (operation) {
+			case COUNT:
+				pipeline.add(group(groupBy(key(group, value)).append(COUNT_FIELD,
+						one())));
+				pipeline.add(new BasicDBObject("$sort", new BasicDBObject(
+						COUNT_FIELD, Integer.valueOf(-1)).append(
+								MongoDBKeys.RECORD_ID_KEY, Integer.valueOf(1))));
+				break;
+			case DISTINCT:
+				pipeline.add(group(groupBy(key(group, value))));
+				pipeline.add(group(groupBy(groupOfKey).append(DISTINCT_FIELD,
+						one())));
+				pipeline.add(sortById());
+				break;
+			default:
+				pipeline.add(group(groupBy(key(group, "$"
+						+ MongoDBKeys.RECORD_ID_KEY)).append(PER_RECORD, one())));
+				pipeline.add(group(groupBy(groupOfKey).append(RECORDS_FIELD, one())
+						.append(OCCURRENCES_FIELD, new BasicDBObject("$sum",
+								"$" + PER_RECORD))));
+				pipeline.add(sortById());
+				break;
+		}
+		return pipeline;
+	}
+
+	/**
+	 * @return the codes of the names, or null if a name has no code
+	 */
+	private static String[] find(final NameDictionary dictionary,
+			final String[] names) {
+		final String[] codes = new String[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			codes[i] = dictionary.find(names[i]);
+			if (codes[i] == null) {
+				return null;
+			}
+		}
+		return codes;
+	}
+
+	private static DBObject present(final String[] keys,
+			final String[] groupKeys) {
+		final DBObject present = new BasicDBObject(fieldName(
+				MongoDBKeys.DATA_KEY, keys), exists());
+		if (groupKeys != null) {
+			present.put(fieldName(MongoDBKeys.DATA_KEY, groupKeys), exists());
+		}
+		return present;
+	}
+
+	/**
+	 * Adds stages which replace {@code field} with the elements along the
+	 * path and drop elements which do not lead to the literal. With codes,
+	 * each element is replaced by its value under the name or the code.
+	 *
+	 * @return the expression of the literal value
+	 */
+	private static String unwind(final List<DBObject> pipeline,
+			final String field, final String[] names, final String[] codes) {
+		String current = field;
+		for (int i = 0; i < names.length; ++i) {
+			pipeline.add(new BasicDBObject("$unwind", "$" + current));
+			final String name = current + "." + MongoDBKeys.KEY_PREFIX + names[i];
+			if (codes == null) {
+				current = name;
+				pipeline.add(new BasicDBObject("$match", new BasicDBObject(current,
+						exists())));
+			} else {
+				final String code = current + "." + MongoDBKeys.KEY_PREFIX
+						+ codes[i];
+				pipeline.add(new BasicDBObject("$match", new BasicDBObject("$or",
+						Arrays.asList(new BasicDBObject(name, exists()),
+								new BasicDBObject(code, exists())))));
+				pipeline.add(new BasicDBObject("$addFields", new BasicDBObject(
+						current, new BasicDBObject("$ifNull", Arrays.asList(
+								"$" + name, "$" + code)))));
+			}
+		}
+		return "$" + current;
+	}
+
+	private static String fieldName(final String field, final String[] names) {
+		final StringBuilder fieldName = new StringBuilder(field);
+		for (final String name : names) {
+			fieldName.append('.').append(MongoDBKeys.KEY_PREFIX).append(name);
+		}
+		return fieldName.toString();
+	}
+
+	private static Object key(final String group, final String value) {
+		if (group == null) {
+			return value;
+		}
+		return new BasicDBObject(GROUP_FIELD, group).append(VALUE_FIELD, value);
+	}
+
+	private static BasicDBObject groupBy(final Object id) {
+		return new BasicDBObject(MongoDBKeys.RECORD_ID_KEY, id);
+	}
+
+	private static DBObject group(final DBObject fields) {
+		return new BasicDBObject("$group", fields);
+	}
+
+	private static DBObject one() {
+		return new BasicDBObject("$sum", Integer.valueOf(1));
+	}
+
+	private static DBObject exists() {
+		return new BasicDBObject("$exists", Boolean.TRUE);
+	}
+
+	private static DBObject sortById() {
+		return new BasicDBObject("$sort", new BasicDBObject(
+				MongoDBKeys.RECORD_ID_KEY, Integer.valueOf(1)));
+	}
+
+}
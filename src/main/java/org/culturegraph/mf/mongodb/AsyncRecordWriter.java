@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Hands record documents to background threads which write them to a
+ * {@link MongoDBConnection}. Each thread writes through its own
+ * {@link ConnectionRecordSink}, so that each collects its own batches and
+ * the threads use separate connections from the pool of the client.
+ * <p>
+ * Records are partitioned by the hash of their identifier: each thread has
+ * a bounded queue of its own and all records with the same identifier pass
+ * through the same queue. Writes of the same record thus reach the database
+ * in the order in which they were passed to {@link #write(DBObject, int)}.
+ * If the queue of a record is full, {@link #write(DBObject, int)} blocks
+ * until its flusher thread has taken a record from the queue.
+ * <p>
+ * The first failure of each flusher thread is kept. The failures are
+ * rethrown as one exception by the next call to
+ * {@link #write(DBObject, int)}, {@link #flush()} or {@link #close()}; the
+ * first failure is its cause and the others are attached as suppressed
+ * exceptions. This includes errors such as {@link OutOfMemoryError}: a
+ * flusher thread keeps running after any failure, so that {@link #flush()}
+ * and {@link #close()} do not wait for it in vain. After a failure, the
+ * remaining records are discarded.
+ */
+final class AsyncRecordWriter implements RecordSink {
+
+	private static final Item FLUSH = new Item(null, 0);
+	private static final Item STOP = new Item(null, 0);
+
+	private final MongoDBConnection mongoDBConnection;
+	private final int batchSize;
+	private final int batchBytes;
+	private final ModificationStamper stamper;
+	private final DeadLetterFile deadLetters;
+
+	private final List<BlockingQueue<Item>> queues = new ArrayList<>();
+	private final List<Thread> flushers = new ArrayList<>();
+	private final CyclicBarrier flushBarrier;
+	private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+	private volatile boolean failed;
+
+	private boolean closed;
+
+	AsyncRecordWriter(final MongoDBConnection mongoDBConnection,
+			final int threads, final int queueSize, final int batchSize,
+			final int batchBytes, final ModificationStamper stamper,
+			final DeadLetterFile deadLetters) {
+		this.mongoDBConnection = mongoDBConnection;
+		this.batchSize = batchSize;
+		this.batchBytes = batchBytes;
+		this.stamper = stamper;
+		this.deadLetters = deadLetters;
+		final int partitionQueueSize = Math.max(1,
+				(queueSize + threads - 1) / threads);
+		flushBarrier = new CyclicBarrier(threads + 1);
+		for (int i = 0; i < threads; ++i) {
+			final BlockingQueue<Item> queue = new ArrayBlockingQueue<>(
+					partitionQueueSize);
+			queues.add(queue);
+			final Thread flusher = new Thread(new Flusher(queue),
+					"mongodb-writer-" + i);
+			flusher.setDaemon(true);
+			flushers.add(flusher);
+			flusher.start();
+		}
+	}
+
+	@Override
+	public void write(final DBObject record, final int size) {
+		checkFailure();
+		put(queueOf(record), new Item(record, size));
+	}
+
+	@Override
+	public void flush() {
+		for (final BlockingQueue<Item> queue : queues) {
+			put(queue, FLUSH);
+		}
+		try {
+			flushBarrier.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		} catch (final BrokenBarrierException e) {
+			throw new MetafactureException(e);
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Writes all pending records and stops the flusher threads. Returns
+	 * after all threads have ended.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (final BlockingQueue<Item> queue : queues) {
+			put(queue, STOP);
+		}
+		for (final Thread flusher : flushers) {
+			try {
+				flusher.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MetafactureException(e);
+			}
+		}
+		checkFailure();
+	}
+
+	private BlockingQueue<Item> queueOf(final DBObject record) {
+		final Object id = record.get(MongoDBKeys.RECORD_ID_KEY);
+		if (id == null || queues.size() == 1) {
+			return queues.get(0);
+		}
+		return queues.get(Math.floorMod(id.hashCode(), queues.size()));
+	}
+
+	private static void put(final BlockingQueue<Item> queue,
+			final Item item) {
+		try {
+			queue.put(item);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MetafactureException(e);
+		}
+	}
+
+	private void checkFailure() {
+		if (!failed) {
+			return;
+		}
+		final List<Throwable> exceptions = new ArrayList<>(failures);
+		final Throwable first = exceptions.get(0);
+		final MetafactureException exception = new MetafactureException(
+				"Asynchronous write failed"
+						+ (exceptions.size() > 1 ? " in " + exceptions.size()
+								+ " threads" : "") + ": " + first.getMessage(), first);
+		for (final Throwable other : exceptions.subList(1,
+				exceptions.size())) {
+			exception.addSuppressed(other);
+		}
+		throw exception;
+	}
+
+	private void fail(final Throwable exception) {
+		failures.add(exception);
+		failed = true;
+	}
+
+	/**
+	 * A record document together with its estimated size.
+	 */
+	private static final class Item {
+
+		final DBObject record;
+		final int size;
+
+		Item(final DBObject record, final int size) {
+			this.record = record;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * Takes records from its queue and writes them.
+	 */
+	private final class Flusher implements Runnable {
+
+		private final BlockingQueue<Item> queue;
+		private final ConnectionRecordSink recordSink = new ConnectionRecordSink(
+				mongoDBConnection, batchSize, batchBytes, stamper, deadLetters);
+		private boolean flusherFailed;
+
+		Flusher(final BlockingQueue<Item> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Item item = queue.take();
+					if (item == STOP) {
+						flushBatch();
+						return;
+					}
+					if (item == FLUSH) {
+						flushBatch();
+						flushBarrier.await();
+					} else {
+						writeRecord(item);
+					}
+				}
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failFlusher(new MetafactureException(e));
+			} catch (final BrokenBarrierException e) {
+				failFlusher(new MetafactureException(e));
+			}
+		}
+
+		private void writeRecord(final Item item) {
+			if (failed) {
+				return;
+			}
+			try {
+				recordSink.write(item.record, item.size);
+			} catch (final MongoException e) {
+				failFlusher(new MetafactureException(e));
+			} catch (final Throwable e) {
+				failFlusher(e);
+			}
+		}
+
+		private void flushBatch() {
+			if (failed) {
+				recordSink.discard();
+				return;
+			}
+			try {
+				recordSink.flush();
+			} catch (final Throwable e) {
+				failFlusher(e);
+			}
+		}
+
+		private void failFlusher(final Throwable exception) {
+			if (!flusherFailed) {
+				flusherFailed = true;
+				fail(exception);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Passes on only those records whose content hash differs from the hash
+ * stored in the database. The hashes are stored in
+ * {@link MongoDBKeys#HASH_KEY}.
+ * <p>
+ * The stored hashes are either loaded for the whole collection when the
+ * first record arrives, or looked up with one {@code $in} query per batch of
+ * records. Preloaded hashes are kept in a {@link LongHashMap} keyed by a
+ * hash of the record id.
+ */
+final class ChangeDetector implements RecordSink {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ChangeDetector.class);
+
+	private static final long UNKNOWN_RECORD = Long.MIN_VALUE;
+	private static final DBObject HASH_PROJECTION = new BasicDBObject(
+			MongoDBKeys.HASH_KEY, 1);
+
+	private final MongoDBConnection mongoDBConnection;
+	private final RecordSink recordSink;
+	private final boolean preload;
+	private final int lookupBatchSize;
+
+	private LongHashMap knownHashes;
+	private final List<DBObject> pendingRecords = new ArrayList<>();
+	private final List<Integer> pendingSizes = new ArrayList<>();
+
+	private long newRecords;
+	private long changedRecords;
+	private long unchangedRecords;
+
+	ChangeDetector(final MongoDBConnection mongoDBConnection,
+			final RecordSink recordSink, final boolean preload,
+			final int lookupBatchSize) {
+		this.mongoDBConnection = mongoDBConnection;
+		this.recordSink = recordSink;
+		this.preload = preload;
+		this.lookupBatchSize = lookupBatchSize;
+	}
+
+	@Override
+	public void write(final DBObject record, final int size) {
+		if (preload) {
+			if (knownHashes == null) {
+				knownHashes = loadHashes();
+			}
+			final Object id = record.get(MongoDBKeys.RECORD_ID_KEY);
+			if (id == null) {
+				writeRecord(record, size, UNKNOWN_RECORD);
+				return;
+			}
+			final long idHash = RecordHasher.hash(id.toString());
+			writeRecord(record, size, knownHashes.get(idHash, UNKNOWN_RECORD));
+			knownHashes.put(idHash, hashOf(record));
+		} else {
+			pendingRecords.add(record);
+			pendingSizes.add(Integer.valueOf(size));
+			if (pendingRecords.size() >= lookupBatchSize) {
+				processPendingRecords();
+			}
+		}
+	}
+
+	@Override
+	public void flush() {
+		processPendingRecords();
+		recordSink.flush();
+	}
+
+	@Override
+	public void close() {
+		try {
+			processPendingRecords();
+		} finally {
+			recordSink.close();
+		}
+		LOG.info("Records written: {} (new: {}, changed: {}), unchanged: {}",
+				newRecords + changedRecords, newRecords, changedRecords,
+				unchangedRecords);
+	}
+
+	long getNewRecords() {
+		return newRecords;
+	}
+
+	long getChangedRecords() {
+		return changedRecords;
+	}
+
+	long getUnchangedRecords() {
+		return unchangedRecords;
+	}
+
+	private LongHashMap loadHashes() {
+		final LongHashMap hashes = new LongHashMap();
+		final DBCursor dbCursor = mongoDBConnection.find(new BasicDBObject(),
+				HASH_PROJECTION);
+		try {
+			while (dbCursor.hasNext()) {
+				final DBObject stored = dbCursor.next();
+				hashes.put(RecordHasher.hash(stored.get(MongoDBKeys.RECORD_ID_KEY)
+						.toString()), hashOf(stored));
+			}
+		} finally {
+			dbCursor.close();
+		}
+		LOG.info("Loaded content hashes of {} records", hashes.size());
+		return hashes;
+	}
+
+	private void processPendingRecords() {
+		if (pendingRecords.isEmpty()) {
+			return;
+		}
+		final List<Object> ids = new ArrayList<>(pendingRecords.size());
+		for (final DBObject record : pendingRecords) {
+			final Object id = record.get(MongoDBKeys.RECORD_ID_KEY);
+			if (id != null) {
+				ids.add(id);
+			}
+		}
+		final Map<Object, Long> storedHashes = new HashMap<>();
+		if (!ids.isEmpty()) {
+			final DBCursor dbCursor = mongoDBConnection.find(new BasicDBObject(
+					MongoDBKeys.RECORD_ID_KEY, new BasicDBObject("$in", ids)),
+					HASH_PROJECTION);
+			try {
+				while (dbCursor.hasNext()) {
+					final DBObject stored = dbCursor.next();
+					storedHashes.put(stored.get(MongoDBKeys.RECORD_ID_KEY),
+							Long.valueOf(hashOf(stored)));
+				}
+			} finally {
+				dbCursor.close();
+			}
+		}
+		for (int i = 0; i < pendingRecords.size(); ++i) {
+			final DBObject record = pendingRecords.get(i);
+			final Long storedHash = storedHashes.get(record.get(
+					MongoDBKeys.RECORD_ID_KEY));
+			writeRecord(record, pendingSizes.get(i).intValue(),
+					storedHash == null ? UNKNOWN_RECORD : storedHash.longValue());
+		}
+		pendingRecords.clear();
+		pendingSizes.clear();
+	}
+
+	private void writeRecord(final DBObject record, final int size,
+			final long storedHash) {
+		if (storedHash == UNKNOWN_RECORD) {
+			newRecords += 1;
+		} else if (storedHash == hashOf(record)) {
+			unchangedRecords += 1;
+			return;
+		} else {
+			changedRecords += 1;
+		}
+		recordSink.write(record, size);
+	}
+
+	private static long hashOf(final DBObject document) {
+		final Object hash = document.get(MongoDBKeys.HASH_KEY);
+		if (hash instanceof Number) {
+			return ((Number) hash).longValue();
+		}
+		return RecordHasher.NO_HASH;
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Stores the position of the last acknowledged record of a load as JSON in
+ * a local file: the number of records read from the stream up to and
+ * including it, and its identifier. The file is replaced atomically like
+ * the file of {@link ResumeTokenFile}.
+ */
+final class CheckpointFile {
+
+	private static final String RECORDS_KEY = "records";
+	private static final String ID_KEY = "id";
+
+	private final Path path;
+	private final Path temporaryPath;
+
+	CheckpointFile(final Path path) {
+		this.path = path;
+		temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+	}
+
+	/**
+	 * @return the saved checkpoint or {@code null} if the file does not
+	 *         exist
+	 */
+	Checkpoint load() {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try {
+			final BsonDocument document = BsonDocument.parse(new String(
+					Files.readAllBytes(path), StandardCharsets.UTF_8));
+			final BsonValue id = document.get(ID_KEY, BsonNull.VALUE);
+			return new Checkpoint(document.getNumber(RECORDS_KEY).longValue(),
+					id.isString() ? id.asString().getValue() : null);
+		} catch (final IOException | RuntimeException e) {
+			throw new MetafactureException("Cannot read checkpoint from " + path,
+					e);
+		}
+	}
+
+	void save(final long records, final String id) {
+		final BsonDocument document = new BsonDocument(RECORDS_KEY,
+				new BsonInt64(records)).append(ID_KEY,
+						id == null ? BsonNull.VALUE : new BsonString(id));
+		try {
+			Files.write(temporaryPath,
+					document.toJson().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			throw new MetafactureException("Cannot write checkpoint to " + path,
+					e);
+		}
+	}
+
+	/**
+	 * A saved position in the stream.
+	 */
+	static final class Checkpoint {
+
+		final long records;
+		final String id;
+
+		Checkpoint(final long records, final String id) {
+			this.records = records;
+			this.id = id;
+		}
+
+	}
+
+}
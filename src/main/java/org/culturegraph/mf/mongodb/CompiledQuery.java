@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A query of {@link MongoDBReader} with all values bound: the filter
+ * document, an optional sort order and limit, and the record identifier if
+ * the query looks up a single record by identifier.
+ */
+final class CompiledQuery {
+
+	private final DBObject filter;
+	private final DBObject sort;
+	private final int limit;
+	private final String id;
+	private final boolean cacheable;
+
+	/**
+	 * @param filter the filter document
+	 * @param sort the sort order or {@code null}
+	 * @param limit the maximum number of records or zero
+	 * @param id the identifier of a single record lookup or {@code null}
+	 * @param cacheable false if the result depends on the time of the query
+	 */
+	CompiledQuery(final DBObject filter, final DBObject sort, final int limit,
+			final String id, final boolean cacheable) {
+		this.filter = filter;
+		this.sort = sort;
+		this.limit = limit;
+		this.id = id;
+		this.cacheable = cacheable;
+	}
+
+	DBObject getFilter() {
+		return filter;
+	}
+
+	DBObject getSort() {
+		return sort;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	String getId() {
+		return id;
+	}
+
+	boolean isCacheable() {
+		return cacheable;
+	}
+
+	/**
+	 * @return the filter document for queries without sort order and limit,
+	 *         so that lookups by identifier share cache entries with batched
+	 *         lookups, or a document combining all three otherwise
+	 */
+	DBObject getCacheKey() {
+		if (sort == null && limit == 0) {
+			return filter;
+		}
+		return new BasicDBObject("filter", filter).append("sort", sort)
+				.append("limit", Integer.valueOf(limit));
+	}
+
+}
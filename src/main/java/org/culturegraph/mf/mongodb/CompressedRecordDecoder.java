@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+/**
+ * Turns payloads written by {@link CompressedRecordEncoder} back into stream
+ * events. The payload is inflated in chunks while the events are emitted,
+ * so the uncompressed record is never held in memory as a whole.
+ * <p>
+ * Since the server cannot look into compressed payloads, a selection of
+ * top-level entities and literals is applied while decoding.
+ * <p>
+ * The {@link Inflater} is reused for all records until {@link #close()}
+ * releases its native memory; a new one is created for the next record.
+ */
+final class CompressedRecordDecoder {
+
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	private Inflater inflater;
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private int position;
+	private int limit;
+	private byte[] stringBuffer = new byte[256];
+
+	/**
+	 * Emits the events of a compressed payload. {@code startRecord} and
+	 * {@code endRecord} are left to the caller.
+	 *
+	 * @param payload the compressed payload
+	 * @param codec the codec stored with the payload
+	 * @param fields names of the top-level entities and literals to emit or
+	 *        {@code null} to emit all
+	 * @param receiver the receiver of the events
+	 */
+	void decode(final byte[] payload, final String codec,
+			final Set<String> fields, final StreamReceiver receiver) {
+		if (!MongoDBKeys.DEFLATE_CODEC.equals(codec)) {
+			throw new MetafactureException("Unsupported codec: " + codec);
+		}
+		if (inflater == null) {
+			inflater = new Inflater();
+		} else {
+			inflater.reset();
+		}
+		inflater.setInput(payload);
+		position = 0;
+		limit = 0;
+		int depth = 0;
+		int skippedDepth = 0;
+		int opcode;
+		while ((opcode = readOpcode()) >= 0) {
+			switch (opcode) {
+				case CompressedRecordEncoder.START_ENTITY: {
+					final String name = readString();
+					if (skippedDepth > 0) {
+						skippedDepth += 1;
+					} else if (depth == 0 && fields != null
+							&& !fields.contains(name)) {
+						skippedDepth = 1;
+					} else {
+						receiver.startEntity(name);
+						depth += 1;
+					}
+					break;
+				}
+				case CompressedRecordEncoder.END_ENTITY:
+					if (skippedDepth > 0) {
+						skippedDepth -= 1;
+					} else {
+						receiver.endEntity();
+						depth -= 1;
+					}
+					break;
+				case CompressedRecordEncoder.LITERAL: {
+					final String name = readString();
+					final String value = readString();
+					if (isEmitted(name, depth, skippedDepth, fields)) {
+						receiver.literal(name, value);
+					}
+					break;
+				}
+				case CompressedRecordEncoder.NULL_LITERAL: {
+					final String name = readString();
+					if (isEmitted(name, depth, skippedDepth, fields)) {
+						receiver.literal(name, null);
+					}
+					break;
+				}
+				default:
+					throw new MetafactureException("Corrupt record payload: "
+							+ "unknown opcode " + opcode);
+			}
+		}
+	}
+
+	/**
+	 * Releases the native memory of the inflater.
+	 */
+	void close() {
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+	}
+
+	private static boolean isEmitted(final String name, final int depth,
+			final int skippedDepth, final Set<String> fields) {
+		return skippedDepth == 0
+				&& (depth > 0 || fields == null || fields.contains(name));
+	}
+
+	private int readOpcode() {
+		if (position == limit && !fill()) {
+			if (!inflater.finished()) {
+				throw new MetafactureException(
+						"Corrupt record payload: unexpected end");
+			}
+			return -1;
+		}
+		return chunk[position++] & 0xff;
+	}
+
+	private int readByte() {
+		if (position == limit && !fill()) {
+			throw new MetafactureException(
+					"Corrupt record payload: unexpected end");
+		}
+		return chunk[position++] & 0xff;
+	}
+
+	private String readString() {
+		int length = 0;
+		int shift = 0;
+		int value;
+		do {
+			value = readByte();
+			length |= (value & 0x7f) << shift;
+			shift += 7;
+		} while ((value & 0x80) != 0);
+		if (length > stringBuffer.length) {
+			stringBuffer = Arrays.copyOf(stringBuffer,
+					Math.max(length, stringBuffer.length * 2));
+		}
+		int copied = 0;
+		while (copied < length) {
+			if (position == limit && !fill()) {
+				throw new MetafactureException(
+						"Corrupt record payload: unexpected end");
+			}
+			final int count = Math.min(length - copied, limit - position);
+			System.arraycopy(chunk, position, stringBuffer, copied, count);
+			position += count;
+			copied += count;
+		}
+		return new String(stringBuffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private boolean fill() {
+		try {
+			do {
+				if (inflater.finished() || inflater.needsInput()
+						|| inflater.needsDictionary()) {
+					return false;
+				}
+				limit = inflater.inflate(chunk);
+			} while (limit == 0);
+		} catch (final DataFormatException e) {
+			throw new MetafactureException("Corrupt record payload", e);
+		}
+		position = 0;
+		return true;
+	}
+
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.DBObject;
+
+/**
+ * Serializes the stream events of a record into a binary encoding and stores
+ * the deflated result as a single binary value in
+ * {@link MongoDBKeys#DATA_KEY}. The record is marked with
+ * {@link MongoDBKeys#BINARY_FORMAT}, the codec and the compression level.
+ * <p>
+ * Each event is written as an opcode byte followed by its arguments.
+ * Strings are written as their UTF-8 length (a variable-length unsigned
+ * integer with seven bits per byte, least significant group first) followed
+ * by their UTF-8 bytes. The end of the payload ends the record.
+ * <p>
+ * The event and output buffers and the {@link Deflater} are reused for all
+ * records. {@link #reset()} releases the native memory of the deflater; a
+ * new one is created for the next record.
+ *
+ * @see CompressedRecordDecoder
+ */
+final class CompressedRecordEncoder implements RecordEncoder {
+
+	/** A literal: name, value. */
+	static final int LITERAL = 1;
+	/** A literal with {@code null} value: name. */
+	static final int NULL_LITERAL = 2;
+	/** The start of an entity: name. */
+	static final int START_ENTITY = 3;
+	/** The end of an entity. */
+	static final int END_ENTITY = 4;
+
+	/**
+	 * Estimated BSON overhead of the record fields besides the compressed
+	 * payload.
+	 */
+	private static final int RECORD_OVERHEAD = 64;
+	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+	private final int level;
+
+	private Deflater deflater;
+
+	private byte[] events = new byte[INITIAL_BUFFER_SIZE];
+	private int eventsLength;
+	private byte[] compressed = new byte[INITIAL_BUFFER_SIZE];
+
+	private EncodedDBObject recordDBObject;
+	private int recordSize;
+
+	CompressedRecordEncoder(final int level) {
+		this.level = level;
+	}
+
+	@Override
+	public void startRecord(final String identifier) {
+		eventsLength = 0;
+		recordDBObject = new EncodedDBObject();
+		if (identifier != null) {
+			recordDBObject.put(MongoDBKeys.RECORD_ID_KEY, identifier);
+		}
+		recordDBObject.put(MongoDBKeys.FORMAT_KEY,
+				Integer.valueOf(MongoDBKeys.BINARY_FORMAT));
+		recordDBObject.put(MongoDBKeys.CODEC_KEY, MongoDBKeys.DEFLATE_CODEC);
+		recordDBObject.put(MongoDBKeys.LEVEL_KEY, Integer.valueOf(level));
+		recordSize = RECORD_OVERHEAD;
+	}
+
+	@Override
+	public void startEntity(final String name) {
+		writeByte(START_ENTITY);
+		writeString(name);
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		if (value == null) {
+			writeByte(NULL_LITERAL);
+			writeString(name);
+		} else {
+			writeByte(LITERAL);
+			writeString(name);
+			writeString(value);
+		}
+	}
+
+	@Override
+	public void endEntity() {
+		writeByte(END_ENTITY);
+	}
+
+	@Override
+	public void putField(final String key, final Object value) {
+		compressEvents();
+		recordDBObject.put(key, value);
+		recordSize += key.length() + RECORD_OVERHEAD;
+	}
+
+	@Override
+	public DBObject endRecord() {
+		compressEvents();
+		recordDBObject.setBSONSize(recordSize);
+		return recordDBObject;
+	}
+
+	@Override
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	@Override
+	public void reset() {
+		eventsLength = 0;
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	private void compressEvents() {
+		if (recordDBObject.containsField(MongoDBKeys.DATA_KEY)) {
+			return;
+		}
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		} else {
+			deflater.reset();
+		}
+		deflater.setInput(events, 0, eventsLength);
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			length += deflater.deflate(compressed, length,
+					compressed.length - length);
+		}
+		recordDBObject.put(MongoDBKeys.DATA_KEY,
+				Arrays.copyOf(compressed, length));
+		recordSize += length;
+	}
+
+	private void writeString(final String string) {
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		int length = bytes.length;
+		while ((length & ~0x7f) != 0) {
+			writeByte((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		writeByte(length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, events, eventsLength, bytes.length);
+		eventsLength += bytes.length;
+	}
+
+	private void writeByte(final int value) {
+		ensureCapacity(1);
+		events[eventsLength] = (byte) value;
+		eventsLength += 1;
+	}
+
+	private void ensureCapacity(final int additional) {
+		if (eventsLength + additional > events.length) {
+			events = Arrays.copyOf(events, Math.max(events.length * 2,
+					eventsLength + additional));
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoWriteException;
+
+/**
+ * Writes records to a {@link MongoDBConnection}, either one request per
+ * record or, if the batch size is greater than one, in batches. Records
+ * are stamped right before they are sent if a {@link ModificationStamper}
+ * is given. If a {@link DeadLetterFile} is given, records which the
+ * database rejects are passed to it instead of failing the write.
+ */
+final class ConnectionRecordSink implements RecordSink {
+
+	private final MongoDBConnection mongoDBConnection;
+	private final ModificationStamper stamper;
+	private final RecordBatch recordBatch;
+	private final DeadLetterFile deadLetters;
+
+	ConnectionRecordSink(final MongoDBConnection mongoDBConnection,
+			final int batchSize, final int batchBytes,
+			final ModificationStamper stamper, final DeadLetterFile deadLetters) {
+		this.mongoDBConnection = mongoDBConnection;
+		this.stamper = stamper;
+		this.deadLetters = deadLetters;
+		if (batchSize > 1) {
+			recordBatch = new RecordBatch(batchSize, batchBytes, stamper);
+		} else {
+			recordBatch = null;
+		}
+	}
+
+	@Override
+	public void write(final DBObject record, final int size) {
+		if (recordBatch == null) {
+			if (stamper != null) {
+				stamper.stamp(record);
+			}
+			save(record);
+		} else if (recordBatch.add(record, size)) {
+			recordBatch.flush(mongoDBConnection, deadLetters);
+		}
+	}
+
+	@Override
+	public void flush() {
+		if (recordBatch != null) {
+			recordBatch.flush(mongoDBConnection, deadLetters);
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+
+	private void save(final DBObject record) {
+		try {
+			mongoDBConnection.save(record);
+		} catch (final MongoWriteException e) {
+			// A write concern error is not a MongoWriteException. As in
+			// RecordBatch, it leaves open whether the record was stored:
+			if (deadLetters == null) {
+				throw e;
+			}
+			deadLetters.write(record, e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops pending records without writing them.
+	 */
+	void discard() {
+		if (recordBatch != null) {
+			recordBatch.clear();
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Builds record documents as trees of {@link BasicDBObject}s. The size of
+ * the documents is estimated from the lengths of names and values.
+ * <p>
+ * In the compact layout, entities are documents whose keys carry the
+ * position of each element (see {@link MongoDBKeys#COMPACT_FORMAT}).
+ * <p>
+ * With a {@link NameDictionary}, keys hold the codes of the names (see
+ * {@link MongoDBKeys#DICTIONARY_KEY}).
+ */
+final class DBObjectRecordEncoder implements RecordEncoder {
+
+	/**
+	 * Estimated BSON overhead of a single entity or literal: type bytes,
+	 * name terminator, length fields and array index key.
+	 */
+	private static final int ELEMENT_OVERHEAD = 16;
+
+	/**
+	 * Estimated BSON overhead of a single entity or literal in the compact
+	 * layout: type byte, position, name terminator and length field.
+	 */
+	private static final int COMPACT_ELEMENT_OVERHEAD = 8;
+
+	private final boolean compact;
+	private final boolean coded;
+	private final Deque<Object> dataStack = new LinkedList<>();
+	private final KeyCache keyCache;
+
+	private EncodedDBObject recordDBObject;
+	private int recordSize;
+
+	DBObjectRecordEncoder() {
+		this(false);
+	}
+
+	DBObjectRecordEncoder(final boolean compact) {
+		this(compact, null);
+	}
+
+	/**
+	 * @param compact true to use the compact layout
+	 * @param dictionary the dictionary encoding entity and literal names or
+	 *        {@code null} to store the names
+	 */
+	DBObjectRecordEncoder(final boolean compact, final NameDictionary dictionary) {
+		this.compact = compact;
+		keyCache = new KeyCache(dictionary);
+		coded = dictionary != null;
+	}
+
+	@Override
+	public void startRecord(final String identifier) {
+		dataStack.clear();
+		recordSize = 0;
+		recordDBObject = new EncodedDBObject();
+		if (identifier != null) {
+			recordDBObject.put(MongoDBKeys.RECORD_ID_KEY, identifier);
+		}
+		if (compact) {
+			recordDBObject.put(MongoDBKeys.FORMAT_KEY,
+					Integer.valueOf(MongoDBKeys.COMPACT_FORMAT));
+		}
+		if (coded) {
+			recordDBObject.put(MongoDBKeys.DICTIONARY_KEY, Boolean.TRUE);
+		}
+		final Object data = newContainer();
+		recordDBObject.put(MongoDBKeys.DATA_KEY, data);
+		dataStack.push(data);
+	}
+
+	@Override
+	public void startEntity(final String name) {
+		final Object entity = newContainer();
+		add(name, entity);
+		dataStack.push(entity);
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		add(name, value);
+		if (value != null) {
+			recordSize += value.length();
+		}
+	}
+
+	private Object newContainer() {
+		if (compact) {
+			return new BasicDBObject();
+		}
+		return new ArrayList<DBObject>();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void add(final String name, final Object value) {
+		final Object container = dataStack.peek();
+		if (compact) {
+			final DBObject entity = (DBObject) container;
+			entity.put(keyCache.toKey(entity.keySet().size(), name), value);
+			recordSize += name.length() + COMPACT_ELEMENT_OVERHEAD;
+		} else {
+			final DBObject element = new BasicDBObject();
+			element.put(keyCache.toKey(name), value);
+			((List<DBObject>) container).add(element);
+			recordSize += name.length() + ELEMENT_OVERHEAD;
+		}
+	}
+
+	@Override
+	public void endEntity() {
+		dataStack.pop();
+	}
+
+	@Override
+	public void putField(final String key, final Object value) {
+		recordDBObject.put(key, value);
+		recordSize += key.length() + ELEMENT_OVERHEAD;
+		if (value instanceof String) {
+			recordSize += ((String) value).length();
+		} else if (value instanceof byte[]) {
+			recordSize += ((byte[]) value).length;
+		}
+	}
+
+	@Override
+	public DBObject endRecord() {
+		dataStack.clear();
+		recordDBObject.setBSONSize(recordSize);
+		return recordDBObject;
+	}
+
+	@Override
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	@Override
+	public void reset() {
+		dataStack.clear();
+	}
+
+}
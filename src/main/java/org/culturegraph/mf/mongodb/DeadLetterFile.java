@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Appends records which the database rejected to a local file, one JSON
+ * document per line: <code>{"error": "...", "record": {...}}</code>. The
+ * record documents are written as they would have been stored. Each line is
+ * flushed immediately. Instances are thread-safe.
+ */
+final class DeadLetterFile {
+
+	static final String ERROR_KEY = "error";
+	static final String RECORD_KEY = "record";
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(DeadLetterFile.class);
+
+	private final Path path;
+
+	private Writer writer;
+	private int records;
+
+	DeadLetterFile(final Path path) {
+		this.path = path;
+	}
+
+	synchronized void write(final DBObject record, final String error) {
+		LOG.warn("Record {} rejected, writing it to {}: {}",
+				record.get(MongoDBKeys.RECORD_ID_KEY), path, error);
+		try {
+			if (writer == null) {
+				writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			}
+			writer.write(new BasicDBObject(ERROR_KEY, error)
+					.append(RECORD_KEY, record).toJson());
+			writer.write('\n');
+			writer.flush();
+		} catch (final IOException e) {
+			throw new MetafactureException("Cannot write dead letter to " + path,
+					e);
+		}
+		records += 1;
+	}
+
+	synchronized void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (final IOException e) {
+			throw new MetafactureException("Cannot close " + path, e);
+		} finally {
+			writer = null;
+		}
+		LOG.warn("{} records written to {}", Integer.valueOf(records), path);
+	}
+
+}
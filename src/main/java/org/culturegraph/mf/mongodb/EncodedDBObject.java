@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import org.culturegraph.mf.mongodb.common.SizedDBObject;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * A record document built by a {@link RecordEncoder}. It carries the size
+ * estimated by the encoder, so that instrumented connections need not
+ * compute it again.
+ */
+final class EncodedDBObject extends BasicDBObject implements SizedDBObject {
+
+	private static final long serialVersionUID = 1L;
+
+	private int bsonSize;
+
+	void setBSONSize(final int bsonSize) {
+		this.bsonSize = bsonSize;
+	}
+
+	@Override
+	public int getBSONSize() {
+		return bsonSize;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+/**
+ * Maps entity and literal names to document keys and back. Records usually
+ * repeat a small set of names, so the keys are cached instead of adding or
+ * removing {@link MongoDBKeys#KEY_PREFIX} for every occurrence. The cache
+ * stops growing once it holds {@value #MAX_SIZE} entries.
+ * <p>
+ * Keys of the compact layout are additionally prefixed with the position of
+ * the element in its entity. Such keys are cached for the first
+ * {@value #CACHED_POSITIONS} positions.
+ * <p>
+ * With a {@link NameDictionary}, keys hold the codes of the names instead
+ * of the names.
+ */
+final class KeyCache {
+
+	static final int MAX_SIZE = 4096;
+	static final int CACHED_POSITIONS = 32;
+
+	private final Map<String, String> keys = new HashMap<>();
+	private final Map<String, String> names = new HashMap<>();
+	private final Map<String, String[]> positionalKeys = new HashMap<>();
+	private final NameDictionary dictionary;
+
+	private int dictionaryVersion;
+
+	KeyCache() {
+		this(null);
+	}
+
+	/**
+	 * @param dictionary the dictionary encoding the names or {@code null} to
+	 *        write names as they are
+	 */
+	KeyCache(final NameDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	String toKey(final String name) {
+		checkDictionaryVersion();
+		String key = keys.get(name);
+		if (key == null) {
+			key = MongoDBKeys.KEY_PREFIX + (dictionary == null ? name
+					: dictionary.encode(name));
+			if (keys.size() < MAX_SIZE) {
+				keys.put(name, key);
+			}
+		}
+		return key;
+	}
+
+	String toKey(final int position, final String name) {
+		checkDictionaryVersion();
+		if (position >= CACHED_POSITIONS) {
+			return position + toKey(name);
+		}
+		String[] keysByPosition = positionalKeys.get(name);
+		if (keysByPosition == null) {
+			keysByPosition = new String[CACHED_POSITIONS];
+			if (positionalKeys.size() < MAX_SIZE) {
+				positionalKeys.put(name, keysByPosition);
+			}
+		}
+		String key = keysByPosition[position];
+		if (key == null) {
+			key = position + toKey(name);
+			keysByPosition[position] = key;
+		}
+		return key;
+	}
+
+	private void checkDictionaryVersion() {
+		if (dictionary != null && dictionary.getVersion() != dictionaryVersion) {
+			// The cached codes may have been voided by a failed commit:
+			keys.clear();
+			positionalKeys.clear();
+			dictionaryVersion = dictionary.getVersion();
+		}
+	}
+
+	/**
+	 * Returns the name of a key of either layout. Keys holding codes are
+	 * not cached; see {@link NameDictionary#decode(String)}.
+	 */
+	String toName(final String key) {
+		String name = names.get(key);
+		if (name == null) {
+			name = key.substring(key.indexOf(MongoDBKeys.KEY_PREFIX)
+					+ MongoDBKeys.KEY_PREFIX.length());
+			if (names.size() < MAX_SIZE) {
+				names.put(key, name);
+			}
+		}
+		return name;
+	}
+
+}
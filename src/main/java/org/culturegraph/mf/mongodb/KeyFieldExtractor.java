@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+/**
+ * Collects the values of literals at configured key paths from the stream
+ * events of a record. A key path is the concatenation of the entity names
+ * from the root entity and the literal name, separated by dots, e.g.
+ * {@code 028A.9}. Each value is returned as a key of the form
+ * {@code path:value}, which is stored in {@link MongoDBKeys#KEYS_KEY}, so
+ * that a single multikey index serves queries on all key paths.
+ * <p>
+ * Entities which do not lead to a key path are skipped without building
+ * their paths.
+ */
+final class KeyFieldExtractor {
+
+	static final char SEPARATOR = ':';
+
+	private static final char PATH_SEPARATOR = '.';
+
+	private final Set<String> paths;
+	private final Set<String> entityPaths = new HashSet<>();
+	private final StringBuilder path = new StringBuilder();
+	private final Set<String> keys = new LinkedHashSet<>();
+
+	private int[] pathLengths = new int[8];
+	private int depth;
+	private int skippedDepth;
+
+	KeyFieldExtractor(final Set<String> paths) {
+		this.paths = paths;
+		for (final String keyPath : paths) {
+			int end = keyPath.indexOf(PATH_SEPARATOR);
+			while (end >= 0) {
+				entityPaths.add(keyPath.substring(0, end));
+				end = keyPath.indexOf(PATH_SEPARATOR, end + 1);
+			}
+		}
+	}
+
+	/**
+	 * Parses a comma-separated list of key paths.
+	 *
+	 * @param paths the key paths
+	 * @return the trimmed key paths
+	 * @throws IllegalArgumentException if a path is empty or contains
+	 *         {@value #SEPARATOR}
+	 */
+	static Set<String> parsePaths(final String paths) {
+		final Set<String> parsedPaths = new LinkedHashSet<>();
+		for (final String keyPath : paths.split(",")) {
+			final String trimmedPath = keyPath.trim();
+			if (trimmedPath.isEmpty() || trimmedPath.indexOf(SEPARATOR) >= 0) {
+				throw new IllegalArgumentException("Invalid key path: '"
+						+ trimmedPath + "'");
+			}
+			parsedPaths.add(trimmedPath);
+		}
+		return parsedPaths;
+	}
+
+	/**
+	 * Converts the path of a field query into a key path by removing the
+	 * {@link MongoDBKeys#KEY_PREFIX} from each name.
+	 *
+	 * @param field the field of a query such as {@code #028A.#9}
+	 * @return the key path such as {@code 028A.9}
+	 */
+	static String toPath(final String field) {
+		final List<String> names = new ArrayList<>(Arrays.asList(field.split(
+				"\\" + PATH_SEPARATOR, -1)));
+		for (int i = 0; i < names.size(); ++i) {
+			if (names.get(i).startsWith(MongoDBKeys.KEY_PREFIX)) {
+				names.set(i, names.get(i).substring(
+						MongoDBKeys.KEY_PREFIX.length()));
+			}
+		}
+		return String.join(String.valueOf(PATH_SEPARATOR), names);
+	}
+
+	static String toKey(final String path, final String value) {
+		return path + SEPARATOR + value;
+	}
+
+	void startRecord() {
+		path.setLength(0);
+		keys.clear();
+		depth = 0;
+		skippedDepth = 0;
+	}
+
+	void startEntity(final String name) {
+		if (skippedDepth > 0) {
+			skippedDepth += 1;
+			return;
+		}
+		final int length = path.length();
+		if (length > 0) {
+			path.append(PATH_SEPARATOR);
+		}
+		path.append(name);
+		if (!entityPaths.contains(path.toString())) {
+			path.setLength(length);
+			skippedDepth = 1;
+			return;
+		}
+		if (depth == pathLengths.length) {
+			pathLengths = Arrays.copyOf(pathLengths, depth * 2);
+		}
+		pathLengths[depth++] = length;
+	}
+
+	void literal(final String name, final String value) {
+		if (skippedDepth > 0 || value == null) {
+			return;
+		}
+		final String literalPath = path.length() == 0 ? name
+				: path.toString() + PATH_SEPARATOR + name;
+		if (paths.contains(literalPath)) {
+			keys.add(toKey(literalPath, value));
+		}
+	}
+
+	void endEntity() {
+		if (skippedDepth > 0) {
+			skippedDepth -= 1;
+			return;
+		}
+		path.setLength(pathLengths[--depth]);
+	}
+
+	/**
+	 * @return the distinct keys of the current record in stream order
+	 */
+	List<String> getKeys() {
+		return new ArrayList<>(keys);
+	}
+
+}
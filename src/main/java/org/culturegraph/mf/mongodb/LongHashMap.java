@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+/**
+ * A compact map from {@code long} keys to {@code long} values using open
+ * addressing. It needs 16 bytes per slot instead of the roughly 100 bytes
+ * per entry of a {@code HashMap<String, Long>}. The key {@code 0} is not
+ * supported. Keys are expected to be well-distributed hashes.
+ */
+final class LongHashMap {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final long EMPTY = 0L;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private long[] values = new long[INITIAL_CAPACITY];
+	private int size;
+
+	/**
+	 * @param key the key, must not be zero
+	 * @param defaultValue the value to return if the key is not mapped
+	 * @return the value mapped to the key, or {@code defaultValue}
+	 */
+	long get(final long key, final long defaultValue) {
+		final int mask = keys.length - 1;
+		for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return values[slot];
+			}
+			if (keys[slot] == EMPTY) {
+				return defaultValue;
+			}
+		}
+	}
+
+	/**
+	 * @param key the key, must not be zero
+	 * @param value the value
+	 */
+	void put(final long key, final long value) {
+		if (key == EMPTY) {
+			throw new IllegalArgumentException("key must not be zero");
+		}
+		if ((size + 1) * 4L > keys.length * 3L) {
+			grow();
+		}
+		final int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size += 1;
+		}
+		values[slot] = value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final long[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldValues.length * 2];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; ++i) {
+			if (oldKeys[i] != EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private static int slot(final long key, final int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+}
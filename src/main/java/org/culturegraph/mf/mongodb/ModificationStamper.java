@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
+
+import com.mongodb.DBObject;
+
+/**
+ * Sets the {@link MongoDBKeys#MODIFIED_KEY} stamp of records right before
+ * they are sent to the database. The records must already hold a date in
+ * this field, which is replaced. In {@link RawDBObject}s the encoded date
+ * is overwritten in place.
+ * <p>
+ * The stamps handed out by one instance never decrease, even if several
+ * threads send records. Stamps of different writers are not ordered.
+ */
+final class ModificationStamper {
+
+	private final AtomicLong lastStamp = new AtomicLong();
+
+	void stamp(final DBObject record) {
+		stamp(record, nextStamp());
+	}
+
+	/**
+	 * Gives all records the same stamp.
+	 *
+	 * @param records the records sent with one request
+	 */
+	void stamp(final List<DBObject> records) {
+		final long stamp = nextStamp();
+		for (final DBObject record : records) {
+			stamp(record, stamp);
+		}
+	}
+
+	private long nextStamp() {
+		return lastStamp.accumulateAndGet(System.currentTimeMillis(), Math::max);
+	}
+
+	private static void stamp(final DBObject record, final long stamp) {
+		if (record instanceof RawDBObject) {
+			final ByteBuffer bytes = ((RawDBObject) record).toRawBsonDocument()
+					.getByteBuffer().asNIO();
+			bytes.order(ByteOrder.LITTLE_ENDIAN).putLong(findStamp(bytes), stamp);
+		} else {
+			record.put(MongoDBKeys.MODIFIED_KEY, new Date(stamp));
+		}
+	}
+
+	/**
+	 * @return the position of the encoded date in the top-level field
+	 *         {@link MongoDBKeys#MODIFIED_KEY}
+	 */
+	private static int findStamp(final ByteBuffer bytes) {
+		final BsonBinaryReader reader = new BsonBinaryReader(bytes.duplicate());
+		try {
+			reader.readStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				if (MongoDBKeys.MODIFIED_KEY.equals(reader.readName())
+						&& reader.getCurrentBsonType() == BsonType.DATE_TIME) {
+					return reader.getBsonInput().getPosition();
+				}
+				reader.skipValue();
+			}
+		} finally {
+			reader.close();
+		}
+		throw new MetafactureException("Record has no modification stamp");
+	}
+
+}
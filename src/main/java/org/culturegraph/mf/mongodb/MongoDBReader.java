@@ -16,18 +16,36 @@
 package org.culturegraph.mf.mongodb;
 
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.ObjectPipe;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.framework.annotations.Description;
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.framework.annotations.Out;
 import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBConnections;
 import org.culturegraph.mf.mongodb.common.MongoDBKeys;
-import org.culturegraph.mf.mongodb.common.SimpleMongoDBConnection;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
@@ -49,6 +67,62 @@
  * {@link MongoDBKeys#RECORD_ID_KEY} or is omitted, the record id will be
  * searched. Note that both entity and literal names must be prefixed with
  * {@link MongoDBKeys#KEY_PREFIX}.
+ * <p>
+ * With {@link #setQuerySyntax(QuerySyntax)} set to
+ * {@link QuerySyntax#EXTENDED}, lines may also contain prefixes, ranges,
+ * {@code AND}, {@code OR}, parentheses, a limit and a sort order, e.g.
+ *
+ * <pre>
+ * (_id:118* OR #028A.#9:[1000 TO 2000}) AND since:1485864000000 limit:100
+ * </pre>
+ *
+ * (see {@link QueryCompiler} for the grammar). Each distinct form of query
+ * is compiled once and kept in a cache of {@link #setPlanCacheSize(int)}
+ * entries.
+ * <p>
+ * The query {@code since:timestamp} retrieves all records whose
+ * {@link MongoDBKeys#MODIFIED_KEY} stamp (see
+ * {@link MongoDBWriter#setModificationStamp(boolean)}) is later than the
+ * given time, ordered by stamp and record id. The time is given in
+ * milliseconds since the epoch or in ISO-8601 format, e.g.
+ * {@code since:2017-01-31T12:00:00Z}. As other writers, and requests of
+ * the same writer which are in flight at the same time, may store records
+ * with stamps earlier than records already stored, delta pulls should ask
+ * for the changes since the start of the previous pull minus a safety
+ * margin. Results of such queries are never
+ * cached.
+ * <p>
+ * If {@link #setLookupBatchSize(int)} is set to a value greater than one,
+ * consecutive record id queries are collected and sent as a single
+ * {@code $in} query. The records of such a batch are emitted in the order
+ * the server returns them unless {@link #setKeepOrder(boolean)} is set, in
+ * which case they are emitted in input order (an id given twice is then
+ * emitted twice as well). A field query sends all pending ids first, so
+ * that field queries and id queries are answered in input order.
+ * {@link #setMissingIds(MissingIds)} controls whether ids without a
+ * record are reported.
+ * <p>
+ * Field queries on the key paths given with {@link #setKeyFields(String)}
+ * are answered from the indexed {@link MongoDBKeys#KEYS_KEY} field written
+ * by {@link MongoDBWriter#setKeyFields(String)} instead of scanning the
+ * collection. They match records in all layouts.
+ * <p>
+ * {@link #setFields(String)} selects the top-level entities and literals to
+ * retrieve. Only these are transferred from the server.
+ * <p>
+ * {@link #setCacheSize(int)} enables a bounded cache of query results, so
+ * that repeated lookups of the same records are answered without querying
+ * the database.
+ * <p>
+ * If {@link #setPrefetch(int)} is set, the results of queries other than
+ * single id lookups are fetched on a background thread while the records
+ * fetched before are emitted, so that waiting for the next cursor batch
+ * overlaps with the work of the downstream modules.
+ * <p>
+ * If {@link #setConcurrency(int)} is set to a value greater than one, the
+ * queries of consecutive lines which are not collected into a batch run in
+ * parallel. Their records are still emitted in input order. Each of them
+ * fetches up to {@link #setPrefetch(int)} documents ahead.
  *
  * @see MongoDBWriter
  * @author Thomas Seidel
@@ -60,9 +134,86 @@
 @Out(StreamReceiver.class)
 public class MongoDBReader implements ObjectPipe<String, StreamReceiver> {
 
-	private final MongoDBConnection mongoDBConnection;
+	/**
+	 * What to do with record ids for which no record was found.
+	 */
+	public enum MissingIds {
+		/** Ignore ids without record. */
+		SKIP,
+		/** Log a warning for each id without record. */
+		REPORT
+	}
+
+	public static final int DEFAULT_LOOKUP_BATCH_SIZE = 1;
+	public static final int DEFAULT_CACHE_SIZE = 0;
+	public static final int DEFAULT_CACHE_TTL = 0;
+	public static final int DEFAULT_CACHE_MAX_RECORDS = 1000;
+	public static final int DEFAULT_STATISTICS_LOG_INTERVAL = 0;
+	public static final int DEFAULT_PLAN_CACHE_SIZE = 1000;
+	public static final int DEFAULT_PREFETCH = 0;
+	public static final int DEFAULT_CURSOR_BATCH_SIZE = 0;
+	public static final int DEFAULT_CONCURRENCY = 1;
+	public static final int DEFAULT_CONCURRENT_PREFETCH = 100;
+
+	/**
+	 * The syntax of query lines.
+	 */
+	public enum QuerySyntax {
+		/** {@code [field:]value} and {@code since:timestamp}. */
+		SIMPLE,
+		/**
+		 * The simple syntax plus quoted values, prefixes, ranges,
+		 * {@code AND}, {@code OR}, parentheses, {@code limit} and
+		 * {@code sort}.
+		 */
+		EXTENDED
+	}
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MongoDBReader.class);
+
+	private static final String IN_OPERATOR = "$in";
+	private static final String MATCH_STAGE = "$match";
+	private static final String ELEMENT_VARIABLE = "element";
+	private static final AggregationOptions AGGREGATION_OPTIONS =
+			AggregationOptions.builder().build();
+
+	private MongoDBConnection mongoDBConnection;
+	private MongoDBConnection namesConnection;
+	private final NameDictionary nameDictionary;
+	private boolean statistics;
+	private int statisticsLogInterval = DEFAULT_STATISTICS_LOG_INTERVAL;
+	private boolean instrumented;
+	private boolean namesInstrumented;
+	private final RecordDecoder recordDecoder;
 
 	private StreamReceiver streamReceiver;
+	private boolean rawBson;
+	private int lookupBatchSize = DEFAULT_LOOKUP_BATCH_SIZE;
+	private boolean keepOrder;
+	private MissingIds missingIds = MissingIds.SKIP;
+	private String fields;
+	private Set<String> fieldNames;
+	private DBObject fieldsFilter;
+	private String keyFields;
+	private Set<String> keyPaths = Collections.emptySet();
+	private int cacheSize = DEFAULT_CACHE_SIZE;
+	private int cacheTtl = DEFAULT_CACHE_TTL;
+	private int cacheMaxRecords = DEFAULT_CACHE_MAX_RECORDS;
+	private RecordCache recordCache;
+	private QuerySyntax querySyntax = QuerySyntax.SIMPLE;
+	private int planCacheSize = DEFAULT_PLAN_CACHE_SIZE;
+	private QueryCompiler queryCompiler;
+	private int prefetch = DEFAULT_PREFETCH;
+	private int cursorBatchSize = DEFAULT_CURSOR_BATCH_SIZE;
+	private ExecutorService prefetchExecutor;
+	private int concurrency = DEFAULT_CONCURRENCY;
+	private ExecutorService queryExecutor;
+	private final Deque<PendingQuery> pendingQueries = new ArrayDeque<>();
+	private final RecordedEvents.Recorder recorder =
+			new RecordedEvents.Recorder();
+
+	private final List<String> pendingIds = new ArrayList<>();
 
 	/**
 	 * Creates an instance of {@code MongoDBReader}.
@@ -72,65 +223,814 @@ public class MongoDBReader implements ObjectPipe<String, StreamReceiver> {
 	 * not be determined.
 	 */
 	public MongoDBReader(final String uri) throws UnknownHostException {
-		mongoDBConnection = new SimpleMongoDBConnection(uri);
+		this(MongoDBConnections.sharedConnection(uri),
+				MongoDBConnections.sharedConnection(NameStore.namesUri(uri)));
 	}
 
 	public MongoDBReader(final MongoDBConnection mongoDBConnection) {
+		this(mongoDBConnection, null);
+	}
+
+	/**
+	 * Creates an instance of {@code MongoDBReader} which reads the name dictionary
+	 * of records written with {@link MongoDBWriter#setDictionary(boolean)}
+	 * from a second collection.
+	 *
+	 * @param mongoDBConnection the connection to the records collection
+	 * @param namesConnection the connection to the collection named by
+	 *        appending {@link MongoDBKeys#NAMES_COLLECTION_SUFFIX} to the
+	 *        records collection, or {@code null}
+	 */
+	public MongoDBReader(final MongoDBConnection mongoDBConnection,
+			final MongoDBConnection namesConnection) {
 		this.mongoDBConnection = mongoDBConnection;
+		this.namesConnection = namesConnection;
+		nameDictionary = new NameDictionary(new NameStore(
+				this::getNamesConnection));
+		recordDecoder = new RecordDecoder(nameDictionary);
+	}
+
+	/**
+	 * Sets whether query results are decoded directly from their BSON
+	 * encoding instead of being materialized as {@link DBObject} trees first.
+	 * <p>
+	 * The default value is false.
+	 *
+	 * @param rawBson true to decode results directly from BSON
+	 */
+	public void setRawBson(final boolean rawBson) {
+		this.rawBson = rawBson;
+	}
+
+	public boolean getRawBson() {
+		return rawBson;
+	}
+
+	/**
+	 * Sets the number of consecutive record id queries which are answered
+	 * with a single {@code $in} query. A value of one disables batching.
+	 * <p>
+	 * The default value is {@value #DEFAULT_LOOKUP_BATCH_SIZE}.
+	 *
+	 * @param lookupBatchSize number of ids per query
+	 */
+	public void setLookupBatchSize(final int lookupBatchSize) {
+		if (lookupBatchSize < 1) {
+			throw new IllegalArgumentException(
+					"lookupBatchSize must be positive");
+		}
+		this.lookupBatchSize = lookupBatchSize;
+	}
+
+	public int getLookupBatchSize() {
+		return lookupBatchSize;
+	}
+
+	/**
+	 * Sets whether records found by a batched id query are emitted in input
+	 * order. Otherwise they are emitted in the order returned by the server.
+	 * <p>
+	 * The default value is false.
+	 *
+	 * @param keepOrder true to emit records in input order
+	 */
+	public void setKeepOrder(final boolean keepOrder) {
+		this.keepOrder = keepOrder;
+	}
+
+	public boolean getKeepOrder() {
+		return keepOrder;
+	}
+
+	/**
+	 * Sets what to do with record ids for which no record was found.
+	 * <p>
+	 * The default value is {@link MissingIds#SKIP}.
+	 *
+	 * @param missingIds the handling of missing ids
+	 */
+	public void setMissingIds(final MissingIds missingIds) {
+		this.missingIds = missingIds;
+	}
+
+	public MissingIds getMissingIds() {
+		return missingIds;
+	}
+
+	/**
+	 * Restricts the emitted records to the top-level entities and literals
+	 * with the given names. The other elements are removed by the server
+	 * with an aggregation pipeline, so they are neither transferred nor
+	 * decoded. The server must support the aggregation operators
+	 * {@code $filter} and {@code $type} (MongoDB 3.4 or later). Records in
+	 * the compact layout additionally require {@code $objectToArray} and
+	 * {@code $arrayToObject} (MongoDB 3.4.4 or later). Compressed records are
+	 * transferred as a whole and filtered while decoding. Results of such
+	 * queries are always decoded as {@link DBObject} trees. Records written
+	 * with a name dictionary are filtered by the codes the names have when the
+	 * first query is processed.
+	 * <p>
+	 * By default, all elements are emitted.
+	 *
+	 * @param fields comma-separated list of entity and literal names
+	 */
+	public void setFields(final String fields) {
+		final Set<String> trimmedNames = new LinkedHashSet<>();
+		for (final String name : fields.split(",")) {
+			final String trimmedName = name.trim();
+			if (trimmedName.isEmpty() || trimmedName.contains(".")
+					|| trimmedName.startsWith("$")) {
+				throw new IllegalArgumentException("Invalid field name: '"
+						+ trimmedName + "'");
+			}
+			trimmedNames.add(trimmedName);
+		}
+		this.fields = fields;
+		fieldNames = trimmedNames;
+		fieldsFilter = null;
+		recordDecoder.setFields(trimmedNames);
+	}
+
+	public String getFields() {
+		return fields;
+	}
+
+	/**
+	 * Sets the key paths which {@link MongoDBWriter#setKeyFields(String)}
+	 * copied into {@link MongoDBKeys#KEYS_KEY}. Field queries on these paths,
+	 * e.g. {@code #028A.#9:value} for the key path {@code 028A.9}, are
+	 * answered with the index on {@link MongoDBKeys#KEYS_KEY}. Records
+	 * written without the key paths are not found by such queries.
+	 * <p>
+	 * The default value is no key paths.
+	 *
+	 * @param keyFields comma-separated key paths
+	 */
+	public void setKeyFields(final String keyFields) {
+		this.keyFields = keyFields;
+		keyPaths = KeyFieldExtractor.parsePaths(keyFields);
+		queryCompiler = null;
+	}
+
+	public String getKeyFields() {
+		return keyFields;
+	}
+
+	/**
+	 * Sets the syntax of query lines. The extended syntax gives characters
+	 * such as {@code *}, {@code (} and spaces a meaning, so record ids
+	 * containing them must be quoted.
+	 * <p>
+	 * The default value is {@link QuerySyntax#SIMPLE}.
+	 *
+	 * @param querySyntax the syntax of query lines
+	 */
+	public void setQuerySyntax(final QuerySyntax querySyntax) {
+		this.querySyntax = querySyntax;
+		queryCompiler = null;
+	}
+
+	public QuerySyntax getQuerySyntax() {
+		return querySyntax;
+	}
+
+	/**
+	 * Sets the number of compiled query forms which are kept. Lines which
+	 * differ only in their values share a compiled form, so a small cache
+	 * serves most inputs.
+	 * <p>
+	 * The default value is {@value #DEFAULT_PLAN_CACHE_SIZE}.
+	 *
+	 * @param planCacheSize number of compiled query forms, at least one
+	 */
+	public void setPlanCacheSize(final int planCacheSize) {
+		if (planCacheSize < 1) {
+			throw new IllegalArgumentException("planCacheSize must be positive");
+		}
+		this.planCacheSize = planCacheSize;
+		queryCompiler = null;
+	}
+
+	public int getPlanCacheSize() {
+		return planCacheSize;
+	}
+
+	public long getPlanCacheHits() {
+		return queryCompiler == null ? 0 : queryCompiler.getHits();
+	}
+
+	public long getPlanCacheMisses() {
+		return queryCompiler == null ? 0 : queryCompiler.getMisses();
+	}
+
+	private QueryCompiler getQueryCompiler() {
+		if (queryCompiler == null) {
+			queryCompiler = new QueryCompiler(keyPaths,
+					querySyntax == QuerySyntax.EXTENDED, planCacheSize);
+		}
+		return queryCompiler;
+	}
+
+	/**
+	 * Sets the number of query results kept in an in-process LRU cache. The
+	 * cache is keyed by the parsed query and holds the decoded records as a
+	 * compact recording of their events, which is replayed on a hit without
+	 * querying or decoding again. Queries without result are cached as well.
+	 * The numbers of hits, misses and evictions are logged when the stream
+	 * is closed. A value of zero disables the cache.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CACHE_SIZE}.
+	 * <p>
+	 * This parameter must only be changed before the first query is
+	 * processed.
+	 *
+	 * @param cacheSize maximum number of cached query results
+	 */
+	public void setCacheSize(final int cacheSize) {
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("cacheSize must not be negative");
+		}
+		this.cacheSize = cacheSize;
+		recordCache = null;
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Sets the number of seconds after which a cached query result expires.
+	 * A value of zero keeps results until they are evicted.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CACHE_TTL}.
+	 * <p>
+	 * This parameter must only be changed before the first query is
+	 * processed.
+	 *
+	 * @param cacheTtl time to live of cached results in seconds
+	 */
+	public void setCacheTtl(final int cacheTtl) {
+		if (cacheTtl < 0) {
+			throw new IllegalArgumentException("cacheTtl must not be negative");
+		}
+		this.cacheTtl = cacheTtl;
+		recordCache = null;
+	}
+
+	public int getCacheTtl() {
+		return cacheTtl;
+	}
+
+	/**
+	 * Sets the maximum number of records in a cached query result. Results
+	 * are recorded while they are decoded; once a result exceeds this number,
+	 * the records recorded so far and the remaining ones are emitted directly
+	 * and the result is not cached. This bounds the memory of each cache
+	 * entry.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CACHE_MAX_RECORDS}.
+	 *
+	 * @param cacheMaxRecords maximum number of records of a cached result
+	 */
+	public void setCacheMaxRecords(final int cacheMaxRecords) {
+		if (cacheMaxRecords < 1) {
+			throw new IllegalArgumentException(
+					"cacheMaxRecords must be at least one");
+		}
+		this.cacheMaxRecords = cacheMaxRecords;
+	}
+
+	public int getCacheMaxRecords() {
+		return cacheMaxRecords;
+	}
+
+	public long getCacheHits() {
+		return recordCache == null ? 0 : recordCache.getHits();
+	}
+
+	public long getCacheMisses() {
+		return recordCache == null ? 0 : recordCache.getMisses();
+	}
+
+	public long getCacheEvictions() {
+		return recordCache == null ? 0 : recordCache.getEvictions();
+	}
+
+	/**
+	 * Sets the number of documents fetched ahead on a background thread.
+	 * The documents of a query are then fetched while the documents before
+	 * them are decoded and emitted, which hides the latency of the database
+	 * behind the work of the downstream modules. Lookups of a single record
+	 * id are not prefetched. A value of zero fetches the documents on the
+	 * thread calling {@link #process(String)}. With
+	 * {@link #setConcurrency(int)}, this is the number of documents each
+	 * running query fetches ahead.
+	 * <p>
+	 * The default value is {@value #DEFAULT_PREFETCH}.
+	 * <p>
+	 * This parameter must only be changed before the first query is
+	 * processed.
+	 *
+	 * @param prefetch number of documents fetched ahead
+	 */
+	public void setPrefetch(final int prefetch) {
+		if (prefetch < 0) {
+			throw new IllegalArgumentException("prefetch must not be negative");
+		}
+		this.prefetch = prefetch;
+	}
+
+	public int getPrefetch() {
+		return prefetch;
+	}
+
+	/**
+	 * Sets the number of documents the server returns per cursor batch. With
+	 * {@link #setPrefetch(int)}, a prefetch of at least the batch size keeps
+	 * the next batch in flight while the current one is emitted.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CURSOR_BATCH_SIZE}, i.e. the
+	 * server default.
+	 *
+	 * @param cursorBatchSize documents per cursor batch or zero
+	 */
+	public void setCursorBatchSize(final int cursorBatchSize) {
+		if (cursorBatchSize < 0) {
+			throw new IllegalArgumentException(
+					"cursorBatchSize must not be negative");
+		}
+		this.cursorBatchSize = cursorBatchSize;
+	}
+
+	public int getCursorBatchSize() {
+		return cursorBatchSize;
+	}
+
+	/**
+	 * Sets the number of queries which run at the same time. The queries of
+	 * consecutive lines are sent by a pool of this many threads, and the
+	 * records are emitted in input order as soon as the results of all
+	 * earlier lines have been emitted. Each thread fetches up to
+	 * {@link #setPrefetch(int)} documents of its query ahead, or
+	 * {@value #DEFAULT_CONCURRENT_PREFETCH} if prefetching is not set, and
+	 * then waits until they are emitted, so at most this many documents per
+	 * query are held in memory. Id lookups collected by
+	 * {@link #setLookupBatchSize(int)} and cached results wait for all
+	 * running queries. A value of one runs each query on the thread calling
+	 * {@link #process(String)}.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CONCURRENCY}.
+	 * <p>
+	 * This parameter must only be changed before the first query is
+	 * processed.
+	 *
+	 * @param concurrency number of parallel queries
+	 */
+	public void setConcurrency(final int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+		this.concurrency = concurrency;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	private RecordCache getRecordCache() {
+		if (recordCache == null && cacheSize > 0) {
+			recordCache = new RecordCache(cacheSize, cacheTtl);
+		}
+		return recordCache;
+	}
+
+	/**
+	 * Sets whether call counts, documents, bytes and latencies of the
+	 * database operations are recorded. The statistics are exported as JMX
+	 * MBeans in the domain {@code org.culturegraph.mf.mongodb} and logged
+	 * when the stream is closed. They show whether a run is bound by the
+	 * database or by the rest of the pipeline.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first query is processed.
+	 *
+	 * @param statistics true to record statistics
+	 * @see MongoDBConnections#instrumentedConnection(MongoDBConnection, String, int)
+	 */
+	public void setStatistics(final boolean statistics) {
+		this.statistics = statistics;
+	}
+
+	public boolean getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Sets the number of seconds between log lines with the current
+	 * statistics. A value of zero logs the statistics only when the stream
+	 * is closed. Has no effect unless {@link #setStatistics(boolean)} is set.
+	 * <p>
+	 * The default value is {@value #DEFAULT_STATISTICS_LOG_INTERVAL}.
+	 *
+	 * @param statisticsLogInterval seconds between log lines
+	 */
+	public void setStatisticsLogInterval(final int statisticsLogInterval) {
+		if (statisticsLogInterval < 0) {
+			throw new IllegalArgumentException(
+					"statisticsLogInterval must not be negative");
+		}
+		this.statisticsLogInterval = statisticsLogInterval;
+	}
+
+	public int getStatisticsLogInterval() {
+		return statisticsLogInterval;
+	}
+
+	private MongoDBConnection getConnection() {
+		if (statistics && !instrumented) {
+			mongoDBConnection = MongoDBConnections.instrumentedConnection(
+					mongoDBConnection, getStatisticsName(), statisticsLogInterval);
+			instrumented = true;
+		}
+		return mongoDBConnection;
+	}
+
+	private MongoDBConnection getNamesConnection() {
+		if (statistics && !namesInstrumented && namesConnection != null) {
+			namesConnection = MongoDBConnections.instrumentedConnection(
+					namesConnection, getStatisticsName()
+							+ MongoDBKeys.NAMES_COLLECTION_SUFFIX,
+					statisticsLogInterval);
+			namesInstrumented = true;
+		}
+		return namesConnection;
+	}
+
+	private String getStatisticsName() {
+		return "from-mongodb@"
+				+ Integer.toHexString(System.identityHashCode(this));
+	}
+
+	private DBObject createFieldsFilter() {
+		final BasicDBList nameConditions = new BasicDBList();
+		final BasicDBList codeConditions = new BasicDBList();
+		final BasicDBList keyNames = new BasicDBList();
+		final BasicDBList keyCodes = new BasicDBList();
+		for (final String name : fieldNames) {
+			nameConditions.add(isPresent(name));
+			keyNames.add(name);
+			final String code = nameDictionary.find(name);
+			if (code != null) {
+				codeConditions.add(isPresent(code));
+				keyCodes.add(code);
+			}
+		}
+		final DBObject filter = new BasicDBObject("input",
+				"$" + MongoDBKeys.DATA_KEY)
+				.append("as", ELEMENT_VARIABLE)
+				.append("cond", ifCoded(codeConditions.isEmpty() ? Boolean.FALSE
+						: new BasicDBObject("$or", codeConditions),
+						new BasicDBObject("$or", nameConditions)));
+		final BasicDBList isObject = new BasicDBList();
+		isObject.add(new BasicDBObject("$type", "$" + MongoDBKeys.DATA_KEY));
+		isObject.add("object");
+		final BasicDBList objectFilter = new BasicDBList();
+		objectFilter.add(new BasicDBObject("$eq", isObject));
+		objectFilter.add(createCompactFieldsFilter(ifCoded(keyCodes, keyNames)));
+		objectFilter.add("$" + MongoDBKeys.DATA_KEY);
+		final BasicDBList dataFilter = new BasicDBList();
+		dataFilter.add(new BasicDBObject("$isArray", "$" + MongoDBKeys.DATA_KEY));
+		dataFilter.add(new BasicDBObject("$filter", filter));
+		dataFilter.add(new BasicDBObject("$cond", objectFilter));
+		return new BasicDBObject("$project", new BasicDBObject(
+				MongoDBKeys.FORMAT_KEY, Integer.valueOf(1))
+				.append(MongoDBKeys.CODEC_KEY, Integer.valueOf(1))
+				.append(MongoDBKeys.DICTIONARY_KEY, Integer.valueOf(1))
+				.append(MongoDBKeys.DATA_KEY, new BasicDBObject("$cond",
+						dataFilter)));
+	}
+
+	private static DBObject isPresent(final String key) {
+		final BasicDBList isPresent = new BasicDBList();
+		isPresent.add(new BasicDBObject("$type", "$$" + ELEMENT_VARIABLE + "."
+				+ MongoDBKeys.KEY_PREFIX + key));
+		isPresent.add("missing");
+		return new BasicDBObject("$ne", isPresent);
+	}
+
+	/**
+	 * Selects the expression for records holding codes of the name
+	 * dictionary or the one for records holding names.
+	 */
+	private static DBObject ifCoded(final Object codes, final Object names) {
+		final BasicDBList isCoded = new BasicDBList();
+		isCoded.add("$" + MongoDBKeys.DICTIONARY_KEY);
+		isCoded.add(Boolean.TRUE);
+		final BasicDBList condition = new BasicDBList();
+		condition.add(new BasicDBObject("$eq", isCoded));
+		condition.add(codes);
+		condition.add(names);
+		return new BasicDBObject("$cond", condition);
+	}
+
+	/**
+	 * Filters the data document of the compact layout by converting it into
+	 * an array of key/value pairs and comparing the part of each key after
+	 * the position prefix.
+	 */
+	private static DBObject createCompactFieldsFilter(final Object names) {
+		final String key = "$$" + ELEMENT_VARIABLE + ".k";
+		final BasicDBList prefixIndex = new BasicDBList();
+		prefixIndex.add(key);
+		prefixIndex.add(MongoDBKeys.KEY_PREFIX);
+		final BasicDBList prefixEnd = new BasicDBList();
+		prefixEnd.add(new BasicDBObject("$indexOfBytes", prefixIndex));
+		prefixEnd.add(Integer.valueOf(MongoDBKeys.KEY_PREFIX.length()));
+		final BasicDBList name = new BasicDBList();
+		name.add(key);
+		name.add(new BasicDBObject("$add", prefixEnd));
+		name.add(Integer.valueOf(-1));
+		final BasicDBList isSelected = new BasicDBList();
+		isSelected.add(new BasicDBObject("$substrBytes", name));
+		isSelected.add(names);
+		final DBObject filter = new BasicDBObject("input",
+				new BasicDBObject("$objectToArray", "$" + MongoDBKeys.DATA_KEY))
+				.append("as", ELEMENT_VARIABLE)
+				.append("cond", new BasicDBObject(IN_OPERATOR, isSelected));
+		return new BasicDBObject("$arrayToObject", new BasicDBObject("$filter",
+				filter));
 	}
 
 	@Override
 	public final void process(final String obj) {
-		final DBObject dbQuery = parseQuery(obj);
-		final DBCursor dbCursor = mongoDBConnection.find(dbQuery);
-		while (dbCursor.hasNext()) {
-			final DBObject dbObject = dbCursor.next();
-			streamReceiver.startRecord((String) dbObject
-					.get(MongoDBKeys.RECORD_ID_KEY));
-			processBasicDBList((BasicDBList) dbObject.get(MongoDBKeys.DATA_KEY));
-			streamReceiver.endRecord();
-		}
-	}
-
-	private DBObject parseQuery(final String query) {
-		final String[] tokens = query.split(":", 2);
-		final DBObject dbQuery = new BasicDBObject();
-		if (tokens.length == 1) {
-			dbQuery.put(MongoDBKeys.RECORD_ID_KEY, tokens[0]);
-		} else {
-			dbQuery.put(MongoDBKeys.DATA_KEY + "." + tokens[0], tokens[1]);
-		}
-		return dbQuery;
-	}
-
-	private void processBasicDBList(final BasicDBList basicDBList) {
-		for (final Object object : basicDBList) {
-			final DBObject dbObject = (DBObject) object;
-			for (final String key : dbObject.keySet()) {
-				final Object value = dbObject.get(key);
-				if (value instanceof BasicDBList) {
-					streamReceiver.startEntity(key
-							.substring(MongoDBKeys.KEY_PREFIX.length()));
-					processBasicDBList((BasicDBList) value);
-					streamReceiver.endEntity();
+		if (fieldNames != null && fieldsFilter == null) {
+			// Built here as the query threads must not use the dictionary
+			fieldsFilter = createFieldsFilter();
+		}
+		final CompiledQuery query = getQueryCompiler().compile(obj);
+		final String id = query.getId();
+		final RecordCache cache = query.isCacheable() ? getRecordCache() : null;
+		if (cache != null) {
+			final RecordedEvents cached = cache.get(query.getCacheKey());
+			if (cached != null) {
+				if (id == null || keepOrder) {
+					processPendingIds();
+				}
+				emitPendingQueries();
+				replay(cached, id);
+				return;
+			}
+		}
+		if (id != null && lookupBatchSize > 1) {
+			pendingIds.add(id);
+			if (pendingIds.size() >= lookupBatchSize) {
+				processPendingIds();
+			}
+			return;
+		}
+		processPendingIds();
+		if (concurrency > 1) {
+			submit(query);
+			return;
+		}
+		final Cursor dbCursor = query(query);
+		try {
+			emitResult(query, dbCursor);
+		} finally {
+			dbCursor.close();
+		}
+	}
+
+	private void emitResult(final CompiledQuery query,
+			final Iterator<DBObject> records) {
+		final RecordCache cache = query.isCacheable() ? getRecordCache() : null;
+		StreamReceiver receiver = cache == null ? streamReceiver : recorder;
+		boolean found = false;
+		while (records.hasNext()) {
+			if (receiver == recorder
+					&& recorder.getRecords() >= cacheMaxRecords) {
+				// Too large to cache:
+				recorder.finish().replay(streamReceiver);
+				receiver = streamReceiver;
+			}
+			recordDecoder.decode(records.next(), receiver);
+			found = true;
+		}
+		if (receiver == recorder) {
+			final RecordedEvents events = recorder.finish();
+			cache.put(query.getCacheKey(), events);
+			events.replay(streamReceiver);
+		}
+		if (!found && query.getId() != null) {
+			reportMissingId(query.getId());
+		}
+	}
+
+	/**
+	 * Runs the query on a worker thread. If {@link #setConcurrency(int)}
+	 * queries are running, the result of the oldest one is awaited and
+	 * emitted first.
+	 */
+	private void submit(final CompiledQuery query) {
+		if (pendingQueries.size() >= concurrency) {
+			emitResult(pendingQueries.removeFirst());
+		}
+		if (queryExecutor == null) {
+			queryExecutor = Executors.newFixedThreadPool(concurrency, runnable -> {
+				final Thread thread = new Thread(runnable, "mongodb-query");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		// Instrument the connection on this thread before the workers use it:
+		getConnection();
+		pendingQueries.addLast(new PendingQuery(query, new PrefetchingCursor(
+				() -> openCursor(query), prefetch > 0 ? prefetch
+						: DEFAULT_CONCURRENT_PREFETCH, queryExecutor)));
+		while (!pendingQueries.isEmpty()
+				&& pendingQueries.getFirst().cursor.isDone()) {
+			emitResult(pendingQueries.removeFirst());
+		}
+	}
+
+	private void emitResult(final PendingQuery pendingQuery) {
+		try {
+			emitResult(pendingQuery.query, pendingQuery.cursor);
+		} catch (final RuntimeException e) {
+			cancelPendingQueries();
+			throw e;
+		} finally {
+			pendingQuery.cursor.close();
+		}
+	}
+
+	private void emitPendingQueries() {
+		while (!pendingQueries.isEmpty()) {
+			emitResult(pendingQueries.removeFirst());
+		}
+	}
+
+	private void cancelPendingQueries() {
+		for (final PendingQuery pendingQuery : pendingQueries) {
+			pendingQuery.cursor.close();
+		}
+		pendingQueries.clear();
+	}
+
+	private void processPendingIds() {
+		if (pendingIds.isEmpty()) {
+			return;
+		}
+		emitPendingQueries();
+		final Cursor dbCursor = query(new CompiledQuery(new BasicDBObject(
+				MongoDBKeys.RECORD_ID_KEY, new BasicDBObject(IN_OPERATOR,
+						new ArrayList<>(pendingIds))), null, 0, null, true));
+		final Map<Object, DBObject> records = new HashMap<>();
+		try {
+			while (dbCursor.hasNext()) {
+				final DBObject record = dbCursor.next();
+				final Object id = record.get(MongoDBKeys.RECORD_ID_KEY);
+				if (keepOrder) {
+					records.put(id, record);
 				} else {
-					streamReceiver.literal(
-							key.substring(MongoDBKeys.KEY_PREFIX.length()),
-							(String) value);
+					emit(id, record);
+					records.put(id, null);
+				}
+			}
+		} finally {
+			dbCursor.close();
+		}
+		for (final String id : pendingIds) {
+			if (!records.containsKey(id)) {
+				if (recordCache != null) {
+					recordCache.put(idQuery(id), RecordedEvents.EMPTY);
 				}
+				reportMissingId(id);
+			} else if (keepOrder) {
+				emit(id, records.get(id));
+			}
+		}
+		pendingIds.clear();
+	}
+
+	private void emit(final Object id, final DBObject record) {
+		if (recordCache == null) {
+			recordDecoder.decode(record, streamReceiver);
+			return;
+		}
+		recordDecoder.decode(record, recorder);
+		final RecordedEvents events = recorder.finish();
+		recordCache.put(idQuery(id), events);
+		events.replay(streamReceiver);
+	}
+
+	private void replay(final RecordedEvents events, final String id) {
+		events.replay(streamReceiver);
+		if (events.isEmpty() && id != null) {
+			reportMissingId(id);
+		}
+	}
+
+	private static DBObject idQuery(final Object id) {
+		return new BasicDBObject(MongoDBKeys.RECORD_ID_KEY, id);
+	}
+
+	private Cursor query(final CompiledQuery query) {
+		final Cursor cursor = openCursor(query);
+		if (prefetch == 0 || query.getId() != null) {
+			return cursor;
+		}
+		if (prefetchExecutor == null) {
+			prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "mongodb-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return new PrefetchingCursor(cursor, prefetch, prefetchExecutor);
+	}
+
+	private Cursor openCursor(final CompiledQuery query) {
+		if (fieldsFilter != null) {
+			final List<DBObject> pipeline = new ArrayList<>(4);
+			pipeline.add(new BasicDBObject(MATCH_STAGE, query.getFilter()));
+			if (query.getSort() != null) {
+				pipeline.add(new BasicDBObject("$sort", query.getSort()));
 			}
+			if (query.getLimit() > 0) {
+				pipeline.add(new BasicDBObject("$limit",
+						Integer.valueOf(query.getLimit())));
+			}
+			pipeline.add(fieldsFilter);
+			if (cursorBatchSize > 0) {
+				return getConnection().aggregate(pipeline, AggregationOptions
+						.builder().batchSize(Integer.valueOf(cursorBatchSize)).build());
+			}
+			return getConnection().aggregate(pipeline, AGGREGATION_OPTIONS);
+		}
+		final DBCursor dbCursor = getConnection().find(query.getFilter());
+		if (rawBson) {
+			dbCursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+		}
+		if (cursorBatchSize > 0) {
+			dbCursor.batchSize(cursorBatchSize);
+		}
+		if (query.getSort() != null) {
+			dbCursor.sort(query.getSort());
+		}
+		if (query.getLimit() > 0) {
+			dbCursor.limit(query.getLimit());
+		}
+		return dbCursor;
+	}
+
+	private void reportMissingId(final String id) {
+		if (missingIds == MissingIds.REPORT) {
+			LOG.warn("No record found for id {}", id);
 		}
 	}
 
 	@Override
 	public final void resetStream() {
+		processPendingIds();
+		emitPendingQueries();
+		shutdownExecutors();
+		recordDecoder.reset();
 		streamReceiver.resetStream();
 	}
 
 	@Override
 	public final void closeStream() {
+		processPendingIds();
+		emitPendingQueries();
+		if (recordCache != null) {
+			LOG.info("Record cache: {} hits, {} misses, {} evictions, {} entries",
+					recordCache.getHits(), recordCache.getMisses(),
+					recordCache.getEvictions(), recordCache.size());
+		}
+		if (queryCompiler != null) {
+			LOG.info("Query plan cache: {} hits, {} misses",
+					queryCompiler.getHits(), queryCompiler.getMisses());
+		}
+		shutdownExecutors();
+		recordDecoder.reset();
 		streamReceiver.closeStream();
 		mongoDBConnection.close();
+		if (namesConnection != null) {
+			namesConnection.close();
+		}
+	}
+
+	private void shutdownExecutors() {
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdownNow();
+			prefetchExecutor = null;
+		}
+		if (queryExecutor != null) {
+			queryExecutor.shutdownNow();
+			queryExecutor = null;
+		}
 	}
 
 	public final <R extends StreamReceiver> R setReceiver(final R receiver) {
@@ -138,4 +1038,19 @@ public final <R extends StreamReceiver> R setReceiver(final R receiver) {
 		return receiver;
 	}
 
+	/**
+	 * A query running on a worker thread.
+	 */
+	private static final class PendingQuery {
+
+		final CompiledQuery query;
+		final PrefetchingCursor cursor;
+
+		PendingQuery(final CompiledQuery query, final PrefetchingCursor cursor) {
+			this.query = query;
+			this.cursor = cursor;
+		}
+
+	}
+
 }
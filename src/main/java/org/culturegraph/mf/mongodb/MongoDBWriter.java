@@ -16,18 +16,23 @@
 package org.culturegraph.mf.mongodb;
 
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.zip.Deflater;
 
 import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.framework.annotations.Description;
 import org.culturegraph.mf.framework.annotations.In;
 import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBConnections;
 import org.culturegraph.mf.mongodb.common.MongoDBKeys;
-import org.culturegraph.mf.mongodb.common.SimpleMongoDBConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -76,6 +81,37 @@
  *   ]
  * }
  * </pre>
+ * <p>
+ * With {@link #setLayout(Layout)} set to {@link Layout#COMPACT}, the same
+ * stream is stored as
+ *
+ * <pre>
+ * { "_id" : "42",
+ *   "format" : 2,
+ *   "data" : {
+ *     "0#a" : "value1",
+ *     "1#A" : {
+ *       "0#B" : {
+ *         "0#b" : "value2"
+ *       },
+ *       "1#a" : "value3"
+ *     }
+ *   }
+ * }
+ * </pre>
+ * <p>
+ * With {@link #setCompression(Compression)} set to
+ * {@link Compression#DEFLATE}, the stream events are serialized into a
+ * binary encoding, deflated and stored as a single binary value in
+ * {@code data}. Such records are marked with {@code "format" : 3} and carry
+ * the codec and compression level in {@code codec} and {@code level}.
+ * <p>
+ * With {@link #setDictionary(boolean)}, the keys of both layouts hold short
+ * codes instead of the entity and literal names, e.g. {@code "#1a"} instead
+ * of {@code "#028A"}. The codes are the positions of the names in a
+ * dictionary stored in a separate collection (see
+ * {@link MongoDBKeys#NAMES_COLLECTION_SUFFIX}). Such records are marked with
+ * {@code "dictionary" : true}.
  *
  * @see MongoDBKeys
  * @see MongoDBReader
@@ -87,10 +123,102 @@
 @In(StreamReceiver.class)
 public class MongoDBWriter implements StreamReceiver {
 
-	private final MongoDBConnection mongoDBConnection;
+	public static final int DEFAULT_BATCH_SIZE = 1;
+	public static final int DEFAULT_BATCH_BYTES = 8 * 1024 * 1024;
+	public static final int DEFAULT_FLUSH_THREADS = 0;
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_HASH_LOOKUP_BATCH_SIZE = 1000;
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+	public static final int DEFAULT_STATISTICS_LOG_INTERVAL = 0;
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+	public static final int DEFAULT_RETRIES = 0;
+	public static final int DEFAULT_RETRY_BACKOFF = 1000;
 
-	private DBObject recordDBObject;
-	private final Deque<List<DBObject>> dataStack = new LinkedList<>();
+	/**
+	 * The document layout of written records.
+	 */
+	public enum Layout {
+		/** Entities are arrays of single-key documents. */
+		LEGACY,
+		/**
+		 * Entities are documents with one position-prefixed key per element
+		 * (see {@link MongoDBKeys#COMPACT_FORMAT}).
+		 */
+		COMPACT
+	}
+
+	/**
+	 * The compression of record payloads.
+	 */
+	public enum Compression {
+		/** Entities and literals are stored as queryable BSON. */
+		NONE,
+		/**
+		 * The stream events are stored as a single deflated binary value (see
+		 * {@link MongoDBKeys#BINARY_FORMAT}).
+		 */
+		DEFLATE
+	}
+
+	/**
+	 * Where the content hashes of stored records are taken from when
+	 * unchanged records are skipped.
+	 */
+	public enum HashLookup {
+		/** Load the hashes of all records before writing the first record. */
+		PRELOAD,
+		/** Look up the hashes of each batch of records with one query. */
+		BATCH
+	}
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MongoDBWriter.class);
+
+	private MongoDBConnection mongoDBConnection;
+	private MongoDBConnection namesConnection;
+	private boolean statistics;
+	private int statisticsLogInterval = DEFAULT_STATISTICS_LOG_INTERVAL;
+	private boolean instrumented;
+	private boolean namesConnectionWrapped;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int batchBytes = DEFAULT_BATCH_BYTES;
+	private int flushThreads = DEFAULT_FLUSH_THREADS;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private boolean rawBson;
+	private Layout layout = Layout.LEGACY;
+	private Compression compression = Compression.NONE;
+	private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+	private boolean dictionary;
+	private boolean skipUnchanged;
+	private HashLookup hashLookup = HashLookup.BATCH;
+	private int hashLookupBatchSize = DEFAULT_HASH_LOOKUP_BATCH_SIZE;
+	private boolean modificationStamp;
+	private String keyFields;
+	private KeyFieldExtractor keyFieldExtractor;
+	private RecordSink recordSink;
+	private RecordHasher recordHasher;
+
+	private String checkpointFile;
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private boolean resume;
+	private int retries = DEFAULT_RETRIES;
+	private int retryBackoff = DEFAULT_RETRY_BACKOFF;
+	private String deadLetterFile;
+	private CheckpointFile checkpoint;
+	private CheckpointFile.Checkpoint resumePosition;
+	private boolean positionLoaded;
+	private long recordCount;
+	private long checkpointedCount;
+	private String recordId;
+	private boolean skipping;
+	private DeadLetterFile deadLetters;
+
+	private RecordEncoder recordEncoder = new DBObjectRecordEncoder();
+	private NameDictionary nameDictionary;
+	private final RecordedEvents.Recorder recorder =
+			new RecordedEvents.Recorder();
+	private final StreamReceiver encoderReceiver = new EncoderReceiver();
 
 	/**
 	 * Create an instance of {@code MongoDBWriter}.
@@ -100,66 +228,926 @@ public class MongoDBWriter implements StreamReceiver {
 	 * not be determined.
 	 */
 	public MongoDBWriter(final String uri) throws UnknownHostException {
-		mongoDBConnection = new SimpleMongoDBConnection(uri);
+		this(MongoDBConnections.sharedConnection(uri),
+				MongoDBConnections.sharedConnection(NameStore.namesUri(uri)));
 	}
 
 	public MongoDBWriter(final MongoDBConnection mongoDBConnection) {
+		this(mongoDBConnection, null);
+	}
+
+	/**
+	 * Create an instance of {@code MongoDBWriter} which keeps the name
+	 * dictionary (see {@link #setDictionary(boolean)}) in a second
+	 * collection.
+	 *
+	 * @param mongoDBConnection the connection to the records collection
+	 * @param namesConnection the connection to the collection named by
+	 *        appending {@link MongoDBKeys#NAMES_COLLECTION_SUFFIX} to the
+	 *        records collection, or {@code null}
+	 */
+	public MongoDBWriter(final MongoDBConnection mongoDBConnection,
+			final MongoDBConnection namesConnection) {
 		this.mongoDBConnection = mongoDBConnection;
+		this.namesConnection = namesConnection;
+	}
+
+	/**
+	 * Sets the maximum number of records written with one bulk request. A
+	 * value of one disables bulk writes. Records are collected and written
+	 * with an unordered bulk upsert once either the batch size or the byte
+	 * budget set with {@link #setBatchBytes(int)} is reached. Pending records
+	 * are written on {@link #resetStream()} and {@link #closeStream()}. If a
+	 * bulk write fails, the error message names the identifiers of the
+	 * records which could not be written.
+	 * <p>
+	 * The default value is {@value #DEFAULT_BATCH_SIZE}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param batchSize number of records per bulk request
+	 */
+	public void setBatchSize(final int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the (estimated) number of bytes after which a bulk request is sent
+	 * even if the batch size has not been reached yet. Only used if the batch
+	 * size is greater than one.
+	 * <p>
+	 * The default value is {@value #DEFAULT_BATCH_BYTES}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param batchBytes byte budget per bulk request
+	 */
+	public void setBatchBytes(final int batchBytes) {
+		if (batchBytes < 1) {
+			throw new IllegalArgumentException("batchBytes must be positive");
+		}
+		this.batchBytes = batchBytes;
+	}
+
+	public int getBatchBytes() {
+		return batchBytes;
+	}
+
+	/**
+	 * Sets the number of background threads writing records to the database.
+	 * Zero means that records are written by the thread calling
+	 * {@link #endRecord()}. Otherwise each thread has its own bounded queue
+	 * (see {@link #setQueueSize(int)}), so that decoding the incoming stream
+	 * and writing to the database overlap. Records are assigned to a queue by
+	 * the hash of their identifier, so that all writes of a record reach the
+	 * database in stream order. If the queue is full, {@link #endRecord()}
+	 * blocks until there is room again. Failures of the background threads
+	 * are rethrown together by the next call to {@link #endRecord()},
+	 * {@link #resetStream()} or {@link #closeStream()}; the first is the
+	 * cause, the others are suppressed. {@link #closeStream()} returns only
+	 * after all threads have written their records.
+	 * <p>
+	 * The default value is {@value #DEFAULT_FLUSH_THREADS}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param flushThreads number of background writer threads
+	 */
+	public void setFlushThreads(final int flushThreads) {
+		if (flushThreads < 0) {
+			throw new IllegalArgumentException(
+					"flushThreads must not be negative");
+		}
+		this.flushThreads = flushThreads;
+	}
+
+	public int getFlushThreads() {
+		return flushThreads;
+	}
+
+	/**
+	 * Sets the number of completed records which may wait for the background
+	 * writer threads. The capacity is divided evenly between the queues of
+	 * the threads. Only used if the number of flush threads is greater than
+	 * zero.
+	 * <p>
+	 * The default value is {@value #DEFAULT_QUEUE_SIZE}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param queueSize capacity of the record queue
+	 */
+	public void setQueueSize(final int queueSize) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("queueSize must be positive");
+		}
+		this.queueSize = queueSize;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Sets whether the stream events are encoded directly into BSON instead
+	 * of building a tree of {@link DBObject}s first. Both encodings produce
+	 * the same document layout. Direct encoding reuses a single buffer for
+	 * all records and avoids most of the allocations per literal and entity.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param rawBson true to encode records directly into BSON
+	 */
+	public void setRawBson(final boolean rawBson) {
+		this.rawBson = rawBson;
+		recordEncoder = createRecordEncoder();
+	}
+
+	public boolean getRawBson() {
+		return rawBson;
+	}
+
+	/**
+	 * Sets the document layout of written records. The compact layout stores
+	 * each entity as a single document instead of an array of single-key
+	 * documents, which saves an embedded document and an array index per
+	 * element. Such records are marked with {@link MongoDBKeys#FORMAT_KEY}.
+	 * {@link MongoDBReader} reads both layouts. Field queries of
+	 * {@link MongoDBReader} only match records in the legacy layout.
+	 * <p>
+	 * The default value is {@link Layout#LEGACY}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param layout the document layout
+	 */
+	public void setLayout(final Layout layout) {
+		this.layout = layout;
+		recordEncoder = createRecordEncoder();
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Sets whether the stream events of each record are compressed into a
+	 * single binary value. Such records take far less space but their
+	 * entities and literals cannot be queried. They are meant for
+	 * collections which are only read by record identifier. The codec and
+	 * the compression level are stored in each record, so that
+	 * {@link MongoDBReader} can read collections with records of all
+	 * layouts. {@link #setLayout(Layout)} and {@link #setRawBson(boolean)}
+	 * have no effect on compressed records.
+	 * <p>
+	 * The default value is {@link Compression#NONE}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param compression the compression of record payloads
+	 */
+	public void setCompression(final Compression compression) {
+		this.compression = compression;
+		recordEncoder = createRecordEncoder();
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Sets the compression level from 0 (no compression) to 9 (best
+	 * compression).
+	 * <p>
+	 * The default value is {@value #DEFAULT_COMPRESSION_LEVEL}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param compressionLevel the deflate compression level
+	 */
+	public void setCompressionLevel(final int compressionLevel) {
+		if (compressionLevel < Deflater.NO_COMPRESSION
+				|| compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException(
+					"compressionLevel must be between 0 and 9");
+		}
+		this.compressionLevel = compressionLevel;
+		recordEncoder = createRecordEncoder();
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets whether entity and literal names are replaced by short codes from
+	 * the name dictionary of the collection. Records derived from MARC or
+	 * PICA repeat a few hundred names, so the codes shrink the documents
+	 * and {@link MongoDBReader} decodes them with an array lookup. The
+	 * dictionary is kept in the collection named by appending
+	 * {@link MongoDBKeys#NAMES_COLLECTION_SUFFIX} and loaded on the first
+	 * record. The new names of a record are appended with one request before
+	 * the record is written, provided that the stored dictionary has not
+	 * grown since it was loaded; otherwise the dictionary is loaded again and
+	 * the record encoded again. This check and the append are separate
+	 * requests, so only one writer at a time should add names to a
+	 * dictionary. The dictionary is only available if the writer is created
+	 * with a URI or a connection to the names collection. Field queries of
+	 * {@link MongoDBReader} do not match such records unless the paths are
+	 * key fields (see {@link #setKeyFields(String)}). Has no effect on
+	 * compressed records.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param dictionary true to store codes instead of names
+	 */
+	public void setDictionary(final boolean dictionary) {
+		this.dictionary = dictionary;
+		recordEncoder = createRecordEncoder();
+	}
+
+	public boolean getDictionary() {
+		return dictionary;
+	}
+
+	private RecordEncoder createRecordEncoder() {
+		if (compression == Compression.DEFLATE) {
+			nameDictionary = null;
+			return new CompressedRecordEncoder(compressionLevel);
+		}
+		if (!dictionary) {
+			nameDictionary = null;
+		} else if (nameDictionary == null) {
+			nameDictionary = new NameDictionary(new NameStore(
+					this::getNamesConnection));
+		}
+		final boolean compact = layout == Layout.COMPACT;
+		if (rawBson) {
+			return new RawBsonRecordEncoder(compact, nameDictionary);
+		}
+		return new DBObjectRecordEncoder(compact, nameDictionary);
+	}
+
+	/**
+	 * Sets whether records which have not changed since they were last
+	 * written are skipped. A content hash of each record is stored in
+	 * {@link MongoDBKeys#HASH_KEY} and compared with the hash of the incoming
+	 * record. The hash also covers the layout, the compression, the key
+	 * fields and the use of the name dictionary, so records stored with
+	 * other settings are rewritten once. The numbers of new, changed and
+	 * unchanged records are logged when the stream is closed.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param skipUnchanged true to skip unchanged records
+	 */
+	public void setSkipUnchanged(final boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+		recordHasher = null;
+	}
+
+	public boolean getSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Sets where the stored content hashes are taken from. Preloading reads
+	 * the hashes of the whole collection into a compact in-memory map before
+	 * the first record is written. Otherwise, hashes are looked up with one
+	 * query per batch of records (see
+	 * {@link #setHashLookupBatchSize(int)}).
+	 * <p>
+	 * The default value is {@link HashLookup#BATCH}.
+	 *
+	 * @param hashLookup the lookup strategy
+	 */
+	public void setHashLookup(final HashLookup hashLookup) {
+		this.hashLookup = hashLookup;
+	}
+
+	public HashLookup getHashLookup() {
+		return hashLookup;
+	}
+
+	/**
+	 * Sets the number of records whose stored hashes are looked up with one
+	 * query.
+	 * <p>
+	 * The default value is {@value #DEFAULT_HASH_LOOKUP_BATCH_SIZE}.
+	 *
+	 * @param hashLookupBatchSize number of records per hash lookup
+	 */
+	public void setHashLookupBatchSize(final int hashLookupBatchSize) {
+		if (hashLookupBatchSize < 1) {
+			throw new IllegalArgumentException(
+					"hashLookupBatchSize must be positive");
+		}
+		this.hashLookupBatchSize = hashLookupBatchSize;
+	}
+
+	public int getHashLookupBatchSize() {
+		return hashLookupBatchSize;
+	}
+
+	/**
+	 * Sets whether each record is stamped with the time at which it is
+	 * written, so that {@link MongoDBReader} can retrieve the records changed
+	 * since a point in time. The time is stored as a date in
+	 * {@link MongoDBKeys#MODIFIED_KEY}. It is taken when the record is sent
+	 * to the database, not when it is encoded, so that records waiting in a
+	 * batch or a queue are not stamped too early. All records of a bulk
+	 * request share one stamp. The stamps of one writer never decrease, also
+	 * across flush threads, but those of different writers are not ordered,
+	 * and a request may take longer than one sent after it. An index on the
+	 * stamp and the record id is created before the first record is written.
+	 * Records skipped by {@link #setSkipUnchanged(boolean)} keep their stamp.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param modificationStamp true to stamp records with their modification
+	 *        time
+	 */
+	public void setModificationStamp(final boolean modificationStamp) {
+		this.modificationStamp = modificationStamp;
+	}
+
+	public boolean getModificationStamp() {
+		return modificationStamp;
+	}
+
+	/**
+	 * Sets the literals whose values are copied into
+	 * {@link MongoDBKeys#KEYS_KEY}. Literals are given as comma-separated key
+	 * paths: the names of the enclosing entities and the literal name joined
+	 * with dots, without {@link MongoDBKeys#KEY_PREFIX}, e.g.
+	 * {@code isbn,028A.9}. Each value is stored as a string of the form
+	 * {@code path:value}. An index on {@link MongoDBKeys#KEYS_KEY} is created
+	 * before the first record is written. {@link MongoDBReader} must be given
+	 * the same key paths to use the index.
+	 * <p>
+	 * The default value is no key paths.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param keyFields comma-separated key paths
+	 */
+	public void setKeyFields(final String keyFields) {
+		this.keyFields = keyFields;
+		keyFieldExtractor = new KeyFieldExtractor(KeyFieldExtractor.parsePaths(
+				keyFields));
+	}
+
+	public String getKeyFields() {
+		return keyFields;
+	}
+
+	/**
+	 * Sets whether call counts, documents, bytes and latencies of the
+	 * database operations are recorded. The statistics are exported as JMX
+	 * MBeans in the domain {@code org.culturegraph.mf.mongodb} and logged
+	 * when the stream is closed. They show whether a run is bound by the
+	 * database or by the rest of the pipeline.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is written.
+	 *
+	 * @param statistics true to record statistics
+	 * @see MongoDBConnections#instrumentedConnection(MongoDBConnection, String, int)
+	 */
+	public void setStatistics(final boolean statistics) {
+		this.statistics = statistics;
+	}
+
+	public boolean getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Sets the number of seconds between log lines with the current
+	 * statistics. A value of zero logs the statistics only when the stream
+	 * is closed. Has no effect unless {@link #setStatistics(boolean)} is set.
+	 * <p>
+	 * The default value is {@value #DEFAULT_STATISTICS_LOG_INTERVAL}.
+	 *
+	 * @param statisticsLogInterval seconds between log lines
+	 */
+	public void setStatisticsLogInterval(final int statisticsLogInterval) {
+		if (statisticsLogInterval < 0) {
+			throw new IllegalArgumentException(
+					"statisticsLogInterval must not be negative");
+		}
+		this.statisticsLogInterval = statisticsLogInterval;
+	}
+
+	public int getStatisticsLogInterval() {
+		return statisticsLogInterval;
+	}
+
+	/**
+	 * Sets the file in which the position of the last acknowledged record is
+	 * saved: the number of records read from the stream up to and including
+	 * it, and its identifier. The position is saved every
+	 * {@link #setCheckpointInterval(int)} records after all pending writes
+	 * have been acknowledged, and when the stream is closed. Use a write
+	 * concern such as {@code w=majority&journal=true} in the URI if
+	 * acknowledged records must survive a crash of the database.
+	 * <p>
+	 * The default value is no file.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param checkpointFile path of the file
+	 */
+	public void setCheckpointFile(final String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	public String getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * Sets after how many records the position is saved. Saving waits until
+	 * all pending batches are written, so the interval should be a multiple
+	 * of the batch size.
+	 * <p>
+	 * The default value is {@value #DEFAULT_CHECKPOINT_INTERVAL}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param checkpointInterval number of records, at least one
+	 */
+	public void setCheckpointInterval(final int checkpointInterval) {
+		if (checkpointInterval < 1) {
+			throw new IllegalArgumentException(
+					"checkpointInterval must be positive");
+		}
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * Sets whether a load continues after the position saved in the
+	 * checkpoint file. The records up to that position are skipped without
+	 * being written; the identifier of the last skipped record must match
+	 * the saved one, otherwise the input differs from the interrupted load
+	 * and the writer fails. If the checkpoint file does not exist, all
+	 * records are written. Has no effect unless
+	 * {@link #setCheckpointFile(String)} is set.
+	 * <p>
+	 * The default value is false.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param resume true to skip the records up to the checkpoint
+	 */
+	public void setResume(final boolean resume) {
+		this.resume = resume;
+	}
+
+	public boolean getResume() {
+		return resume;
+	}
+
+	/**
+	 * Sets how often a write is repeated after a transient error such as a
+	 * network error, a server selection timeout or a replica set fail-over.
+	 * Other errors are not repeated.
+	 * <p>
+	 * The default value is {@value #DEFAULT_RETRIES}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param retries maximum number of repetitions of each write
+	 * @see MongoDBConnections#retryingConnection(MongoDBConnection, int, long)
+	 */
+	public void setRetries(final int retries) {
+		if (retries < 0) {
+			throw new IllegalArgumentException("retries must not be negative");
+		}
+		this.retries = retries;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Sets the number of milliseconds before the first repetition of a
+	 * failed write. The delay doubles with each further repetition.
+	 * <p>
+	 * The default value is {@value #DEFAULT_RETRY_BACKOFF}.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param retryBackoff milliseconds before the first repetition
+	 */
+	public void setRetryBackoff(final int retryBackoff) {
+		if (retryBackoff < 0) {
+			throw new IllegalArgumentException(
+					"retryBackoff must not be negative");
+		}
+		this.retryBackoff = retryBackoff;
+	}
+
+	public int getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/**
+	 * Sets the file to which records rejected by the database are appended
+	 * instead of failing the load, e.g. records violating a unique index. The
+	 * file holds one JSON document per line with the error message in
+	 * {@code error} and the record document in {@code record}. Failures of
+	 * whole requests, such as network errors which persist after all
+	 * retries, still end the load.
+	 * <p>
+	 * The default value is no file, i.e. rejected records end the load.
+	 * <p>
+	 * This parameter must only be changed before the first record is
+	 * written.
+	 *
+	 * @param deadLetterFile path of the file
+	 */
+	public void setDeadLetterFile(final String deadLetterFile) {
+		this.deadLetterFile = deadLetterFile;
+	}
+
+	public String getDeadLetterFile() {
+		return deadLetterFile;
+	}
+
+	private MongoDBConnection getConnection() {
+		if (statistics && !instrumented) {
+			mongoDBConnection = MongoDBConnections.instrumentedConnection(
+					mongoDBConnection, getStatisticsName(), statisticsLogInterval);
+			instrumented = true;
+		}
+		return mongoDBConnection;
+	}
+
+	/**
+	 * Wraps the connection to the name dictionary like the one to the
+	 * records.
+	 */
+	private MongoDBConnection getNamesConnection() {
+		if (namesConnection != null && !namesConnectionWrapped) {
+			if (statistics) {
+				namesConnection = MongoDBConnections.instrumentedConnection(
+						namesConnection, getStatisticsName()
+								+ MongoDBKeys.NAMES_COLLECTION_SUFFIX,
+						statisticsLogInterval);
+			}
+			if (retries > 0) {
+				namesConnection = MongoDBConnections.retryingConnection(
+						namesConnection, retries, retryBackoff);
+			}
+			namesConnectionWrapped = true;
+		}
+		return namesConnection;
+	}
+
+	private String getStatisticsName() {
+		return "to-mongodb@" + Integer.toHexString(System.identityHashCode(this));
 	}
 
 	@Override
 	public final void startRecord(final String identifier) {
-		dataStack.clear();
-		recordDBObject = new BasicDBObject();
-		if (identifier != null) {
-			recordDBObject.put(MongoDBKeys.RECORD_ID_KEY, identifier);
+		if (!positionLoaded) {
+			loadPosition();
+		}
+		recordId = identifier;
+		skipping = resumePosition != null
+				&& recordCount < resumePosition.records;
+		if (skipping) {
+			return;
+		}
+		recordEncoder.startRecord(identifier);
+		if (nameDictionary != null) {
+			recorder.resetStream();
+			recorder.startRecord(identifier);
+		}
+		if (skipUnchanged) {
+			if (recordHasher == null) {
+				recordHasher = new RecordHasher(getEncoderConfiguration());
+			}
+			recordHasher.startRecord();
+		}
+		if (keyFieldExtractor != null) {
+			keyFieldExtractor.startRecord();
 		}
-		final List<DBObject> dbObjectList = new ArrayList<>();
-		recordDBObject.put(MongoDBKeys.DATA_KEY, dbObjectList);
-		dataStack.push(dbObjectList);
 	}
 
 	@Override
 	public final void startEntity(final String identifier) {
-		final DBObject entityDBObject = new BasicDBObject();
-		final List<DBObject> dbObjectList = new ArrayList<>();
-		entityDBObject.put(MongoDBKeys.KEY_PREFIX + identifier, dbObjectList);
-		dataStack.peek().add(entityDBObject);
-		dataStack.push(dbObjectList);
+		if (skipping) {
+			return;
+		}
+		recordEncoder.startEntity(identifier);
+		if (nameDictionary != null) {
+			recorder.startEntity(identifier);
+		}
+		if (recordHasher != null) {
+			recordHasher.startEntity(identifier);
+		}
+		if (keyFieldExtractor != null) {
+			keyFieldExtractor.startEntity(identifier);
+		}
 	}
 
 	@Override
 	public final void literal(final String identifier, final String value) {
-		final DBObject literalDBObject = new BasicDBObject();
-		literalDBObject.put(MongoDBKeys.KEY_PREFIX + identifier, value);
-		dataStack.peek().add(literalDBObject);
+		if (skipping) {
+			return;
+		}
+		recordEncoder.literal(identifier, value);
+		if (nameDictionary != null) {
+			recorder.literal(identifier, value);
+		}
+		if (recordHasher != null) {
+			recordHasher.literal(identifier, value);
+		}
+		if (keyFieldExtractor != null) {
+			keyFieldExtractor.literal(identifier, value);
+		}
 	}
 
 	@Override
 	public final void endEntity() {
-		dataStack.pop();
+		if (skipping) {
+			return;
+		}
+		recordEncoder.endEntity();
+		if (nameDictionary != null) {
+			recorder.endEntity();
+		}
+		if (recordHasher != null) {
+			recordHasher.endEntity();
+		}
+		if (keyFieldExtractor != null) {
+			keyFieldExtractor.endEntity();
+		}
 	}
 
 	@Override
 	public final void endRecord() {
+		recordCount += 1;
+		if (skipping) {
+			if (recordCount == resumePosition.records) {
+				checkResumePosition();
+			}
+			return;
+		}
+		DBObject recordDBObject = finishRecord();
 		try {
-			mongoDBConnection.save(recordDBObject);
+			if (nameDictionary != null && !nameDictionary.commit()) {
+				recordDBObject = encodeAgain();
+			}
+			getRecordSink().write(recordDBObject, recordEncoder.getRecordSize());
+			if (checkpoint != null
+					&& recordCount - checkpointedCount >= checkpointInterval) {
+				getRecordSink().flush();
+				saveCheckpoint();
+			}
 		} catch (final MongoException mongoException) {
 			throw new MetafactureException(mongoException);
-		} finally {
-			dataStack.clear();
 		}
 	}
 
+	private DBObject finishRecord() {
+		if (recordHasher != null) {
+			recordEncoder.putField(MongoDBKeys.HASH_KEY,
+					Long.valueOf(recordHasher.getHash()));
+		}
+		if (keyFieldExtractor != null) {
+			final List<String> keys = keyFieldExtractor.getKeys();
+			if (!keys.isEmpty()) {
+				recordEncoder.putField(MongoDBKeys.KEYS_KEY, keys);
+			}
+		}
+		if (modificationStamp) {
+			// Replaced by the ModificationStamper when the record is sent:
+			recordEncoder.putField(MongoDBKeys.MODIFIED_KEY, new Date(0));
+		}
+		return recordEncoder.endRecord();
+	}
+
+	/**
+	 * Encodes the current record again after another writer has extended
+	 * the name dictionary, which voided the codes of the new names of the
+	 * record.
+	 */
+	private DBObject encodeAgain() {
+		final RecordedEvents events = recorder.finish();
+		DBObject recordDBObject;
+		do {
+			events.replay(encoderReceiver);
+			recordDBObject = finishRecord();
+		} while (!nameDictionary.commit());
+		return recordDBObject;
+	}
+
+	/**
+	 * Describes the options which change the stored form of a record. The
+	 * description seeds the content hash, so that records stored with other
+	 * options are not skipped as unchanged.
+	 */
+	private String getEncoderConfiguration() {
+		final StringBuilder configuration = new StringBuilder();
+		configuration.append("layout=").append(layout);
+		configuration.append(";compression=").append(compression);
+		if (compression != Compression.NONE) {
+			configuration.append(':').append(compressionLevel);
+		}
+		if (dictionary) {
+			configuration.append(";dictionary");
+		}
+		if (keyFields != null) {
+			final List<String> paths = new ArrayList<>(
+					KeyFieldExtractor.parsePaths(keyFields));
+			Collections.sort(paths);
+			configuration.append(";keyfields=").append(String.join(",", paths));
+		}
+		return configuration.toString();
+	}
+
+	private void loadPosition() {
+		positionLoaded = true;
+		if (checkpointFile == null) {
+			return;
+		}
+		checkpoint = new CheckpointFile(Paths.get(checkpointFile));
+		if (resume) {
+			resumePosition = checkpoint.load();
+		}
+		if (resumePosition != null) {
+			LOG.info("Resuming after record {} ({})",
+					Long.valueOf(resumePosition.records), resumePosition.id);
+			checkpointedCount = resumePosition.records;
+		}
+	}
+
+	private void checkResumePosition() {
+		if (!Objects.equals(recordId, resumePosition.id)) {
+			throw new MetafactureException("Record " + recordCount
+					+ " is '" + recordId + "' but the checkpoint names '"
+					+ resumePosition.id + "'; the input differs from the "
+					+ "interrupted load");
+		}
+	}
+
+	private void saveCheckpoint() {
+		checkpoint.save(recordCount, recordId);
+		checkpointedCount = recordCount;
+	}
+
+	private RecordSink getRecordSink() {
+		if (recordSink == null) {
+			MongoDBConnection connection = getConnection();
+			ModificationStamper stamper = null;
+			if (keyFieldExtractor != null) {
+				connection.createIndex(new BasicDBObject(MongoDBKeys.KEYS_KEY,
+						Integer.valueOf(1)));
+			}
+			if (modificationStamp) {
+				connection.createIndex(new BasicDBObject(MongoDBKeys.MODIFIED_KEY,
+						Integer.valueOf(1)).append(MongoDBKeys.RECORD_ID_KEY,
+								Integer.valueOf(1)));
+				stamper = new ModificationStamper();
+			}
+			if (retries > 0) {
+				connection = MongoDBConnections.retryingConnection(connection,
+						retries, retryBackoff);
+			}
+			if (deadLetterFile != null) {
+				deadLetters = new DeadLetterFile(Paths.get(deadLetterFile));
+			}
+			if (flushThreads > 0) {
+				recordSink = new AsyncRecordWriter(connection, flushThreads,
+						queueSize, batchSize, batchBytes, stamper, deadLetters);
+			} else {
+				recordSink = new ConnectionRecordSink(connection, batchSize,
+						batchBytes, stamper, deadLetters);
+			}
+			if (skipUnchanged) {
+				recordSink = new ChangeDetector(connection, recordSink,
+						hashLookup == HashLookup.PRELOAD, hashLookupBatchSize);
+			}
+		}
+		return recordSink;
+	}
+
 	@Override
 	public final void resetStream() {
-		dataStack.clear();
+		recordEncoder.reset();
+		if (recordSink != null) {
+			recordSink.flush();
+		}
 	}
 
 	@Override
 	public final void closeStream() {
-		dataStack.clear();
-		mongoDBConnection.close();
+		recordEncoder.reset();
+		try {
+			if (recordSink != null) {
+				recordSink.close();
+			}
+			if (checkpoint != null && recordCount > checkpointedCount) {
+				saveCheckpoint();
+			}
+			if (resumePosition != null && recordCount < resumePosition.records) {
+				LOG.warn("Stream ended after {} records, before the checkpoint "
+						+ "at record {}", Long.valueOf(recordCount),
+						Long.valueOf(resumePosition.records));
+			}
+		} finally {
+			if (deadLetters != null) {
+				deadLetters.close();
+			}
+			mongoDBConnection.close();
+			if (namesConnection != null) {
+				namesConnection.close();
+			}
+		}
+	}
+
+	/**
+	 * Passes replayed events of a record to the record encoder. The record
+	 * is finished by {@link MongoDBWriter#finishRecord()}.
+	 */
+	private final class EncoderReceiver implements StreamReceiver {
+
+		@Override
+		public void startRecord(final String identifier) {
+			recordEncoder.startRecord(identifier);
+		}
+
+		@Override
+		public void endRecord() {
+			// finished by the writer
+		}
+
+		@Override
+		public void startEntity(final String name) {
+			recordEncoder.startEntity(name);
+		}
+
+		@Override
+		public void endEntity() {
+			recordEncoder.endEntity();
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			recordEncoder.literal(name, value);
+		}
+
+		@Override
+		public void resetStream() {
+			// nothing to do
+		}
+
+		@Override
+		public void closeStream() {
+			// nothing to do
+		}
+
 	}
 
 }
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+/**
+ * The in-memory copy of the name dictionary of a collection, which maps
+ * entity and literal names to short codes (see
+ * {@link MongoDBKeys#DICTIONARY_KEY}). The dictionary is loaded on first
+ * use. Names without code get the next free code at once, but are only
+ * appended to the stored dictionary by {@link #commit()}, all names of a
+ * record in one request. The writer commits before it sends a record, so
+ * a stored record never refers to a code which has not been stored. Codes
+ * unknown to the copy are looked up by loading the dictionary again, as
+ * another writer may have added them.
+ * <p>
+ * Instances are not thread-safe.
+ */
+final class NameDictionary {
+
+	private static final int RADIX = Character.MAX_RADIX;
+
+	private final NameStore store;
+	private final List<String> names = new ArrayList<>();
+	private final Map<String, Integer> codes = new HashMap<>();
+
+	private boolean loaded;
+	private int storedNames;
+	private int version;
+
+	NameDictionary(final NameStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return the code of the name, written in base 36
+	 */
+	String encode(final String name) {
+		if (!loaded) {
+			load();
+		}
+		Integer code = codes.get(name);
+		if (code == null) {
+			code = Integer.valueOf(names.size());
+			names.add(name);
+			codes.put(name, code);
+		}
+		return Integer.toString(code.intValue(), RADIX);
+	}
+
+	/**
+	 * Appends the names encoded since the last commit to the stored
+	 * dictionary. If another writer has extended the stored dictionary in the
+	 * meantime, the codes of these names may denote other names. The
+	 * dictionary is then loaded again, {@link #getVersion()} changes and the
+	 * names have to be encoded again.
+	 *
+	 * @return false if the codes handed out since the last commit are void
+	 */
+	boolean commit() {
+		if (storedNames == names.size()) {
+			return true;
+		}
+		if (store.append(storedNames, names.subList(storedNames,
+				names.size()))) {
+			storedNames = names.size();
+			return true;
+		}
+		load();
+		version += 1;
+		return false;
+	}
+
+	/**
+	 * @return a number which changes whenever codes handed out before
+	 *         become void
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Looks up the code of a name without adding the name to the dictionary.
+	 * Names unknown to the copy are looked up by loading the dictionary
+	 * again. Without a connection to the stored dictionary, no name has a
+	 * code.
+	 *
+	 * @return the code of the name, written in base 36, or null if the name
+	 * has no code
+	 */
+	String find(final String name) {
+		if (!store.isAvailable()) {
+			return null;
+		}
+		Integer code = loaded ? codes.get(name) : null;
+		if (code == null) {
+			load();
+			code = codes.get(name);
+		}
+		return code == null ? null : Integer.toString(code.intValue(), RADIX);
+	}
+
+	/**
+	 * @param key a key of either layout holding a code
+	 * @return the name whose code follows {@link MongoDBKeys#KEY_PREFIX}
+	 */
+	String decode(final String key) {
+		int code = 0;
+		for (int i = key.indexOf(MongoDBKeys.KEY_PREFIX)
+				+ MongoDBKeys.KEY_PREFIX.length(); i < key.length(); ++i) {
+			final int digit = Character.digit(key.charAt(i), RADIX);
+			if (digit < 0) {
+				throw new MetafactureException("Invalid name code in key '" + key
+						+ "'");
+			}
+			code = code * RADIX + digit;
+		}
+		if (!loaded || code >= names.size()) {
+			load();
+			if (code >= names.size()) {
+				throw new MetafactureException("Name code of key '" + key
+						+ "' is missing in the dictionary");
+			}
+		}
+		return names.get(code);
+	}
+
+	private void load() {
+		names.clear();
+		names.addAll(store.load());
+		storedNames = names.size();
+		codes.clear();
+		for (int i = 0; i < names.size(); ++i) {
+			codes.put(names.get(i), Integer.valueOf(i));
+		}
+		loaded = true;
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Reads and extends the name dictionary kept in the collection named by
+ * appending {@link MongoDBKeys#NAMES_COLLECTION_SUFFIX} to the records
+ * collection. The dictionary is stored as segments: each document holds
+ * names appended together in {@code names}, and the code of its first name
+ * as {@link MongoDBKeys#RECORD_ID_KEY}. Names are never removed or
+ * reordered, so the code of a name is its position for good.
+ * <p>
+ * A segment is only saved if the stored dictionary still has the size the
+ * caller expects. The check and the save are separate requests, so writers
+ * adding names to the same dictionary at the same time may still overwrite
+ * each other's segment.
+ */
+final class NameStore {
+
+	private static final String NAMES_KEY = "names";
+
+	private final Supplier<MongoDBConnection> namesConnection;
+
+	/**
+	 * @param namesConnection supplies the connection to the names collection
+	 *        or {@code null} if there is none
+	 */
+	NameStore(final Supplier<MongoDBConnection> namesConnection) {
+		this.namesConnection = namesConnection;
+	}
+
+	/**
+	 * @return the names in the order of their codes; empty if the collection
+	 *         has no dictionary yet
+	 */
+	List<String> load() {
+		final Map<Integer, List<?>> segments = new TreeMap<>();
+		final DBCursor cursor = getConnection().find(new BasicDBObject());
+		try {
+			while (cursor.hasNext()) {
+				final DBObject segment = cursor.next();
+				final Number start = (Number) segment.get(
+						MongoDBKeys.RECORD_ID_KEY);
+				segments.put(Integer.valueOf(start.intValue()),
+						(List<?>) segment.get(NAMES_KEY));
+			}
+		} finally {
+			cursor.close();
+		}
+		final List<String> names = new ArrayList<>();
+		for (final Map.Entry<Integer, List<?>> segment : segments.entrySet()) {
+			if (segment.getKey().intValue() != names.size()) {
+				throw new MetafactureException("Name dictionary has no segment at "
+						+ names.size());
+			}
+			for (final Object name : segment.getValue()) {
+				names.add((String) name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Appends names to the stored dictionary as one segment, provided that it
+	 * still holds {@code count} names.
+	 *
+	 * @param count the number of names the caller has loaded
+	 * @param names the names to append
+	 * @return false if the dictionary has been extended by someone else since
+	 *         it was loaded; the names have then not been appended
+	 */
+	boolean append(final int count, final List<String> names) {
+		if (load().size() != count) {
+			return false;
+		}
+		getConnection().save(new BasicDBObject(MongoDBKeys.RECORD_ID_KEY,
+				Integer.valueOf(count)).append(NAMES_KEY, new ArrayList<>(names)));
+		return true;
+	}
+
+	/**
+	 * @return false if there is no connection to the names collection
+	 */
+	boolean isAvailable() {
+		return namesConnection.get() != null;
+	}
+
+	private MongoDBConnection getConnection() {
+		final MongoDBConnection connection = namesConnection.get();
+		if (connection == null) {
+			throw new MetafactureException(
+					"No connection to the collection of the name dictionary");
+		}
+		return connection;
+	}
+
+	/**
+	 * @param uri {@code mongodb://host/database.collection?options...}
+	 * @return the URI of the names collection of the collection
+	 */
+	static String namesUri(final String uri) {
+		final int options = uri.indexOf('?');
+		if (options < 0) {
+			return uri + MongoDBKeys.NAMES_COLLECTION_SUFFIX;
+		}
+		return uri.substring(0, options) + MongoDBKeys.NAMES_COLLECTION_SUFFIX
+				+ uri.substring(options);
+	}
+
+}
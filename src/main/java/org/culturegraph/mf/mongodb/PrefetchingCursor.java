@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.ServerAddress;
+
+/**
+ * A cursor which iterates another cursor on a background thread and keeps
+ * up to a fixed number of documents ahead of the consumer, so that the
+ * server fetches the next batch while the consumer processes the current
+ * one. Errors of the underlying cursor are thrown by the consumer's next
+ * call. Closing the cursor stops the background thread, which closes the
+ * underlying cursor. The underlying cursor may also be opened by the
+ * background thread, so that the query itself runs there.
+ * <p>
+ * Instances are meant to be used by a single consumer thread.
+ */
+final class PrefetchingCursor implements Cursor {
+
+	private static final Object END_OF_CURSOR = new Object();
+
+	private final Supplier<? extends Cursor> opener;
+	private final BlockingQueue<Object> queue;
+	private final Future<?> fetcher;
+
+	private volatile boolean started;
+	private volatile boolean closed;
+	private volatile Cursor cursor;
+	private Object next;
+
+	/**
+	 * @param cursor the cursor to iterate
+	 * @param depth number of documents fetched ahead, at least one
+	 * @param executor the executor running the background iteration
+	 */
+	PrefetchingCursor(final Cursor cursor, final int depth,
+			final ExecutorService executor) {
+		this(null, cursor, depth, executor);
+	}
+
+	/**
+	 * @param opener opens the cursor to iterate on the background thread
+	 * @param depth number of documents fetched ahead, at least one
+	 * @param executor the executor running the background iteration
+	 */
+	PrefetchingCursor(final Supplier<? extends Cursor> opener, final int depth,
+			final ExecutorService executor) {
+		this(opener, null, depth, executor);
+	}
+
+	private PrefetchingCursor(final Supplier<? extends Cursor> opener,
+			final Cursor cursor, final int depth, final ExecutorService executor) {
+		this.opener = opener;
+		this.cursor = cursor;
+		queue = new ArrayBlockingQueue<>(depth);
+		fetcher = executor.submit(this::fetch);
+	}
+
+	private void fetch() {
+		started = true;
+		try {
+			if (cursor == null) {
+				cursor = opener.get();
+			}
+			try {
+				while (cursor.hasNext()) {
+					queue.put(cursor.next());
+				}
+			} finally {
+				cursor.close();
+			}
+			queue.put(END_OF_CURSOR);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final Throwable e) {
+			// Errors are passed on as well, otherwise the consumer would wait
+			// for documents forever:
+			if (closed) {
+				return;
+			}
+			try {
+				queue.put(e);
+			} catch (final InterruptedException interruptedException) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = queue.take();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MongoInterruptedException(
+						"Interrupted while waiting for documents", e);
+			}
+		}
+		if (next instanceof RuntimeException) {
+			throw (RuntimeException) next;
+		}
+		if (next instanceof Error) {
+			throw (Error) next;
+		}
+		return next != END_OF_CURSOR;
+	}
+
+	@Override
+	public DBObject next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		final DBObject document = (DBObject) next;
+		next = null;
+		return document;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public long getCursorId() {
+		final Cursor current = cursor;
+		return current == null ? 0 : current.getCursorId();
+	}
+
+	@Override
+	public ServerAddress getServerAddress() {
+		final Cursor current = cursor;
+		return current == null ? null : current.getServerAddress();
+	}
+
+	/**
+	 * @return true if the background iteration has ended, i.e. all
+	 *         remaining documents are in the queue
+	 */
+	boolean isDone() {
+		return fetcher.isDone();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (fetcher.cancel(true) && !started && cursor != null) {
+			// The background iteration never ran and cannot close it:
+			cursor.close();
+		}
+		queue.clear();
+	}
+
+}
@@ -0,0 +1,773 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Translates the query lines of {@link MongoDBReader} into filter documents.
+ * <p>
+ * Each line is first split into its shape and its values in a single pass:
+ * the shape is the line with every value replaced by {@code ?}, e.g.
+ * {@code #a:? AND _id:?*}. The shape is parsed and compiled into a template
+ * once; templates are kept in a bounded LRU cache, so that lines of the same
+ * shape only pay for splitting the line and binding the values.
+ * <p>
+ * The simple syntax only knows {@code [field:]value} and
+ * {@code since:timestamp}. The extended syntax adds:
+ * <ul>
+ * <li>quoted values {@code "a value"} with {@code \} as escape character;
+ * values containing spaces, parentheses or quotes must be quoted,
+ * <li>prefixes {@code value*}, which use the index of the record id and of
+ * key fields,
+ * <li>ranges {@code [lower TO upper]} with exclusive bounds given by
+ * {@code {} and {@code }} and open bounds given by {@code *},
+ * <li>{@code AND} and {@code OR}, with {@code AND} binding tighter, and
+ * parentheses,
+ * <li>{@code limit:n} and {@code sort:[-]field[,...]} after the query,
+ * sorting by {@value MongoDBKeys#RECORD_ID_KEY} and
+ * {@value MongoDBKeys#MODIFIED_KEY} only.
+ * </ul>
+ * Patterns which are not anchored at the start of the value, such as
+ * {@code *value}, and ranges open at both ends are rejected. Shapes which
+ * cannot use any index are logged when they are compiled.
+ * <p>
+ * Instances are not thread-safe.
+ */
+final class QueryCompiler {
+
+	static final String SINCE_FIELD = "since";
+	static final String LIMIT_MODIFIER = "limit";
+	static final String SORT_MODIFIER = "sort";
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(QueryCompiler.class);
+
+	private static final char FIELD_SEPARATOR = ':';
+	private static final char WILDCARD = '*';
+	private static final char QUOTE = '"';
+	private static final char ESCAPE = '\\';
+	private static final String PLACEHOLDER = "?";
+	private static final String AND = "AND";
+	private static final String OR = "OR";
+	private static final String TO = "TO";
+	private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	private final Set<String> keyPaths;
+	private final boolean extended;
+	private final Map<String, Template> templates;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param keyPaths the key paths whose queries use
+	 *        {@link MongoDBKeys#KEYS_KEY}
+	 * @param extended true for the extended syntax
+	 * @param cacheSize maximum number of cached templates
+	 */
+	QueryCompiler(final Set<String> keyPaths, final boolean extended,
+			final int cacheSize) {
+		this.keyPaths = keyPaths;
+		this.extended = extended;
+		templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, Template> eldest) {
+				return size() > cacheSize;
+			}
+
+		};
+	}
+
+	/**
+	 * @param line a query line
+	 * @return the query with all values of the line bound
+	 * @throws IllegalArgumentException if the line is not a valid query
+	 */
+	CompiledQuery compile(final String line) {
+		final Shape shape = extended ? splitExtended(line) : splitSimple(line);
+		final String key = shape.text.toString();
+		Template template = templates.get(key);
+		if (template == null) {
+			misses += 1;
+			template = compileShape(line, shape);
+			templates.put(key, template);
+		} else {
+			hits += 1;
+		}
+		return template.bind(shape.values);
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	static DBObject sinceOrder() {
+		return new BasicDBObject(MongoDBKeys.MODIFIED_KEY, Integer.valueOf(1))
+				.append(MongoDBKeys.RECORD_ID_KEY, Integer.valueOf(1));
+	}
+
+	private static Shape splitSimple(final String line) {
+		final Shape shape = new Shape();
+		final int separator = line.indexOf(FIELD_SEPARATOR);
+		if (separator < 0) {
+			shape.addTerm(line, null, Match.EQUALS, line);
+			return shape;
+		}
+		final String field = line.substring(0, separator);
+		final String value = line.substring(separator + 1);
+		shape.addTerm(line, field, Match.EQUALS, SINCE_FIELD.equals(field)
+				? value.trim() : value);
+		return shape;
+	}
+
+	private static Shape splitExtended(final String line) {
+		final Shape shape = new Shape();
+		int pos = skipSpaces(line, 0);
+		while (pos < line.length()) {
+			final char c = line.charAt(pos);
+			if (c == '(' || c == ')') {
+				shape.addToken(line, c == '(' ? TokenType.OPEN : TokenType.CLOSE,
+						String.valueOf(c));
+				pos += 1;
+			} else {
+				pos = splitTerm(line, pos, shape);
+			}
+			pos = skipSpaces(line, pos);
+		}
+		return shape;
+	}
+
+	private static int splitTerm(final String line, final int start,
+			final Shape shape) {
+		String field = null;
+		int pos = start;
+		final int separator = fieldEnd(line, start);
+		if (separator > start) {
+			field = line.substring(start, separator);
+			pos = separator + 1;
+		}
+		if (pos < line.length() && line.charAt(pos) == QUOTE) {
+			final StringBuilder value = new StringBuilder();
+			pos = readQuoted(line, pos, value);
+			if (pos < line.length() && line.charAt(pos) == WILDCARD) {
+				addPrefix(line, shape, field, value.toString());
+				return pos + 1;
+			}
+			shape.addTerm(line, field, Match.EQUALS, value.toString());
+			return pos;
+		}
+		if (pos < line.length()
+				&& (line.charAt(pos) == '[' || line.charAt(pos) == '{')) {
+			return splitRange(line, pos, field, shape);
+		}
+		final int end = wordEnd(line, pos, ")");
+		final String word = line.substring(pos, end);
+		if (field == null && (AND.equals(word) || OR.equals(word))) {
+			shape.addToken(line, AND.equals(word) ? TokenType.AND : TokenType.OR,
+					word);
+		} else if (LIMIT_MODIFIER.equals(field) || SORT_MODIFIER.equals(field)) {
+			shape.addModifier(field, word);
+		} else if (word.indexOf(WILDCARD) < 0) {
+			shape.addTerm(line, field, Match.EQUALS, word);
+		} else if (word.indexOf(WILDCARD) == word.length() - 1) {
+			addPrefix(line, shape, field, word.substring(0, word.length() - 1));
+		} else {
+			throw invalid(line, "'" + word + "' is not anchored at the start "
+					+ "and would scan the collection; only a trailing "
+					+ WILDCARD + " is supported");
+		}
+		return end;
+	}
+
+	private static void addPrefix(final String line, final Shape shape,
+			final String field, final String prefix) {
+		if (prefix.isEmpty()) {
+			throw invalid(line, "an empty prefix matches all records and "
+					+ "would scan the collection");
+		}
+		shape.addTerm(line, field, Match.PREFIX, prefix);
+	}
+
+	private static int splitRange(final String line, final int start,
+			final String field, final Shape shape) {
+		final boolean lowerInclusive = line.charAt(start) == '[';
+		final StringBuilder lower = new StringBuilder();
+		final int lowerStart = skipSpaces(line, start + 1);
+		int pos = readBound(line, lowerStart, lower);
+		final boolean lowerOpen = isOpenBound(line, lowerStart, pos);
+		pos = skipSpaces(line, pos);
+		if (!line.startsWith(TO + " ", pos)) {
+			throw invalid(line, "expected '" + TO + "' in range");
+		}
+		final StringBuilder upper = new StringBuilder();
+		final int upperStart = skipSpaces(line, pos + TO.length());
+		pos = readBound(line, upperStart, upper);
+		final boolean upperOpen = isOpenBound(line, upperStart, pos);
+		pos = skipSpaces(line, pos);
+		if (pos >= line.length()
+				|| (line.charAt(pos) != ']' && line.charAt(pos) != '}')) {
+			throw invalid(line, "unterminated range");
+		}
+		final boolean upperInclusive = line.charAt(pos) == ']';
+		if (lowerOpen && upperOpen) {
+			throw invalid(line, "a range open at both ends matches all "
+					+ "records and would scan the collection");
+		}
+		shape.addRange(line, field, lowerInclusive, lowerOpen ? null
+				: lower.toString(), upperInclusive, upperOpen ? null
+						: upper.toString());
+		return pos + 1;
+	}
+
+	/**
+	 * @return true if the bound is an unquoted {@value #WILDCARD}
+	 */
+	private static boolean isOpenBound(final String line, final int start,
+			final int end) {
+		return end == start + 1 && line.charAt(start) == WILDCARD;
+	}
+
+	private static int readBound(final String line, final int start,
+			final StringBuilder bound) {
+		if (start < line.length() && line.charAt(start) == QUOTE) {
+			return readQuoted(line, start, bound);
+		}
+		final int end = wordEnd(line, start, "]}");
+		if (end == start) {
+			throw invalid(line, "missing range bound");
+		}
+		bound.append(line, start, end);
+		return end;
+	}
+
+	private static int readQuoted(final String line, final int start,
+			final StringBuilder value) {
+		for (int pos = start + 1; pos < line.length(); ++pos) {
+			final char c = line.charAt(pos);
+			if (c == QUOTE) {
+				return pos + 1;
+			}
+			if (c == ESCAPE && pos + 1 < line.length()) {
+				pos += 1;
+				value.append(line.charAt(pos));
+			} else {
+				value.append(c);
+			}
+		}
+		throw invalid(line, "unterminated quote");
+	}
+
+	/**
+	 * @return the position of the separator after a field name or -1 if the
+	 *         term has no field
+	 */
+	private static int fieldEnd(final String line, final int start) {
+		for (int pos = start; pos < line.length(); ++pos) {
+			final char c = line.charAt(pos);
+			if (c == FIELD_SEPARATOR) {
+				return pos;
+			}
+			if (Character.isWhitespace(c) || c == QUOTE || c == '[' || c == '{'
+					|| c == '(' || c == ')') {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private static int wordEnd(final String line, final int start,
+			final String terminators) {
+		int pos = start;
+		while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))
+				&& terminators.indexOf(line.charAt(pos)) < 0) {
+			pos += 1;
+		}
+		return pos;
+	}
+
+	private static int skipSpaces(final String line, final int start) {
+		int pos = start;
+		while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+			pos += 1;
+		}
+		return pos;
+	}
+
+	private Template compileShape(final String line, final Shape shape) {
+		final Parser parser = new Parser(line, shape.tokens);
+		final Node root = parser.parse();
+		final DBObject sort = shape.sort == null ? null
+				: parseSort(line, shape.sort);
+		final int limit = shape.limit == null ? 0
+				: parseLimit(line, shape.limit);
+		final boolean idLookup = root.idLookup && sort == null && limit == 0;
+		if (!root.indexed) {
+			LOG.warn("Queries of the form '{}' cannot use an index and scan the "
+					+ "collection", shape.text);
+		}
+		return new Template(root, sort, limit, idLookup);
+	}
+
+	private static DBObject parseSort(final String line, final String sort) {
+		final DBObject order = new BasicDBObject();
+		for (final String key : sort.split(",")) {
+			final boolean descending = key.startsWith("-");
+			final String field = descending ? key.substring(1) : key;
+			if (!MongoDBKeys.RECORD_ID_KEY.equals(field)
+					&& !MongoDBKeys.MODIFIED_KEY.equals(field)) {
+				throw invalid(line, "can only sort by "
+						+ MongoDBKeys.RECORD_ID_KEY + " and "
+						+ MongoDBKeys.MODIFIED_KEY);
+			}
+			order.put(field, Integer.valueOf(descending ? -1 : 1));
+		}
+		return order;
+	}
+
+	private static int parseLimit(final String line, final String limit) {
+		try {
+			final int value = Integer.parseInt(limit);
+			if (value > 0) {
+				return value;
+			}
+		} catch (final NumberFormatException e) {
+			// reported below
+		}
+		throw invalid(line, "limit must be a positive number");
+	}
+
+	private Node compileTerm(final String line, final Token token) {
+		final String field = token.field;
+		final int index = token.valueIndex;
+		if (field == null || extended
+				&& MongoDBKeys.RECORD_ID_KEY.equals(field)) {
+			final Node node = new Node(compileCondition(token,
+					MongoDBKeys.RECORD_ID_KEY, null), true, false);
+			node.idLookup = token.match == Match.EQUALS;
+			return node;
+		}
+		if (SINCE_FIELD.equals(field)) {
+			if (token.match != Match.EQUALS) {
+				throw invalid(line, SINCE_FIELD + " takes a single timestamp");
+			}
+			return new Node(values -> new BasicDBObject(MongoDBKeys.MODIFIED_KEY,
+					new BasicDBObject("$gt", parseTimestamp(values.get(index)))),
+					true, true);
+		}
+		final String path = KeyFieldExtractor.toPath(field);
+		if (keyPaths.contains(path)) {
+			return new Node(compileCondition(token, MongoDBKeys.KEYS_KEY, path),
+					true, false);
+		}
+		return new Node(compileCondition(token, MongoDBKeys.DATA_KEY + "."
+				+ field, null), false, false);
+	}
+
+	/**
+	 * @param keyPath the key path if the condition applies to
+	 *        {@link MongoDBKeys#KEYS_KEY}, otherwise {@code null}
+	 */
+	private static Binder compileCondition(final Token token,
+			final String name, final String keyPath) {
+		final int index = token.valueIndex;
+		switch (token.match) {
+			case EQUALS:
+				return values -> new BasicDBObject(name, toValue(keyPath,
+						values.get(index)));
+			case PREFIX:
+				return values -> new BasicDBObject(name, new BasicDBObject(
+						"$regex", "^" + escapeRegex(toValue(keyPath,
+								values.get(index)))));
+			default:
+				return compileRange(token, name, keyPath);
+		}
+	}
+
+	private static Binder compileRange(final Token token, final String name,
+			final String keyPath) {
+		final int lowerIndex = token.lowerOpen ? -1 : token.valueIndex;
+		final int upperIndex = token.upperOpen ? -1
+				: token.valueIndex + (token.lowerOpen ? 0 : 1);
+		final String lowerOperator = token.lowerInclusive ? "$gte" : "$gt";
+		final String upperOperator = token.upperInclusive ? "$lte" : "$lt";
+		final Binder bounds = values -> {
+			final DBObject condition = new BasicDBObject();
+			if (lowerIndex >= 0) {
+				condition.put(lowerOperator, toValue(keyPath,
+						values.get(lowerIndex)));
+			} else if (keyPath != null) {
+				condition.put("$gte", KeyFieldExtractor.toKey(keyPath, ""));
+			}
+			if (upperIndex >= 0) {
+				condition.put(upperOperator, toValue(keyPath,
+						values.get(upperIndex)));
+			} else if (keyPath != null) {
+				// the smallest string after all keys of the path:
+				condition.put("$lt", keyPath + (char) (KeyFieldExtractor.SEPARATOR
+						+ 1));
+			}
+			return condition;
+		};
+		if (MongoDBKeys.RECORD_ID_KEY.equals(name)) {
+			return values -> new BasicDBObject(name, bounds.bind(values));
+		}
+		// Both bounds must hold for the same element of the array:
+		if (keyPath != null) {
+			return values -> new BasicDBObject(name, new BasicDBObject(
+					"$elemMatch", bounds.bind(values)));
+		}
+		final int leafStart = name.lastIndexOf('.');
+		final String parent = name.substring(0, leafStart);
+		final String leaf = name.substring(leafStart + 1);
+		return values -> new BasicDBObject(parent, new BasicDBObject(
+				"$elemMatch", new BasicDBObject(leaf, bounds.bind(values))));
+	}
+
+	private static String toValue(final String keyPath, final String value) {
+		return keyPath == null ? value : KeyFieldExtractor.toKey(keyPath, value);
+	}
+
+	private static String escapeRegex(final String value) {
+		final StringBuilder escaped = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); ++i) {
+			final char c = value.charAt(i);
+			if (REGEX_METACHARACTERS.indexOf(c) >= 0) {
+				escaped.append(ESCAPE);
+			}
+			escaped.append(c);
+		}
+		return escaped.toString();
+	}
+
+	static Date parseTimestamp(final String timestamp) {
+		try {
+			if (!timestamp.isEmpty() && timestamp.chars().allMatch(
+					Character::isDigit)) {
+				return new Date(Long.parseLong(timestamp));
+			}
+			return Date.from(Instant.parse(timestamp));
+		} catch (final NumberFormatException | DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid timestamp: '" + timestamp
+					+ "'", e);
+		}
+	}
+
+	private static IllegalArgumentException invalid(final String line,
+			final String reason) {
+		return new IllegalArgumentException("Invalid query '" + line + "': "
+				+ reason);
+	}
+
+	private enum TokenType {
+		OPEN, CLOSE, AND, OR, TERM
+	}
+
+	private enum Match {
+		EQUALS, PREFIX, RANGE
+	}
+
+	/**
+	 * A token of a query line. The values of terms are kept apart in
+	 * {@link Shape#values}.
+	 */
+	private static final class Token {
+
+		final TokenType type;
+		final String field;
+		final Match match;
+		final int valueIndex;
+		boolean lowerInclusive;
+		boolean upperInclusive;
+		boolean lowerOpen;
+		boolean upperOpen;
+
+		Token(final TokenType type, final String field, final Match match,
+				final int valueIndex) {
+			this.type = type;
+			this.field = field;
+			this.match = match;
+			this.valueIndex = valueIndex;
+		}
+
+	}
+
+	/**
+	 * A query line split into its shape and its values.
+	 */
+	private static final class Shape {
+
+		final StringBuilder text = new StringBuilder();
+		final List<Token> tokens = new ArrayList<>();
+		final List<String> values = new ArrayList<>();
+		String limit;
+		String sort;
+
+		void addToken(final String line, final TokenType type,
+				final String symbol) {
+			checkNoModifiers(line);
+			appendText(symbol);
+			tokens.add(new Token(type, null, null, -1));
+		}
+
+		void addTerm(final String line, final String field, final Match match,
+				final String value) {
+			checkNoModifiers(line);
+			appendField(field);
+			text.append(PLACEHOLDER);
+			if (match == Match.PREFIX) {
+				text.append(WILDCARD);
+			}
+			tokens.add(new Token(TokenType.TERM, field, match, values.size()));
+			values.add(value);
+		}
+
+		void addRange(final String line, final String field,
+				final boolean lowerInclusive, final String lower,
+				final boolean upperInclusive, final String upper) {
+			checkNoModifiers(line);
+			appendField(field);
+			text.append(lowerInclusive ? '[' : '{')
+					.append(lower == null ? String.valueOf(WILDCARD) : PLACEHOLDER)
+					.append(' ').append(TO).append(' ')
+					.append(upper == null ? String.valueOf(WILDCARD) : PLACEHOLDER)
+					.append(upperInclusive ? ']' : '}');
+			final Token token = new Token(TokenType.TERM, field, Match.RANGE,
+					values.size());
+			token.lowerInclusive = lowerInclusive;
+			token.upperInclusive = upperInclusive;
+			token.lowerOpen = lower == null;
+			token.upperOpen = upper == null;
+			tokens.add(token);
+			if (lower != null) {
+				values.add(lower);
+			}
+			if (upper != null) {
+				values.add(upper);
+			}
+		}
+
+		void addModifier(final String name, final String value) {
+			appendText(name + FIELD_SEPARATOR + value);
+			if (LIMIT_MODIFIER.equals(name)) {
+				limit = value;
+			} else {
+				sort = value;
+			}
+		}
+
+		private void checkNoModifiers(final String line) {
+			if (limit != null || sort != null) {
+				throw invalid(line, LIMIT_MODIFIER + " and " + SORT_MODIFIER
+						+ " must follow the query");
+			}
+		}
+
+		private void appendField(final String field) {
+			if (text.length() > 0) {
+				text.append(' ');
+			}
+			if (field != null) {
+				text.append(field).append(FIELD_SEPARATOR);
+			}
+		}
+
+		private void appendText(final String symbol) {
+			if (text.length() > 0) {
+				text.append(' ');
+			}
+			text.append(symbol);
+		}
+
+	}
+
+	/**
+	 * Builds the filter document of a node from the values of a line.
+	 */
+	@FunctionalInterface
+	private interface Binder {
+
+		DBObject bind(List<String> values);
+
+	}
+
+	/**
+	 * A compiled part of a query.
+	 */
+	private static final class Node {
+
+		final Binder binder;
+		final boolean indexed;
+		final boolean since;
+		boolean idLookup;
+
+		Node(final Binder binder, final boolean indexed, final boolean since) {
+			this.binder = binder;
+			this.indexed = indexed;
+			this.since = since;
+		}
+
+	}
+
+	/**
+	 * Parses the tokens of a shape, {@code AND} binding tighter than
+	 * {@code OR}.
+	 */
+	private final class Parser {
+
+		private final String line;
+		private final List<Token> tokens;
+		private int next;
+
+		Parser(final String line, final List<Token> tokens) {
+			this.line = line;
+			this.tokens = tokens;
+		}
+
+		Node parse() {
+			if (tokens.isEmpty()) {
+				throw invalid(line, "empty query");
+			}
+			final Node node = parseOr();
+			if (next < tokens.size()) {
+				throw invalid(line, tokens.get(next).type == TokenType.CLOSE
+						? "unbalanced ')'" : "expected " + AND + " or " + OR);
+			}
+			return node;
+		}
+
+		private Node parseOr() {
+			final List<Node> nodes = new ArrayList<>();
+			nodes.add(parseAnd());
+			while (accept(TokenType.OR)) {
+				nodes.add(parseAnd());
+			}
+			return combine("$or", nodes);
+		}
+
+		private Node parseAnd() {
+			final List<Node> nodes = new ArrayList<>();
+			nodes.add(parsePrimary());
+			while (accept(TokenType.AND)) {
+				nodes.add(parsePrimary());
+			}
+			return combine("$and", nodes);
+		}
+
+		private Node parsePrimary() {
+			if (next >= tokens.size()) {
+				throw invalid(line, "unexpected end of query");
+			}
+			final Token token = tokens.get(next++);
+			if (token.type == TokenType.TERM) {
+				return compileTerm(line, token);
+			}
+			if (token.type == TokenType.OPEN) {
+				final Node node = parseOr();
+				if (!accept(TokenType.CLOSE)) {
+					throw invalid(line, "missing ')'");
+				}
+				return node;
+			}
+			throw invalid(line, "unexpected " + token.type);
+		}
+
+		private boolean accept(final TokenType type) {
+			if (next < tokens.size() && tokens.get(next).type == type) {
+				next += 1;
+				return true;
+			}
+			return false;
+		}
+
+		private Node combine(final String operator, final List<Node> nodes) {
+			if (nodes.size() == 1) {
+				return nodes.get(0);
+			}
+			final boolean or = "$or".equals(operator);
+			boolean indexed = or;
+			boolean since = false;
+			for (final Node node : nodes) {
+				indexed = or ? indexed && node.indexed : indexed || node.indexed;
+				since |= node.since;
+			}
+			final Binder[] binders = new Binder[nodes.size()];
+			for (int i = 0; i < binders.length; ++i) {
+				binders[i] = nodes.get(i).binder;
+			}
+			return new Node(values -> {
+				final BasicDBList conditions = new BasicDBList();
+				for (final Binder binder : binders) {
+					conditions.add(binder.bind(values));
+				}
+				return new BasicDBObject(operator, conditions);
+			}, indexed, since);
+		}
+
+	}
+
+	/**
+	 * A compiled shape.
+	 */
+	private static final class Template {
+
+		private final Node root;
+		private final DBObject sort;
+		private final int limit;
+		private final boolean idLookup;
+
+		Template(final Node root, final DBObject sort, final int limit,
+				final boolean idLookup) {
+			this.root = root;
+			this.sort = sort;
+			this.limit = limit;
+			this.idLookup = idLookup;
+		}
+
+		CompiledQuery bind(final List<String> values) {
+			final DBObject filter = root.binder.bind(values);
+			final DBObject order = sort == null && root.since ? sinceOrder()
+					: sort;
+			return new CompiledQuery(filter, order, limit,
+					idLookup ? values.get(0) : null, !root.since);
+		}
+
+	}
+
+}
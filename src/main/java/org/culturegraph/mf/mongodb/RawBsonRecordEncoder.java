@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinaryWriter;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
+
+import com.mongodb.DBObject;
+
+/**
+ * Writes the stream events of a record directly into a BSON buffer without
+ * building an intermediate object tree. The buffer is reused for all
+ * records. The resulting documents are {@link RawDBObject}s which are sent
+ * to the database as they are.
+ * <p>
+ * Records without identifier are given a new {@link ObjectId}, since a raw
+ * document cannot be modified by the driver.
+ * <p>
+ * In the compact layout, entities are written as documents whose keys carry
+ * the position of each element (see {@link MongoDBKeys#COMPACT_FORMAT}).
+ * <p>
+ * With a {@link NameDictionary}, keys hold the codes of the names (see
+ * {@link MongoDBKeys#DICTIONARY_KEY}).
+ */
+final class RawBsonRecordEncoder implements RecordEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+	private static final int INITIAL_DEPTH = 16;
+
+	private final BasicOutputBuffer buffer = new BasicOutputBuffer(
+			INITIAL_BUFFER_SIZE);
+	private final KeyCache keyCache;
+	private final boolean compact;
+	private final boolean coded;
+
+	private BsonBinaryWriter writer;
+	private boolean inData;
+	private int recordSize;
+	private int[] positions = new int[INITIAL_DEPTH];
+	private int depth;
+
+	RawBsonRecordEncoder() {
+		this(false);
+	}
+
+	RawBsonRecordEncoder(final boolean compact) {
+		this(compact, null);
+	}
+
+	/**
+	 * @param compact true to use the compact layout
+	 * @param dictionary the dictionary encoding entity and literal names or
+	 *        {@code null} to store the names
+	 */
+	RawBsonRecordEncoder(final boolean compact, final NameDictionary dictionary) {
+		this.compact = compact;
+		keyCache = new KeyCache(dictionary);
+		coded = dictionary != null;
+	}
+
+	@Override
+	public void startRecord(final String identifier) {
+		buffer.truncateToPosition(0);
+		writer = new BsonBinaryWriter(buffer);
+		writer.writeStartDocument();
+		if (identifier != null) {
+			writer.writeString(MongoDBKeys.RECORD_ID_KEY, identifier);
+		} else {
+			writer.writeObjectId(MongoDBKeys.RECORD_ID_KEY, new ObjectId());
+		}
+		if (compact) {
+			writer.writeInt32(MongoDBKeys.FORMAT_KEY, MongoDBKeys.COMPACT_FORMAT);
+		}
+		if (coded) {
+			writer.writeBoolean(MongoDBKeys.DICTIONARY_KEY, true);
+		}
+		if (compact) {
+			writer.writeStartDocument(MongoDBKeys.DATA_KEY);
+			depth = 0;
+			positions[0] = 0;
+		} else {
+			writer.writeStartArray(MongoDBKeys.DATA_KEY);
+		}
+		inData = true;
+	}
+
+	@Override
+	public void startEntity(final String name) {
+		if (compact) {
+			writer.writeStartDocument(nextKey(name));
+			depth += 1;
+			if (depth == positions.length) {
+				positions = Arrays.copyOf(positions, depth * 2);
+			}
+			positions[depth] = 0;
+		} else {
+			writer.writeStartDocument();
+			writer.writeStartArray(keyCache.toKey(name));
+		}
+	}
+
+	@Override
+	public void literal(final String name, final String value) {
+		if (!compact) {
+			writer.writeStartDocument();
+		}
+		final String key = compact ? nextKey(name) : keyCache.toKey(name);
+		if (value == null) {
+			writer.writeNull(key);
+		} else {
+			writer.writeString(key, value);
+		}
+		if (!compact) {
+			writer.writeEndDocument();
+		}
+	}
+
+	@Override
+	public void endEntity() {
+		if (compact) {
+			writer.writeEndDocument();
+			depth -= 1;
+		} else {
+			writer.writeEndArray();
+			writer.writeEndDocument();
+		}
+	}
+
+	private String nextKey(final String name) {
+		final int position = positions[depth];
+		positions[depth] = position + 1;
+		return keyCache.toKey(position, name);
+	}
+
+	@Override
+	public void putField(final String key, final Object value) {
+		endData();
+		writer.writeName(key);
+		writeValue(value);
+	}
+
+	private void writeValue(final Object value) {
+		if (value == null) {
+			writer.writeNull();
+		} else if (value instanceof String) {
+			writer.writeString((String) value);
+		} else if (value instanceof Integer) {
+			writer.writeInt32(((Integer) value).intValue());
+		} else if (value instanceof Long) {
+			writer.writeInt64(((Long) value).longValue());
+		} else if (value instanceof Boolean) {
+			writer.writeBoolean(((Boolean) value).booleanValue());
+		} else if (value instanceof Date) {
+			writer.writeDateTime(((Date) value).getTime());
+		} else if (value instanceof byte[]) {
+			writer.writeBinaryData(new BsonBinary((byte[]) value));
+		} else if (value instanceof List) {
+			writer.writeStartArray();
+			for (final Object element : (List<?>) value) {
+				writeValue(element);
+			}
+			writer.writeEndArray();
+		} else {
+			throw new IllegalArgumentException("Unsupported field value: "
+					+ value.getClass());
+		}
+	}
+
+	private void endData() {
+		if (inData) {
+			if (compact) {
+				writer.writeEndDocument();
+			} else {
+				writer.writeEndArray();
+			}
+			inData = false;
+		}
+	}
+
+	@Override
+	public DBObject endRecord() {
+		endData();
+		writer.writeEndDocument();
+		writer = null;
+		recordSize = buffer.getPosition();
+		return new RawDBObject(Arrays.copyOf(buffer.getInternalBuffer(),
+				recordSize));
+	}
+
+	@Override
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	@Override
+	public void reset() {
+		writer = null;
+		buffer.truncateToPosition(0);
+	}
+
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+
+/**
+ * Collects record documents until a record count or byte budget is reached
+ * and writes them with a single call to
+ * {@link MongoDBConnection#saveAll(java.util.List)}.
+ * <p>
+ * A record which has the same identifier as a record already in the batch
+ * replaces the earlier one, so that the unordered bulk write cannot reorder
+ * two writes of the same record.
+ * <p>
+ * Records which the database rejects, e.g. because they are too large or
+ * violate a unique index, may be passed to a {@link DeadLetterFile}
+ * instead of failing the whole batch.
+ */
+final class RecordBatch {
+
+	private final int maxRecords;
+	private final int maxBytes;
+	private final ModificationStamper stamper;
+
+	private final List<DBObject> records = new ArrayList<>();
+	private final List<Integer> sizes = new ArrayList<>();
+	private final Map<Object, Integer> positions = new HashMap<>();
+	private int bytes;
+
+	/**
+	 * @param maxRecords the number of records after which the batch is full
+	 * @param maxBytes the number of bytes after which the batch is full
+	 * @param stamper stamps the records when they are written or
+	 *        {@code null}
+	 */
+	RecordBatch(final int maxRecords, final int maxBytes,
+			final ModificationStamper stamper) {
+		this.maxRecords = maxRecords;
+		this.maxBytes = maxBytes;
+		this.stamper = stamper;
+	}
+
+	/**
+	 * Adds a record to the batch.
+	 *
+	 * @param record the record document
+	 * @param size the (estimated) size of the record in bytes
+	 * @return true if the batch is full and should be flushed
+	 */
+	boolean add(final DBObject record, final int size) {
+		final Object id = record.get(MongoDBKeys.RECORD_ID_KEY);
+		final Integer position = id == null ? null : positions.get(id);
+		if (position == null) {
+			if (id != null) {
+				positions.put(id, Integer.valueOf(records.size()));
+			}
+			records.add(record);
+			sizes.add(Integer.valueOf(size));
+		} else {
+			records.set(position.intValue(), record);
+			bytes -= sizes.set(position.intValue(), Integer.valueOf(size))
+					.intValue();
+		}
+		bytes += size;
+		return records.size() >= maxRecords || bytes >= maxBytes;
+	}
+
+	boolean isEmpty() {
+		return records.isEmpty();
+	}
+
+	int size() {
+		return records.size();
+	}
+
+	/**
+	 * Writes all records in the batch and empties it. The batch is emptied
+	 * even if writing fails.
+	 *
+	 * @param mongoDBConnection the connection to write to
+	 * @param deadLetters receives the records rejected by the database or
+	 *        {@code null} to fail instead
+	 * @throws MetafactureException if the write failed. If only some records
+	 *         failed, the message names their identifiers.
+	 */
+	void flush(final MongoDBConnection mongoDBConnection,
+			final DeadLetterFile deadLetters) {
+		if (records.isEmpty()) {
+			return;
+		}
+		try {
+			if (stamper != null) {
+				stamper.stamp(records);
+			}
+			mongoDBConnection.saveAll(records);
+		} catch (final MongoBulkWriteException bulkWriteException) {
+			// A write concern error leaves open which records were stored:
+			if (deadLetters != null
+					&& bulkWriteException.getWriteConcernError() == null) {
+				for (final BulkWriteError writeError : bulkWriteException
+						.getWriteErrors()) {
+					deadLetters.write(records.get(writeError.getIndex()),
+							writeError.getMessage());
+				}
+				return;
+			}
+			throw new MetafactureException(
+					describeWriteErrors(bulkWriteException), bulkWriteException);
+		} catch (final MongoException mongoException) {
+			throw new MetafactureException(mongoException);
+		} finally {
+			clear();
+		}
+	}
+
+	void clear() {
+		records.clear();
+		sizes.clear();
+		positions.clear();
+		bytes = 0;
+	}
+
+	private String describeWriteErrors(
+			final MongoBulkWriteException bulkWriteException) {
+		final List<BulkWriteError> writeErrors = bulkWriteException
+				.getWriteErrors();
+		final StringBuilder message = new StringBuilder();
+		message.append("Failed to write ").append(writeErrors.size())
+				.append(" of ").append(records.size()).append(" records:");
+		for (final BulkWriteError writeError : writeErrors) {
+			final DBObject record = records.get(writeError.getIndex());
+			message.append(" [").append(record.get(MongoDBKeys.RECORD_ID_KEY))
+					.append(": ").append(writeError.getMessage()).append(']');
+		}
+		if (bulkWriteException.getWriteConcernError() != null) {
+			message.append(" Write concern error: ").append(
+					bulkWriteException.getWriteConcernError().getMessage());
+		}
+		return message.toString();
+	}
+
+}
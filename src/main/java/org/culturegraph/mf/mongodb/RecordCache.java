@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.mongodb.DBObject;
+
+/**
+ * A size-bounded LRU cache of query results. Entries may additionally
+ * expire a fixed time after they were added. Expired entries count as
+ * misses and evictions.
+ * <p>
+ * The cache is not thread-safe.
+ */
+final class RecordCache {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final LongSupplier clock;
+	private final Map<DBObject, Entry> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxEntries maximum number of cached queries
+	 * @param ttlSeconds seconds after which an entry expires or zero if
+	 *        entries do not expire
+	 */
+	RecordCache(final int maxEntries, final int ttlSeconds) {
+		this(maxEntries, ttlSeconds, System::nanoTime);
+	}
+
+	/**
+	 * @param clock the source of the time in nanoseconds
+	 */
+	RecordCache(final int maxEntries, final int ttlSeconds,
+			final LongSupplier clock) {
+		this.maxEntries = maxEntries;
+		ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.clock = clock;
+		entries = new LinkedHashMap<DBObject, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<DBObject, Entry> eldest) {
+				if (size() > RecordCache.this.maxEntries) {
+					evictions += 1;
+					return true;
+				}
+				return false;
+			}
+
+		};
+	}
+
+	/**
+	 * @return the cached result or {@code null} if the query is not cached
+	 */
+	RecordedEvents get(final DBObject query) {
+		final Entry entry = entries.get(query);
+		if (entry == null) {
+			misses += 1;
+			return null;
+		}
+		if (ttlNanos > 0 && clock.getAsLong() - entry.created > ttlNanos) {
+			entries.remove(query);
+			evictions += 1;
+			misses += 1;
+			return null;
+		}
+		hits += 1;
+		return entry.events;
+	}
+
+	void put(final DBObject query, final RecordedEvents events) {
+		entries.put(query, new Entry(events, clock.getAsLong()));
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * A cached result together with the time it was added.
+	 */
+	private static final class Entry {
+
+		final RecordedEvents events;
+		final long created;
+
+		Entry(final RecordedEvents events, final long created) {
+			this.events = events;
+			this.created = created;
+		}
+
+	}
+
+}
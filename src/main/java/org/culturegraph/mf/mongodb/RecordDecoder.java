@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.Set;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.types.ObjectId;
+import org.culturegraph.mf.framework.MetafactureException;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+/**
+ * Turns record documents into metadata stream events. The document layouts
+ * are described in {@link MongoDBWriter}. The layout of a record is taken
+ * from {@link MongoDBKeys#FORMAT_KEY}, which precedes the data in records
+ * written by {@link MongoDBWriter}. Compressed payloads are decoded by a
+ * {@link CompressedRecordDecoder}.
+ * <p>
+ * {@link RawDBObject}s are decoded by reading their BSON directly, without
+ * materializing the document. Other documents are walked as
+ * {@link DBObject} trees.
+ * <p>
+ * Keys of records marked with {@link MongoDBKeys#DICTIONARY_KEY} are
+ * decoded with the {@link NameDictionary} given to the constructor.
+ */
+final class RecordDecoder {
+
+	private final KeyCache keyCache = new KeyCache();
+	private final NameDictionary dictionary;
+
+	private CompressedRecordDecoder compressedRecordDecoder;
+	private Set<String> fields;
+	private boolean coded;
+
+	/**
+	 * @param dictionary the name dictionary of the collection
+	 */
+	RecordDecoder(final NameDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	void decode(final DBObject document, final StreamReceiver receiver) {
+		if (document instanceof RawDBObject) {
+			decodeRaw((RawDBObject) document, receiver);
+		} else {
+			receiver.startRecord(idOf(document.get(MongoDBKeys.RECORD_ID_KEY)));
+			coded = Boolean.TRUE.equals(document.get(MongoDBKeys.DICTIONARY_KEY));
+			final Object data = document.get(MongoDBKeys.DATA_KEY);
+			switch (formatOf((Number) document.get(MongoDBKeys.FORMAT_KEY))) {
+				case MongoDBKeys.COMPACT_FORMAT:
+					decodeObject((DBObject) data, receiver);
+					break;
+				case MongoDBKeys.BINARY_FORMAT:
+					getCompressedRecordDecoder().decode((byte[]) data,
+							(String) document.get(MongoDBKeys.CODEC_KEY), fields,
+							receiver);
+					break;
+				default:
+					decodeList((BasicDBList) data, receiver);
+					break;
+			}
+			receiver.endRecord();
+		}
+	}
+
+	/**
+	 * Restricts the top-level entities and literals emitted from compressed
+	 * payloads. Other layouts are expected to be filtered by the server.
+	 *
+	 * @param fields the names to emit or {@code null} to emit all
+	 */
+	void setFields(final Set<String> fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * Releases native resources held for decoding compressed payloads.
+	 * Called at the end of each stream.
+	 */
+	void reset() {
+		if (compressedRecordDecoder != null) {
+			compressedRecordDecoder.close();
+		}
+	}
+
+	private CompressedRecordDecoder getCompressedRecordDecoder() {
+		if (compressedRecordDecoder == null) {
+			compressedRecordDecoder = new CompressedRecordDecoder();
+		}
+		return compressedRecordDecoder;
+	}
+
+	private static int formatOf(final Number format) {
+		if (format == null) {
+			return MongoDBKeys.LEGACY_FORMAT;
+		}
+		final int version = format.intValue();
+		switch (version) {
+			case MongoDBKeys.LEGACY_FORMAT:
+			case MongoDBKeys.COMPACT_FORMAT:
+			case MongoDBKeys.BINARY_FORMAT:
+				return version;
+			default:
+				throw new MetafactureException("Unsupported record format: "
+						+ version);
+		}
+	}
+
+	private String toName(final String key) {
+		if (coded) {
+			return dictionary.decode(key);
+		}
+		return keyCache.toName(key);
+	}
+
+	private void decodeObject(final DBObject dbObject,
+			final StreamReceiver receiver) {
+		for (final String key : dbObject.keySet()) {
+			final Object value = dbObject.get(key);
+			if (value instanceof DBObject) {
+				receiver.startEntity(toName(key));
+				decodeObject((DBObject) value, receiver);
+				receiver.endEntity();
+			} else {
+				receiver.literal(toName(key), (String) value);
+			}
+		}
+	}
+
+	private void decodeList(final BasicDBList basicDBList,
+			final StreamReceiver receiver) {
+		for (final Object object : basicDBList) {
+			final DBObject dbObject = (DBObject) object;
+			for (final String key : dbObject.keySet()) {
+				final Object value = dbObject.get(key);
+				if (value instanceof BasicDBList) {
+					receiver.startEntity(toName(key));
+					decodeList((BasicDBList) value, receiver);
+					receiver.endEntity();
+				} else {
+					receiver.literal(toName(key), (String) value);
+				}
+			}
+		}
+	}
+
+	private void decodeRaw(final RawDBObject document,
+			final StreamReceiver receiver) {
+		final BsonBinaryReader reader = new BsonBinaryReader(document
+				.toRawBsonDocument().getByteBuffer().asNIO());
+		try {
+			String id = null;
+			int format = MongoDBKeys.LEGACY_FORMAT;
+			String codec = null;
+			boolean started = false;
+			coded = false;
+			reader.readStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				final String key = reader.readName();
+				if (MongoDBKeys.RECORD_ID_KEY.equals(key)) {
+					id = readId(reader);
+				} else if (MongoDBKeys.FORMAT_KEY.equals(key)) {
+					format = formatOf(readNumber(reader));
+				} else if (MongoDBKeys.CODEC_KEY.equals(key)) {
+					codec = reader.readString();
+				} else if (MongoDBKeys.DICTIONARY_KEY.equals(key)) {
+					coded = reader.readBoolean();
+				} else if (MongoDBKeys.DATA_KEY.equals(key) && !started) {
+					receiver.startRecord(id);
+					started = true;
+					switch (format) {
+						case MongoDBKeys.COMPACT_FORMAT:
+							decodeDocument(reader, receiver);
+							break;
+						case MongoDBKeys.BINARY_FORMAT:
+							getCompressedRecordDecoder().decode(
+									reader.readBinaryData().getData(), codec, fields,
+									receiver);
+							break;
+						default:
+							decodeArray(reader, receiver);
+							break;
+					}
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.readEndDocument();
+			if (!started) {
+				receiver.startRecord(id);
+			}
+			receiver.endRecord();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String readId(final BsonBinaryReader reader) {
+		switch (reader.getCurrentBsonType()) {
+			case STRING:
+				return reader.readString();
+			case OBJECT_ID:
+				return reader.readObjectId().toHexString();
+			default:
+				reader.skipValue();
+				return null;
+		}
+	}
+
+	private static String idOf(final Object id) {
+		if (id instanceof ObjectId) {
+			return ((ObjectId) id).toHexString();
+		}
+		return id instanceof String ? (String) id : null;
+	}
+
+	private static Number readNumber(final BsonBinaryReader reader) {
+		switch (reader.getCurrentBsonType()) {
+			case INT32:
+				return Integer.valueOf(reader.readInt32());
+			case INT64:
+				return Long.valueOf(reader.readInt64());
+			case DOUBLE:
+				return Double.valueOf(reader.readDouble());
+			default:
+				throw new MetafactureException("Unsupported record format: "
+						+ reader.getCurrentBsonType());
+		}
+	}
+
+	private void decodeDocument(final BsonBinaryReader reader,
+			final StreamReceiver receiver) {
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			final String name = toName(reader.readName());
+			switch (reader.getCurrentBsonType()) {
+				case DOCUMENT:
+					receiver.startEntity(name);
+					decodeDocument(reader, receiver);
+					receiver.endEntity();
+					break;
+				case NULL:
+					reader.readNull();
+					receiver.literal(name, null);
+					break;
+				default:
+					receiver.literal(name, reader.readString());
+					break;
+			}
+		}
+		reader.readEndDocument();
+	}
+
+	private void decodeArray(final BsonBinaryReader reader,
+			final StreamReceiver receiver) {
+		reader.readStartArray();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			reader.readStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				final String name = toName(reader.readName());
+				switch (reader.getCurrentBsonType()) {
+					case ARRAY:
+						receiver.startEntity(name);
+						decodeArray(reader, receiver);
+						receiver.endEntity();
+						break;
+					case NULL:
+						reader.readNull();
+						receiver.literal(name, null);
+						break;
+					default:
+						receiver.literal(name, reader.readString());
+						break;
+				}
+			}
+			reader.readEndDocument();
+		}
+		reader.readEndArray();
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import com.mongodb.DBObject;
+
+/**
+ * Builds the MongoDB document of a record from the events of a metadata
+ * stream. The document layout is described in {@link MongoDBWriter}.
+ */
+interface RecordEncoder {
+
+	void startRecord(String identifier);
+
+	void startEntity(String name);
+
+	void literal(String name, String value);
+
+	void endEntity();
+
+	/**
+	 * Adds a top-level field next to {@link
+	 * org.culturegraph.mf.mongodb.common.MongoDBKeys#DATA_KEY} to the current
+	 * record. Must be called after the last entity or literal of the record.
+	 * Supported values are strings, numbers, booleans, dates, byte arrays and
+	 * lists of these.
+	 *
+	 * @param key the field name
+	 * @param value the field value
+	 */
+	void putField(String key, Object value);
+
+	/**
+	 * Completes the current record.
+	 *
+	 * @return the document of the record
+	 */
+	DBObject endRecord();
+
+	/**
+	 * @return the (estimated) size in bytes of the document returned by the
+	 *         last call to {@link #endRecord()}
+	 */
+	int getRecordSize();
+
+	/**
+	 * Discards a partially built record and releases native resources held
+	 * by the encoder. Called at the end of each stream.
+	 */
+	void reset();
+
+}
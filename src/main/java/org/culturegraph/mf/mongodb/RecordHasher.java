@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+/**
+ * Computes a 64 bit content hash of the stream events of a record. The hash
+ * covers the structure of the record as well as all names and values, but
+ * not the record identifier. It is stable across runs and JVMs.
+ * <p>
+ * The hash is seeded with a description of the encoder configuration, so
+ * that records written with a different layout, compression, key fields or
+ * name dictionary setting get a different hash and are rewritten even if
+ * their contents have not changed.
+ * <p>
+ * The hash is never {@value #NO_HASH}, so this value can be used to mark
+ * missing hashes.
+ */
+final class RecordHasher {
+
+	static final long NO_HASH = 0L;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final char START_ENTITY = '<';
+	private static final char END_ENTITY = '>';
+	private static final char LITERAL = '=';
+	private static final char END_OF_STRING = '\0';
+	private static final char NULL_VALUE = '\1';
+
+	private final long seed;
+
+	private long hash;
+
+	/**
+	 * @param configuration a description of the encoder configuration which
+	 *        is hashed into every record hash
+	 */
+	RecordHasher(final String configuration) {
+		hash = FNV_OFFSET_BASIS;
+		update(configuration);
+		seed = hash;
+	}
+
+	void startRecord() {
+		hash = seed;
+	}
+
+	void startEntity(final String name) {
+		update(START_ENTITY);
+		update(name);
+	}
+
+	void literal(final String name, final String value) {
+		update(LITERAL);
+		update(name);
+		if (value == null) {
+			update(NULL_VALUE);
+		} else {
+			update(value);
+		}
+	}
+
+	void endEntity() {
+		update(END_ENTITY);
+	}
+
+	long getHash() {
+		return nonZero(mix(hash));
+	}
+
+	/**
+	 * Hashes a string with the same function as the record contents.
+	 *
+	 * @param string the string to hash
+	 * @return a 64 bit hash, never {@value #NO_HASH}
+	 */
+	static long hash(final String string) {
+		long h = FNV_OFFSET_BASIS;
+		for (int i = 0; i < string.length(); ++i) {
+			h = (h ^ string.charAt(i)) * FNV_PRIME;
+		}
+		return nonZero(mix(h));
+	}
+
+	private void update(final String string) {
+		long h = hash;
+		for (int i = 0; i < string.length(); ++i) {
+			h = (h ^ string.charAt(i)) * FNV_PRIME;
+		}
+		hash = (h ^ END_OF_STRING) * FNV_PRIME;
+	}
+
+	private void update(final char c) {
+		hash = (hash ^ c) * FNV_PRIME;
+	}
+
+	/**
+	 * Final avalanche step of MurmurHash3.
+	 */
+	private static long mix(final long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long nonZero(final long h) {
+		return h == NO_HASH ? 1L : h;
+	}
+
+}
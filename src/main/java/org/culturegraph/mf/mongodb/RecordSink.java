@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import com.mongodb.DBObject;
+
+/**
+ * Receives the completed record documents of a {@link MongoDBWriter}.
+ */
+interface RecordSink {
+
+	/**
+	 * @param record the document of a record
+	 * @param size the (estimated) size of the document in bytes
+	 */
+	void write(DBObject record, int size);
+
+	/**
+	 * Blocks until all records written so far have been sent to the database.
+	 */
+	void flush();
+
+	/**
+	 * Sends all pending records to the database and releases resources. Does
+	 * not close the connection.
+	 */
+	void close();
+
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+
+/**
+ * An immutable recording of the stream events of zero or more records. The
+ * events are kept as an array of opcodes and an array of the names and
+ * values they refer to, so replaying them does not allocate.
+ * <p>
+ * Recordings are created with a {@link Recorder}.
+ */
+final class RecordedEvents {
+
+	static final RecordedEvents EMPTY = new RecordedEvents(new byte[0],
+			new String[0], 0);
+
+	private static final byte START_RECORD = 1;
+	private static final byte END_RECORD = 2;
+	private static final byte START_ENTITY = 3;
+	private static final byte END_ENTITY = 4;
+	private static final byte LITERAL = 5;
+
+	private final byte[] opcodes;
+	private final String[] strings;
+	private final int records;
+
+	private RecordedEvents(final byte[] opcodes, final String[] strings,
+			final int records) {
+		this.opcodes = opcodes;
+		this.strings = strings;
+		this.records = records;
+	}
+
+	boolean isEmpty() {
+		return records == 0;
+	}
+
+	void replay(final StreamReceiver receiver) {
+		int string = 0;
+		for (final byte opcode : opcodes) {
+			switch (opcode) {
+				case START_RECORD:
+					receiver.startRecord(strings[string++]);
+					break;
+				case END_RECORD:
+					receiver.endRecord();
+					break;
+				case START_ENTITY:
+					receiver.startEntity(strings[string++]);
+					break;
+				case END_ENTITY:
+					receiver.endEntity();
+					break;
+				default:
+					receiver.literal(strings[string], strings[string + 1]);
+					string += 2;
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Records the events it receives. The recorder can be reused after
+	 * {@link #finish()}.
+	 */
+	static final class Recorder implements StreamReceiver {
+
+		private static final int INITIAL_SIZE = 64;
+
+		private byte[] opcodes = new byte[INITIAL_SIZE];
+		private int length;
+		private final List<String> strings = new ArrayList<>();
+		private int records;
+
+		@Override
+		public void startRecord(final String identifier) {
+			add(START_RECORD);
+			strings.add(identifier);
+			records += 1;
+		}
+
+		@Override
+		public void endRecord() {
+			add(END_RECORD);
+		}
+
+		@Override
+		public void startEntity(final String name) {
+			add(START_ENTITY);
+			strings.add(name);
+		}
+
+		@Override
+		public void endEntity() {
+			add(END_ENTITY);
+		}
+
+		@Override
+		public void literal(final String name, final String value) {
+			add(LITERAL);
+			strings.add(name);
+			strings.add(value);
+		}
+
+		@Override
+		public void resetStream() {
+			clear();
+		}
+
+		@Override
+		public void closeStream() {
+			// nothing to do
+		}
+
+		/**
+		 * @return the number of records received since the last call of
+		 *         {@link #finish()}
+		 */
+		int getRecords() {
+			return records;
+		}
+
+		/**
+		 * @return the events received since the last call and clears the
+		 *         recorder
+		 */
+		RecordedEvents finish() {
+			final RecordedEvents events;
+			if (length == 0) {
+				events = EMPTY;
+			} else {
+				events = new RecordedEvents(Arrays.copyOf(opcodes, length),
+						strings.toArray(new String[strings.size()]), records);
+			}
+			clear();
+			return events;
+		}
+
+		private void clear() {
+			length = 0;
+			strings.clear();
+			records = 0;
+		}
+
+		private void add(final byte opcode) {
+			if (length == opcodes.length) {
+				opcodes = Arrays.copyOf(opcodes, length * 2);
+			}
+			opcodes[length] = opcode;
+			length += 1;
+		}
+
+	}
+
+}
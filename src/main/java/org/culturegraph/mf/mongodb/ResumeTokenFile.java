@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.bson.BsonDocument;
+import org.culturegraph.mf.framework.MetafactureException;
+
+/**
+ * Stores the resume token of a change stream as JSON in a local file. The
+ * file is replaced atomically, so that it holds either the previous or the
+ * new token if the process dies while saving.
+ */
+final class ResumeTokenFile {
+
+	private final Path path;
+	private final Path temporaryPath;
+
+	ResumeTokenFile(final Path path) {
+		this.path = path;
+		temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+	}
+
+	/**
+	 * @return the saved token or {@code null} if the file does not exist
+	 */
+	BsonDocument load() {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try {
+			return BsonDocument.parse(new String(Files.readAllBytes(path),
+					StandardCharsets.UTF_8));
+		} catch (final IOException e) {
+			throw new MetafactureException("Cannot read resume token from "
+					+ path, e);
+		}
+	}
+
+	void save(final BsonDocument resumeToken) {
+		try {
+			Files.write(temporaryPath,
+					resumeToken.toJson().getBytes(StandardCharsets.UTF_8));
+			Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			throw new MetafactureException("Cannot write resume token to "
+					+ path, e);
+		}
+	}
+
+}
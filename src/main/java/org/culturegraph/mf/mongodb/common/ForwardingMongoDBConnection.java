@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import java.util.List;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * Base class for decorators of {@link MongoDBConnection} which forwards all
+ * calls to the decorated connection.
+ */
+abstract class ForwardingMongoDBConnection implements MongoDBConnection {
+
+	private final MongoDBConnection mongoDBConnection;
+
+	ForwardingMongoDBConnection(final MongoDBConnection mongoDBConnection) {
+		this.mongoDBConnection = mongoDBConnection;
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject) {
+		return mongoDBConnection.find(dbObject);
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject, final DBObject projection) {
+		return mongoDBConnection.find(dbObject, projection);
+	}
+
+	@Override
+	public Cursor aggregate(final List<DBObject> pipeline,
+			final AggregationOptions options) {
+		return mongoDBConnection.aggregate(pipeline, options);
+	}
+
+	@Override
+	public MongoCursor<ChangeStreamDocument<DBObject>> watch(
+			final List<DBObject> pipeline, final BsonDocument resumeToken) {
+		return mongoDBConnection.watch(pipeline, resumeToken);
+	}
+
+	@Override
+	public void createIndex(final DBObject keys) {
+		mongoDBConnection.createIndex(keys);
+	}
+
+	@Override
+	public void save(final DBObject dbObject) {
+		mongoDBConnection.save(dbObject);
+	}
+
+	@Override
+	public void saveAll(final List<DBObject> dbObjects) {
+		mongoDBConnection.saveAll(dbObjects);
+	}
+
+	@Override
+	public void close() {
+		mongoDBConnection.close();
+	}
+
+}
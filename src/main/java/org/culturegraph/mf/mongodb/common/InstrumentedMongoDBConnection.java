@@ -0,0 +1,593 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.model.Collation;
+
+/**
+ * Records call counts, documents, bytes and latencies of the operations of
+ * a {@link MongoDBConnection}. Cursor iteration, that is fetching further
+ * documents from the server, is recorded separately from the initial
+ * {@code find} or {@code aggregate} call. Only calls to
+ * {@code hasNext()}, which wait for the next batch of documents, are
+ * timed; {@code next()} merely hands out the document and is counted as
+ * such. As a {@link DBCursor} only executes its query when the first
+ * document is requested, that request is recorded as the latency of
+ * {@code find}.
+ * <p>
+ * The statistics of each operation are registered as an
+ * {@link OperationStatsMXBean} named
+ * {@code org.culturegraph.mf.mongodb:type=MongoDBConnection,name=<name>,operation=<operation>}
+ * and logged when the connection is closed. They may also be logged
+ * periodically.
+ */
+final class InstrumentedMongoDBConnection extends ForwardingMongoDBConnection {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(InstrumentedMongoDBConnection.class);
+
+	private static final String DOMAIN = "org.culturegraph.mf.mongodb";
+
+	private final String name;
+	private final OperationStats findStats = new OperationStats("find");
+	private final OperationStats aggregateStats =
+			new OperationStats("aggregate");
+	private final OperationStats cursorStats = new OperationStats("cursor");
+	private final OperationStats saveStats = new OperationStats("save");
+	private final OperationStats saveAllStats = new OperationStats("saveAll");
+	private final List<OperationStats> allStats = Arrays.asList(findStats,
+			aggregateStats, cursorStats, saveStats, saveAllStats);
+	private final List<ObjectName> registeredNames = new ArrayList<>();
+	private final ScheduledExecutorService logger;
+
+	/**
+	 * @param mongoDBConnection the connection to instrument
+	 * @param name the name under which the statistics are registered and
+	 *        logged
+	 * @param logIntervalSeconds interval of the periodic log line or zero
+	 *        to log only on close
+	 */
+	InstrumentedMongoDBConnection(final MongoDBConnection mongoDBConnection,
+			final String name, final int logIntervalSeconds) {
+		super(mongoDBConnection);
+		this.name = name;
+		registerMBeans();
+		if (logIntervalSeconds > 0) {
+			logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "mongodb-stats-" + name);
+				thread.setDaemon(true);
+				return thread;
+			});
+			logger.scheduleAtFixedRate(this::logStats, logIntervalSeconds,
+					logIntervalSeconds, TimeUnit.SECONDS);
+		} else {
+			logger = null;
+		}
+	}
+
+	OperationStats getStats(final String operation) {
+		for (final OperationStats stats : allStats) {
+			if (stats.getName().equals(operation)) {
+				return stats;
+			}
+		}
+		throw new IllegalArgumentException("Unknown operation: " + operation);
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject) {
+		return new TimedDBCursor(super.find(dbObject));
+	}
+
+	@Override
+	public DBCursor find(final DBObject dbObject, final DBObject projection) {
+		return new TimedDBCursor(super.find(dbObject, projection));
+	}
+
+	@Override
+	public Cursor aggregate(final List<DBObject> pipeline,
+			final AggregationOptions options) {
+		final long start = System.nanoTime();
+		try {
+			return new TimedCursor(super.aggregate(pipeline, options));
+		} finally {
+			aggregateStats.record(start);
+		}
+	}
+
+	@Override
+	public void save(final DBObject dbObject) {
+		final long start = System.nanoTime();
+		try {
+			super.save(dbObject);
+		} finally {
+			saveStats.record(start);
+		}
+		saveStats.addDocument(dbObject);
+	}
+
+	@Override
+	public void saveAll(final List<DBObject> dbObjects) {
+		final long start = System.nanoTime();
+		try {
+			super.saveAll(dbObjects);
+		} finally {
+			saveAllStats.record(start);
+		}
+		for (final DBObject dbObject : dbObjects) {
+			saveAllStats.addDocument(dbObject);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (logger != null) {
+			logger.shutdownNow();
+		}
+		logStats();
+		unregisterMBeans();
+		super.close();
+	}
+
+	private void logStats() {
+		for (final OperationStats stats : allStats) {
+			if (stats.getCalls() > 0) {
+				LOG.info("{} {}", name, stats);
+			}
+		}
+	}
+
+	private void registerMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final OperationStats stats : allStats) {
+			try {
+				final ObjectName objectName = new ObjectName(DOMAIN
+						+ ":type=MongoDBConnection,name=" + ObjectName.quote(name)
+						+ ",operation=" + stats.getName());
+				server.registerMBean(stats, objectName);
+				registeredNames.add(objectName);
+			} catch (final JMException e) {
+				LOG.warn("Could not register statistics of {}: {}", name,
+						e.getMessage());
+			}
+		}
+	}
+
+	private void unregisterMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final ObjectName objectName : registeredNames) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (final JMException e) {
+				LOG.warn("Could not unregister {}: {}", objectName, e.getMessage());
+			}
+		}
+		registeredNames.clear();
+	}
+
+	/**
+	 * Records the time spent in fetching documents of a {@link DBCursor}.
+	 * Since a {@link DBCursor} cannot be decorated through an interface, all
+	 * methods are overridden to delegate to the original cursor, which keeps
+	 * its decoder factory, options and modifiers. The state inherited from
+	 * {@link DBCursor} is only used by its constructor.
+	 */
+	private final class TimedDBCursor extends DBCursor {
+
+		private final DBCursor dbCursor;
+		private boolean executed;
+
+		TimedDBCursor(final DBCursor dbCursor) {
+			super(dbCursor.getCollection(), dbCursor.getQuery(),
+					dbCursor.getKeysWanted(), dbCursor.getReadPreference());
+			this.dbCursor = dbCursor;
+		}
+
+		/**
+		 * @return the statistics of {@code find} for the first request of
+		 *         documents, which executes the query, and those of the cursor
+		 *         for the following requests
+		 */
+		private OperationStats fetchStats() {
+			if (executed) {
+				return cursorStats;
+			}
+			executed = true;
+			return findStats;
+		}
+
+		@Override
+		public boolean hasNext() {
+			final OperationStats stats = fetchStats();
+			final long start = System.nanoTime();
+			try {
+				return dbCursor.hasNext();
+			} finally {
+				stats.record(start);
+			}
+		}
+
+		@Override
+		public DBObject next() {
+			final DBObject document = dbCursor.next();
+			cursorStats.addDocument(document);
+			return document;
+		}
+
+		@Override
+		public DBObject tryNext() {
+			final OperationStats stats = fetchStats();
+			final long start = System.nanoTime();
+			final DBObject document;
+			try {
+				document = dbCursor.tryNext();
+			} finally {
+				stats.record(start);
+			}
+			if (document != null) {
+				cursorStats.addDocument(document);
+			}
+			return document;
+		}
+
+		@Override
+		public DBCursor copy() {
+			return new TimedDBCursor(dbCursor.copy());
+		}
+
+		@Override
+		public DBObject curr() {
+			return dbCursor.curr();
+		}
+
+		@Override
+		public void remove() {
+			dbCursor.remove();
+		}
+
+		@Override
+		public DBCursor addOption(final int option) {
+			if (dbCursor == null) {
+				// Called by the constructor of DBCursor:
+				return super.addOption(option);
+			}
+			dbCursor.addOption(option);
+			return this;
+		}
+
+		@Override
+		public DBCursor setOptions(final int options) {
+			if (dbCursor == null) {
+				// Called by the constructor of DBCursor:
+				return super.setOptions(options);
+			}
+			dbCursor.setOptions(options);
+			return this;
+		}
+
+		@Override
+		public DBCursor resetOptions() {
+			dbCursor.resetOptions();
+			return this;
+		}
+
+		@Override
+		public int getOptions() {
+			return dbCursor.getOptions();
+		}
+
+		@Override
+		public int getLimit() {
+			return dbCursor.getLimit();
+		}
+
+		@Override
+		public int getBatchSize() {
+			return dbCursor.getBatchSize();
+		}
+
+		@Override
+		public DBCursor addSpecial(final String name, final Object value) {
+			dbCursor.addSpecial(name, value);
+			return this;
+		}
+
+		@Override
+		public DBCursor comment(final String comment) {
+			dbCursor.comment(comment);
+			return this;
+		}
+
+		@Override
+		public DBCursor maxScan(final int max) {
+			dbCursor.maxScan(max);
+			return this;
+		}
+
+		@Override
+		public DBCursor max(final DBObject max) {
+			dbCursor.max(max);
+			return this;
+		}
+
+		@Override
+		public DBCursor min(final DBObject min) {
+			dbCursor.min(min);
+			return this;
+		}
+
+		@Override
+		public DBCursor returnKey() {
+			dbCursor.returnKey();
+			return this;
+		}
+
+		@Override
+		public DBCursor showDiskLoc() {
+			dbCursor.showDiskLoc();
+			return this;
+		}
+
+		@Override
+		public DBCursor hint(final DBObject indexKeys) {
+			if (dbCursor == null) {
+				// Called by the constructor of DBCursor:
+				return super.hint(indexKeys);
+			}
+			dbCursor.hint(indexKeys);
+			return this;
+		}
+
+		@Override
+		public DBCursor hint(final String indexName) {
+			dbCursor.hint(indexName);
+			return this;
+		}
+
+		@Override
+		public DBCursor maxTime(final long maxTime, final TimeUnit timeUnit) {
+			dbCursor.maxTime(maxTime, timeUnit);
+			return this;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public DBCursor snapshot() {
+			dbCursor.snapshot();
+			return this;
+		}
+
+		@Override
+		public DBObject explain() {
+			return dbCursor.explain();
+		}
+
+		@Override
+		public DBCursor sort(final DBObject orderBy) {
+			dbCursor.sort(orderBy);
+			return this;
+		}
+
+		@Override
+		public DBCursor limit(final int limit) {
+			dbCursor.limit(limit);
+			return this;
+		}
+
+		@Override
+		public DBCursor batchSize(final int numberOfElements) {
+			dbCursor.batchSize(numberOfElements);
+			return this;
+		}
+
+		@Override
+		public DBCursor skip(final int numberOfElements) {
+			dbCursor.skip(numberOfElements);
+			return this;
+		}
+
+		@Override
+		public long getCursorId() {
+			return dbCursor.getCursorId();
+		}
+
+		@Override
+		public int numSeen() {
+			return dbCursor.numSeen();
+		}
+
+		@Override
+		public void close() {
+			dbCursor.close();
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public DBCursor slaveOk() {
+			dbCursor.slaveOk();
+			return this;
+		}
+
+		@Override
+		public Iterator<DBObject> iterator() {
+			return copy();
+		}
+
+		@Override
+		public List<DBObject> toArray() {
+			return dbCursor.toArray();
+		}
+
+		@Override
+		public List<DBObject> toArray(final int max) {
+			return dbCursor.toArray(max);
+		}
+
+		@Override
+		public int count() {
+			return dbCursor.count();
+		}
+
+		@Override
+		public DBObject one() {
+			return dbCursor.one();
+		}
+
+		@Override
+		public int length() {
+			return dbCursor.length();
+		}
+
+		@Override
+		public int itcount() {
+			return dbCursor.itcount();
+		}
+
+		@Override
+		public int size() {
+			return dbCursor.size();
+		}
+
+		@Override
+		public DBObject getKeysWanted() {
+			return dbCursor.getKeysWanted();
+		}
+
+		@Override
+		public DBObject getQuery() {
+			return dbCursor.getQuery();
+		}
+
+		@Override
+		public DBCollection getCollection() {
+			return dbCursor.getCollection();
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return dbCursor.getServerAddress();
+		}
+
+		@Override
+		public DBCursor setReadPreference(final ReadPreference readPreference) {
+			dbCursor.setReadPreference(readPreference);
+			return this;
+		}
+
+		@Override
+		public ReadPreference getReadPreference() {
+			return dbCursor.getReadPreference();
+		}
+
+		@Override
+		public Collation getCollation() {
+			return dbCursor.getCollation();
+		}
+
+		@Override
+		public DBCursor setCollation(final Collation collation) {
+			dbCursor.setCollation(collation);
+			return this;
+		}
+
+		@Override
+		public DBCursor setDecoderFactory(final DBDecoderFactory factory) {
+			dbCursor.setDecoderFactory(factory);
+			return this;
+		}
+
+		@Override
+		public DBDecoderFactory getDecoderFactory() {
+			return dbCursor.getDecoderFactory();
+		}
+
+		@Override
+		public String toString() {
+			return dbCursor.toString();
+		}
+
+	}
+
+	/**
+	 * Records the time spent in fetching documents from a {@link Cursor}.
+	 */
+	private final class TimedCursor implements Cursor {
+
+		private final Cursor cursor;
+
+		TimedCursor(final Cursor cursor) {
+			this.cursor = cursor;
+		}
+
+		@Override
+		public boolean hasNext() {
+			final long start = System.nanoTime();
+			try {
+				return cursor.hasNext();
+			} finally {
+				cursorStats.record(start);
+			}
+		}
+
+		@Override
+		public DBObject next() {
+			final DBObject document = cursor.next();
+			cursorStats.addDocument(document);
+			return document;
+		}
+
+		@Override
+		public long getCursorId() {
+			return cursor.getCursorId();
+		}
+
+		@Override
+		public ServerAddress getServerAddress() {
+			return cursor.getServerAddress();
+		}
+
+		@Override
+		public void close() {
+			cursor.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * Shares one {@link MongoClient} between all connections of the process
+ * which connect to the same servers with the same credentials and client
+ * options. Database and collection are not part of the key, so connections
+ * to different collections of one deployment share a connection pool.
+ * Client options such as {@code maxPoolSize} are taken from the URI of the
+ * first connection; URIs with different options get separate clients.
+ * <p>
+ * Clients are reference-counted and closed when the last connection using
+ * them is closed.
+ */
+final class MongoClientRegistry {
+
+	private static final Map<List<Object>, SharedClient> CLIENTS =
+			new HashMap<>();
+	private static final Map<MongoClient, SharedClient> BY_CLIENT =
+			new IdentityHashMap<>();
+
+	private MongoClientRegistry() {
+		throw new AssertionError("No instances allowed");
+	}
+
+	/**
+	 * Returns the client for the given URI and increments its reference
+	 * count. A new client is created if there is none yet.
+	 *
+	 * @param uri the connection URI
+	 * @return a shared client; must be released with
+	 *         {@link #release(MongoClient)}
+	 * @throws UnknownHostException if a new client cannot be created
+	 */
+	static synchronized MongoClient acquire(final MongoClientURI uri)
+			throws UnknownHostException {
+		final List<Object> key = keyOf(uri);
+		SharedClient sharedClient = CLIENTS.get(key);
+		if (sharedClient == null) {
+			sharedClient = new SharedClient(key, new MongoClient(uri));
+			CLIENTS.put(key, sharedClient);
+			BY_CLIENT.put(sharedClient.client, sharedClient);
+		}
+		sharedClient.references += 1;
+		return sharedClient.client;
+	}
+
+	/**
+	 * Decrements the reference count of a client obtained from
+	 * {@link #acquire(MongoClientURI)} and closes the client when it is no
+	 * longer used.
+	 *
+	 * @param client the client to release
+	 */
+	static void release(final MongoClient client) {
+		final SharedClient sharedClient;
+		synchronized (MongoClientRegistry.class) {
+			sharedClient = BY_CLIENT.get(client);
+			if (sharedClient == null) {
+				throw new IllegalStateException("Client is not registered");
+			}
+			sharedClient.references -= 1;
+			if (sharedClient.references > 0) {
+				return;
+			}
+			CLIENTS.remove(sharedClient.key);
+			BY_CLIENT.remove(client);
+		}
+		client.close();
+	}
+
+	static synchronized int size() {
+		return CLIENTS.size();
+	}
+
+	private static List<Object> keyOf(final MongoClientURI uri) {
+		final List<String> hosts = new ArrayList<>(uri.getHosts());
+		Collections.sort(hosts);
+		return Arrays.<Object>asList(hosts, uri.getCredentials(),
+				uri.getOptions());
+	}
+
+	/**
+	 * A client together with its reference count.
+	 */
+	private static final class SharedClient {
+
+		final List<Object> key;
+		final MongoClient client;
+		int references;
+
+		SharedClient(final List<Object> key, final MongoClient client) {
+			this.key = key;
+			this.client = client;
+		}
+
+	}
+
+}
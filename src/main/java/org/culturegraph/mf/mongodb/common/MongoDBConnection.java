@@ -15,8 +15,16 @@
  */
 package org.culturegraph.mf.mongodb.common;
 
+import java.util.List;
+
+import org.bson.BsonDocument;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
 
 /**
  * Provides access read/write access to a MongoDB.
@@ -27,8 +35,95 @@ public interface MongoDBConnection {
 
 	DBCursor find(DBObject dbObject);
 
+	/**
+	 * Finds documents and returns only the fields selected by
+	 * {@code projection}.
+	 *
+	 * @param dbObject the query
+	 * @param projection the fields to return
+	 * @return a cursor over the matching documents
+	 */
+	DBCursor find(DBObject dbObject, DBObject projection);
+
+	/**
+	 * Runs an aggregation pipeline on the collection.
+	 *
+	 * @param pipeline the stages of the pipeline
+	 * @param options options such as the cursor batch size
+	 * @return a cursor over the documents produced by the pipeline
+	 */
+	Cursor aggregate(List<DBObject> pipeline, AggregationOptions options);
+
+	/**
+	 * Opens the change stream of the collection (requires a replica set
+	 * running MongoDB 3.6 or later). Events of inserts, replacements and
+	 * updates carry the current version of the full document. The cursor
+	 * waits at most one second for new events in
+	 * {@link MongoCursor#tryNext()}.
+	 * <p>
+	 * The default implementation does not support change streams.
+	 *
+	 * @param pipeline stages which filter the change events, may be empty
+	 * @param resumeToken the resume token of the last processed event or
+	 *        {@code null} to start with the next change
+	 * @return a cursor over the change events
+	 * @throws UnsupportedOperationException if the connection does not
+	 *         support change streams
+	 */
+	default MongoCursor<ChangeStreamDocument<DBObject>> watch(
+			final List<DBObject> pipeline, final BsonDocument resumeToken) {
+		throw new UnsupportedOperationException(
+				"Change streams are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Creates an index on the collection unless it already exists.
+	 * <p>
+	 * The default implementation does not support indexes.
+	 *
+	 * @param keys the indexed fields and their sort order
+	 * @throws UnsupportedOperationException if the connection does not
+	 *         support indexes
+	 */
+	default void createIndex(final DBObject keys) {
+		throw new UnsupportedOperationException(
+				"Indexes are not supported by " + getClass().getName());
+	}
+
+	/**
+	 * Saves a document. A document with a {@link MongoDBKeys#RECORD_ID_KEY}
+	 * replaces an existing document with the same identifier or is inserted
+	 * if there is none.
+	 *
+	 * @param dbObject the document to save
+	 * @throws com.mongodb.MongoWriteException if the document could not be
+	 *         written
+	 * @throws com.mongodb.MongoWriteConcernException if the write concern
+	 *         could not be satisfied, which leaves open whether the document
+	 *         was stored
+	 */
 	void save(DBObject dbObject);
 
+	/**
+	 * Saves a batch of documents in a single unordered bulk operation.
+	 * Documents with a {@link MongoDBKeys#RECORD_ID_KEY} replace an existing
+	 * document with the same identifier or are inserted if there is none.
+	 * Implementations must not hold on to the list after returning.
+	 * <p>
+	 * The default implementation saves the documents one by one with
+	 * {@link #save(DBObject)} and thus stops at the first failing document.
+	 *
+	 * @param dbObjects the documents to save
+	 * @throws com.mongodb.MongoBulkWriteException if some of the documents
+	 *         could not be written. The indices of the reported write errors
+	 *         refer to positions in {@code dbObjects}.
+	 */
+	default void saveAll(final List<DBObject> dbObjects) {
+		for (final DBObject dbObject : dbObjects) {
+			save(dbObject);
+		}
+	}
+
 	void close();
 
 }
@@ -36,6 +36,80 @@ public final class MongoDBKeys {
 	 */
 	public static final String DATA_KEY = "data";
 
+	/**
+	 * The key used to store the layout version of a record. Records without
+	 * this key are stored in the {@link #LEGACY_FORMAT}.
+	 */
+	public static final String FORMAT_KEY = "format";
+
+	/**
+	 * The layout version of records whose data is an array of single-key
+	 * documents.
+	 */
+	public static final int LEGACY_FORMAT = 1;
+
+	/**
+	 * The layout version of records whose data is a document with one key
+	 * per entity and literal. The keys are prefixed with the position of
+	 * the element in its entity.
+	 */
+	public static final int COMPACT_FORMAT = 2;
+
+	/**
+	 * The layout version of records whose data is a single compressed binary
+	 * value holding the stream events of the record. The codec and the
+	 * compression level are stored in {@link #CODEC_KEY} and
+	 * {@link #LEVEL_KEY}.
+	 */
+	public static final int BINARY_FORMAT = 3;
+
+	/**
+	 * The key used to store the compression codec of a record in the
+	 * {@link #BINARY_FORMAT}.
+	 */
+	public static final String CODEC_KEY = "codec";
+
+	/**
+	 * The key used to store the compression level of a record in the
+	 * {@link #BINARY_FORMAT}.
+	 */
+	public static final String LEVEL_KEY = "level";
+
+	/**
+	 * The codec name of payloads compressed with {@link java.util.zip.Deflater}.
+	 */
+	public static final String DEFLATE_CODEC = "deflate";
+
+	/**
+	 * The key used to store the content hash of a record.
+	 */
+	public static final String HASH_KEY = "hash";
+
+	/**
+	 * The key used to store the time at which a record was last written.
+	 */
+	public static final String MODIFIED_KEY = "modified";
+
+	/**
+	 * The key used to store the values of the key paths of a record as
+	 * strings of the form {@code path:value}.
+	 */
+	public static final String KEYS_KEY = "keys";
+
+	/**
+	 * The key used to mark records whose entity and literal keys hold codes
+	 * of the name dictionary instead of the names. The codes are the
+	 * positions of the names in the dictionary written in base 36 and
+	 * follow {@link #KEY_PREFIX} like the names do.
+	 */
+	public static final String DICTIONARY_KEY = "dictionary";
+
+	/**
+	 * The suffix appended to the name of a collection to get the name of
+	 * the collection which holds its name dictionary.
+	 */
+	public static final String NAMES_COLLECTION_SUFFIX = ".names";
+
 	/**
 	 * The prefix to put in front of every entity and literal key.
 	 */
@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.DBObject;
+
+/**
+ * Collects call counts, documents, bytes and latencies of one kind of
+ * operation. All methods may be called from several threads.
+ */
+final class OperationStats implements OperationStatsMXBean {
+
+	private final String name;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LatencyHistogram histogram = new LatencyHistogram();
+
+	OperationStats(final String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	void record(final long startNanos) {
+		final long nanos = System.nanoTime() - startNanos;
+		calls.increment();
+		totalNanos.add(nanos);
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Counts a document and its size. The size of a {@link SizedDBObject}
+	 * is taken from the document, that of other documents is computed from
+	 * their decoded fields.
+	 *
+	 * @param document a document read or written by the operation
+	 */
+	void addDocument(final DBObject document) {
+		documents.increment();
+		if (document instanceof SizedDBObject) {
+			bytes.add(((SizedDBObject) document).getBSONSize());
+		} else {
+			bytes.add(documentSize(document));
+		}
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	@Override
+	public long getDocuments() {
+		return documents.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getTotalMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(totalNanos.sum());
+	}
+
+	@Override
+	public long getMeanMicros() {
+		final long count = calls.sum();
+		return count == 0 ? 0 : getTotalMicros() / count;
+	}
+
+	@Override
+	public long getMedianMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(50));
+	}
+
+	@Override
+	public long getP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(99));
+	}
+
+	private static long documentSize(final DBObject document) {
+		// Length and terminating zero:
+		long size = 5;
+		for (final String key : document.keySet()) {
+			size += elementSize(key, document.get(key));
+		}
+		return size;
+	}
+
+	private static long listSize(final List<?> list) {
+		long size = 5;
+		for (int i = 0; i < list.size(); ++i) {
+			size += elementSize(Integer.toString(i), list.get(i));
+		}
+		return size;
+	}
+
+	private static long elementSize(final String key, final Object value) {
+		// Type byte and name terminator:
+		final long size = 2 + utf8Length(key);
+		if (value == null) {
+			return size;
+		}
+		if (value instanceof String) {
+			return size + 5 + utf8Length((String) value);
+		}
+		if (value instanceof DBObject) {
+			return size + documentSize((DBObject) value);
+		}
+		if (value instanceof List) {
+			return size + listSize((List<?>) value);
+		}
+		if (value instanceof byte[]) {
+			return size + 5 + ((byte[]) value).length;
+		}
+		if (value instanceof Boolean) {
+			return size + 1;
+		}
+		if (value instanceof Integer) {
+			return size + 4;
+		}
+		// Longs, doubles, dates; other types are rare in records:
+		return size + 8;
+	}
+
+	private static int utf8Length(final String string) {
+		int length = string.length();
+		for (int i = 0; i < string.length(); ++i) {
+			final char c = string.charAt(i);
+			if (c >= 0x800 && !Character.isSurrogate(c)) {
+				length += 2;
+			} else if (c >= 0x80) {
+				// Two bytes, or four for a surrogate pair:
+				length += 1;
+			}
+		}
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + getCalls() + " calls, " + getDocuments() + " docs, "
+				+ getBytes() + " bytes, total " + getTotalMicros() / 1000
+				+ " ms, mean " + getMeanMicros() + " us, p50 " + getMedianMicros()
+				+ " us, p99 " + getP99Micros() + " us";
+	}
+
+}
@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+/**
+ * Statistics of one kind of operation of an instrumented
+ * {@link MongoDBConnection}. Times are given in microseconds; percentiles
+ * are accurate to a factor of two.
+ *
+ * @see MongoDBConnections#instrumentedConnection(MongoDBConnection, String, int)
+ */
+public interface OperationStatsMXBean {
+
+	long getCalls();
+
+	long getDocuments();
+
+	/**
+	 * @return the number of bytes of documents encoded as raw BSON; other
+	 *         documents are not measured
+	 */
+	long getBytes();
+
+	long getTotalMicros();
+
+	long getMeanMicros();
+
+	long getMedianMicros();
+
+	long getP99Micros();
+
+}
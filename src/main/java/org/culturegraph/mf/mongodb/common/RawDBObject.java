@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import org.bson.RawBsonDocument;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+
+/**
+ * A {@link com.mongodb.DBObject} backed by an encoded BSON document.
+ * Connections write the bytes of a {@code RawDBObject} to the database
+ * without encoding the document again. The document is read-only.
+ */
+public final class RawDBObject extends LazyDBObject implements SizedDBObject {
+
+	/**
+	 * Decodes query results into {@code RawDBObject}s. Use with
+	 * {@link com.mongodb.DBCursor#setDecoderFactory(DBDecoderFactory)}.
+	 */
+	public static final DBDecoderFactory DECODER_FACTORY =
+			new DBDecoderFactory() {
+
+				@Override
+				public DBDecoder create() {
+					return new RawDBObjectDecoder();
+				}
+
+			};
+
+	/**
+	 * Creates a {@code RawDBObject} for the BSON document in {@code bytes}.
+	 * The array is not copied.
+	 *
+	 * @param bytes an encoded BSON document
+	 */
+	public RawDBObject(final byte[] bytes) {
+		super(bytes, new LazyDBCallback(null));
+	}
+
+	/**
+	 * @return a view of the document which shares the underlying bytes
+	 */
+	public RawBsonDocument toRawBsonDocument() {
+		return new RawBsonDocument(getBytes(), getOffset(), getBSONSize());
+	}
+
+	/**
+	 * Wraps the bytes received from the server without decoding them.
+	 */
+	private static final class RawDBObjectDecoder extends LazyDBDecoder {
+
+		@Override
+		public DBObject decode(final byte[] bytes,
+				final DBCollection collection) {
+			return new RawDBObject(bytes);
+		}
+
+	}
+
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+
+/**
+ * Copies the bytes of a {@link RawDBObject} into the output without decoding
+ * them.
+ */
+final class RawDBObjectCodec implements Codec<RawDBObject> {
+
+	private final RawBsonDocumentCodec rawBsonDocumentCodec =
+			new RawBsonDocumentCodec();
+
+	@Override
+	public void encode(final BsonWriter writer, final RawDBObject value,
+			final EncoderContext encoderContext) {
+		final RawBsonDocument document = value.toRawBsonDocument();
+		writer.pipe(new BsonBinaryReader(document.getByteBuffer().asNIO()));
+	}
+
+	@Override
+	public RawDBObject decode(final BsonReader reader,
+			final DecoderContext decoderContext) {
+		final RawBsonDocument document = rawBsonDocumentCodec.decode(reader,
+				decoderContext);
+		final byte[] bytes = new byte[document.getByteBuffer().remaining()];
+		document.getByteBuffer().get(bytes);
+		return new RawDBObject(bytes);
+	}
+
+	@Override
+	public Class<RawDBObject> getEncoderClass() {
+		return RawDBObject.class;
+	}
+
+}
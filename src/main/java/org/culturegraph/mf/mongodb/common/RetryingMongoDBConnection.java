@@ -0,0 +1,116 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWaitQueueFullException;
+
+/**
+ * Repeats {@link #save(DBObject)} and {@link #saveAll(List)} calls which
+ * failed with a transient error: network errors, timeouts while selecting a
+ * server, a full connection pool and fail-overs of a replica set. The delay
+ * before each repetition doubles, starting with the given backoff and
+ * limited to {@value #MAX_BACKOFF_MILLIS} milliseconds.
+ * <p>
+ * Writes are upserts by record identifier, so repeating a write which has
+ * partly reached the server stores the same records again. Records without
+ * an identifier are inserted and may be stored twice.
+ */
+final class RetryingMongoDBConnection extends ForwardingMongoDBConnection {
+
+	static final long MAX_BACKOFF_MILLIS = 60000;
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RetryingMongoDBConnection.class);
+
+	private final int retries;
+	private final long backoffMillis;
+
+	RetryingMongoDBConnection(final MongoDBConnection mongoDBConnection,
+			final int retries, final long backoffMillis) {
+		super(mongoDBConnection);
+		this.retries = retries;
+		this.backoffMillis = backoffMillis;
+	}
+
+	@Override
+	public void save(final DBObject dbObject) {
+		for (int attempt = 0;; ++attempt) {
+			try {
+				super.save(dbObject);
+				return;
+			} catch (final MongoException e) {
+				awaitRetry(e, attempt);
+			}
+		}
+	}
+
+	@Override
+	public void saveAll(final List<DBObject> dbObjects) {
+		for (int attempt = 0;; ++attempt) {
+			try {
+				super.saveAll(dbObjects);
+				return;
+			} catch (final MongoException e) {
+				awaitRetry(e, attempt);
+			}
+		}
+	}
+
+	/**
+	 * Returns after the backoff of the given attempt if the failed call
+	 * should be repeated.
+	 *
+	 * @throws MongoException the given exception if it is not transient or
+	 *         all retries are used up
+	 */
+	private void awaitRetry(final MongoException exception, final int attempt) {
+		if (attempt >= retries || !isTransient(exception)) {
+			throw exception;
+		}
+		final long delay = Math.min(backoffMillis << Math.min(attempt, 30),
+				MAX_BACKOFF_MILLIS);
+		LOG.warn("Write failed, retry {} of {} in {} ms: {}",
+				Integer.valueOf(attempt + 1), Integer.valueOf(retries),
+				Long.valueOf(delay), exception.getMessage());
+		try {
+			Thread.sleep(delay);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MongoInterruptedException("Interrupted before retry", e);
+		}
+	}
+
+	private static boolean isTransient(final MongoException exception) {
+		return exception instanceof MongoSocketException
+				|| exception instanceof MongoTimeoutException
+				|| exception instanceof MongoWaitQueueFullException
+				|| exception instanceof MongoNotPrimaryException
+				|| exception instanceof MongoNodeIsRecoveringException;
+	}
+
+}
@@ -16,23 +16,62 @@
 package org.culturegraph.mf.mongodb.common;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.bson.BsonDocument;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 
 /**
  * Sets up the MongoDB connection.
+ * <p>
+ * Connections created with {@link MongoDBConnections#sharedConnection(String)}
+ * use a {@link MongoClient} shared through the {@link MongoClientRegistry}.
+ * All other connections own their client and close it in {@link #close()}.
+ * <p>
+ * {@link RawDBObject}s are written as they are. Their documents must contain
+ * a {@link MongoDBKeys#RECORD_ID_KEY}.
  *
  * @author Thomas Seidel
  */
 public class SimpleMongoDBConnection implements MongoDBConnection {
 
+	private static final BulkWriteOptions UNORDERED = new BulkWriteOptions()
+			.ordered(false);
+	private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+	private static final CodecRegistry CODEC_REGISTRY = CodecRegistries
+			.fromRegistries(CodecRegistries.fromCodecs(new RawDBObjectCodec()),
+					MongoClient.getDefaultCodecRegistry());
+
 	private final MongoClient mongoClient;
+	private final boolean shared;
 	private final DBCollection dbCollection;
+	private final MongoCollection<DBObject> collection;
+	private final AtomicBoolean closed = new AtomicBoolean();
 
 	/**
 	 * Create an instance of {@code SimpleMongoDBConnection}.
@@ -43,10 +82,23 @@ public class SimpleMongoDBConnection implements MongoDBConnection {
 	 */
 	public SimpleMongoDBConnection(final String uri)
 			throws UnknownHostException {
-		final MongoClientURI mongoClientUri = new MongoClientURI(uri);
-		mongoClient = new MongoClient(mongoClientUri);
+		this(new MongoClientURI(uri), false);
+	}
+
+	@SuppressWarnings("deprecation") // DBCollection is only available via getDB
+	SimpleMongoDBConnection(final MongoClientURI mongoClientUri,
+			final boolean shared) throws UnknownHostException {
+		if (shared) {
+			mongoClient = MongoClientRegistry.acquire(mongoClientUri);
+		} else {
+			mongoClient = new MongoClient(mongoClientUri);
+		}
+		this.shared = shared;
 		final DB db = mongoClient.getDB(mongoClientUri.getDatabase());
 		dbCollection = db.getCollection(mongoClientUri.getCollection());
+		collection = mongoClient.getDatabase(mongoClientUri.getDatabase())
+				.getCollection(mongoClientUri.getCollection(), DBObject.class)
+				.withCodecRegistry(CODEC_REGISTRY);
 	}
 
 	@Override
@@ -54,14 +106,82 @@ public final DBCursor find(final DBObject dbObject) {
 		return dbCollection.find(dbObject);
 	}
 
+	@Override
+	public final DBCursor find(final DBObject dbObject,
+			final DBObject projection) {
+		return dbCollection.find(dbObject, projection);
+	}
+
+	@Override
+	public final Cursor aggregate(final List<DBObject> pipeline,
+			final AggregationOptions options) {
+		return dbCollection.aggregate(pipeline, options);
+	}
+
+	@Override
+	public final MongoCursor<ChangeStreamDocument<DBObject>> watch(
+			final List<DBObject> pipeline, final BsonDocument resumeToken) {
+		final List<Bson> stages = new ArrayList<>(pipeline.size());
+		for (final DBObject stage : pipeline) {
+			stages.add(new BasicDBObject(stage.toMap()));
+		}
+		final ChangeStreamIterable<DBObject> changeStream = collection
+				.watch(stages)
+				.fullDocument(FullDocument.UPDATE_LOOKUP)
+				.maxAwaitTime(1, TimeUnit.SECONDS);
+		if (resumeToken != null) {
+			changeStream.resumeAfter(resumeToken);
+		}
+		return changeStream.iterator();
+	}
+
+	@Override
+	public final void createIndex(final DBObject keys) {
+		dbCollection.createIndex(keys);
+	}
+
 	@Override
 	public final void save(final DBObject dbObject) {
-		dbCollection.save(dbObject);
+		final Object id = dbObject.get(MongoDBKeys.RECORD_ID_KEY);
+		if (id == null) {
+			collection.insertOne(dbObject);
+		} else {
+			collection.replaceOne(new BasicDBObject(MongoDBKeys.RECORD_ID_KEY, id),
+					dbObject, UPSERT);
+		}
 	}
 
+	@Override
+	public final void saveAll(final List<DBObject> dbObjects) {
+		final List<WriteModel<DBObject>> requests = new ArrayList<>(
+				dbObjects.size());
+		for (final DBObject dbObject : dbObjects) {
+			final Object id = dbObject.get(MongoDBKeys.RECORD_ID_KEY);
+			if (id == null) {
+				requests.add(new InsertOneModel<>(dbObject));
+			} else {
+				requests.add(new ReplaceOneModel<>(
+						new BasicDBObject(MongoDBKeys.RECORD_ID_KEY, id), dbObject,
+						UPSERT));
+			}
+		}
+		collection.bulkWrite(requests, UNORDERED);
+	}
+
+	/**
+	 * Closes the client or, for shared clients, releases it. Further calls
+	 * have no effect.
+	 */
 	@Override
 	public final void close() {
-		mongoClient.close();
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (shared) {
+			MongoClientRegistry.release(mongoClient);
+		} else {
+			mongoClient.close();
+		}
 	}
 
 }
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import com.mongodb.DBObject;
+
+/**
+ * A {@link DBObject} which knows its encoded size. Instrumented connections
+ * (see {@link MongoDBConnections#instrumentedConnection(MongoDBConnection,
+ * String, int)}) take the size of such documents from the document instead
+ * of computing it.
+ */
+public interface SizedDBObject extends DBObject {
+
+	/**
+	 * @return the (estimated) size of the BSON encoding of the document in
+	 *         bytes
+	 */
+	int getBSONSize();
+
+}
@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public final class MongoDBAggregatorTest {
+
+	@Rule
+	public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+	private MongoDBAggregator mongoDBAggregator;
+
+	@Mock
+	private StreamReceiver receiver;
+
+	@Mock
+	private MongoDBConnection mongoDBConnection;
+
+	@Mock
+	private MongoDBConnection namesConnection;
+
+	@Mock
+	private Cursor cursor;
+
+	@Captor
+	private ArgumentCaptor<List<DBObject>> pipeline;
+
+	@Captor
+	private ArgumentCaptor<AggregationOptions> options;
+
+	@Before
+	public void setup() {
+		mongoDBAggregator = new MongoDBAggregator(mongoDBConnection);
+		mongoDBAggregator.setReceiver(receiver);
+	}
+
+	@Test
+	public void shouldCountValuesByGroupOnTheServer() {
+		when(mongoDBConnection.aggregate(anyList(), any())).thenReturn(cursor);
+		when(cursor.hasNext()).thenReturn(true, true, false);
+		when(cursor.next()).thenReturn(
+				BasicDBObject.parse("{_id: {group: 'g1', value: 'v1'}, count: 3}"),
+				BasicDBObject.parse("{_id: {group: 'g1', value: 'v2'}, count: 1}"));
+		mongoDBAggregator.setAllowDiskUse(true);
+		mongoDBAggregator.setBatchSize(50);
+
+		mongoDBAggregator.process("count A.a by B");
+
+		verify(mongoDBConnection).aggregate(pipeline.capture(),
+				options.capture());
+		assertEquals(parseList("["
+				+ "{$match: {'data.#A.#a': {$exists: true}, 'data.#B': {$exists: true}}},"
+				+ "{$project: {data: 1, group: '$data'}},"
+				+ "{$unwind: '$group'}, {$match: {'group.#B': {$exists: true}}},"
+				+ "{$unwind: '$data'}, {$match: {'data.#A': {$exists: true}}},"
+				+ "{$unwind: '$data.#A'}, {$match: {'data.#A.#a': {$exists: true}}},"
+				+ "{$group: {_id: {group: '$group.#B', value: '$data.#A.#a'}, count: {$sum: 1}}},"
+				+ "{$sort: {count: -1, _id: 1}}]"), pipeline.getValue());
+		assertTrue(options.getValue().getAllowDiskUse().booleanValue());
+		assertEquals(Integer.valueOf(50), options.getValue().getBatchSize());
+
+		final InOrder ordered = inOrder(receiver, cursor);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).literal("group", "g1");
+		ordered.verify(receiver).literal("value", "v1");
+		ordered.verify(receiver).literal("count", "3");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord("2");
+		ordered.verify(receiver).literal("group", "g1");
+		ordered.verify(receiver).literal("value", "v2");
+		ordered.verify(receiver).literal("count", "1");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(cursor).close();
+	}
+
+	@Test
+	public void shouldCountRecordsAndOccurrences() {
+		when(mongoDBConnection.aggregate(anyList(), any())).thenReturn(cursor);
+		when(cursor.hasNext()).thenReturn(true, false);
+		when(cursor.next()).thenReturn(BasicDBObject.parse(
+				"{_id: null, records: 2, occurrences: 5}"));
+
+		mongoDBAggregator.process("occurrences A.a");
+
+		verify(mongoDBConnection).aggregate(pipeline.capture(), any());
+		final List<DBObject> stages = pipeline.getValue();
+		assertEquals(BasicDBObject.parse("{$group: {_id: '$_id', n: {$sum: 1}}}"),
+				stages.get(stages.size() - 3));
+		assertEquals(BasicDBObject.parse("{$group: {_id: null, records: {$sum: 1}, "
+				+ "occurrences: {$sum: '$n'}}}"), stages.get(stages.size() - 2));
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).literal("records", "2");
+		ordered.verify(receiver).literal("occurrences", "5");
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldNumberResultsUniquelyWithinStream() {
+		when(mongoDBConnection.aggregate(anyList(), any())).thenReturn(cursor);
+		when(cursor.hasNext()).thenReturn(true, false, true, false, true, false);
+		when(cursor.next()).thenReturn(
+				BasicDBObject.parse("{_id: null, distinct: 4}"));
+
+		mongoDBAggregator.process("distinct A.a");
+		mongoDBAggregator.process("distinct B.b");
+		mongoDBAggregator.resetStream();
+		mongoDBAggregator.process("distinct C.c");
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).startRecord("2");
+		ordered.verify(receiver).resetStream();
+		ordered.verify(receiver).startRecord("1");
+	}
+
+	@Test
+	public void shouldMatchNamesAndCodesOfNameDictionary() {
+		final DBCursor loaded = nameSegments(new BasicDBObject(
+				MongoDBKeys.RECORD_ID_KEY, Integer.valueOf(0)).append("names",
+						Arrays.asList("B", "a", "A")));
+		when(namesConnection.find(new BasicDBObject())).thenReturn(loaded);
+		mongoDBAggregator = new MongoDBAggregator(mongoDBConnection,
+				namesConnection);
+		mongoDBAggregator.setReceiver(receiver);
+		when(mongoDBConnection.aggregate(anyList(), any())).thenReturn(cursor);
+
+		mongoDBAggregator.process("count A.a by B");
+
+		verify(mongoDBConnection).aggregate(pipeline.capture(), any());
+		assertEquals(parseList("["
+				+ "{$match: {$or: ["
+				+ "{'data.#A.#a': {$exists: true}, 'data.#B': {$exists: true}},"
+				+ "{'data.#2.#1': {$exists: true}, 'data.#0': {$exists: true}}]}},"
+				+ "{$project: {data: 1, group: '$data'}},"
+				+ "{$unwind: '$group'},"
+				+ "{$match: {$or: [{'group.#B': {$exists: true}}, {'group.#0': {$exists: true}}]}},"
+				+ "{$addFields: {group: {$ifNull: ['$group.#B', '$group.#0']}}},"
+				+ "{$unwind: '$data'},"
+				+ "{$match: {$or: [{'data.#A': {$exists: true}}, {'data.#2': {$exists: true}}]}},"
+				+ "{$addFields: {data: {$ifNull: ['$data.#A', '$data.#2']}}},"
+				+ "{$unwind: '$data'},"
+				+ "{$match: {$or: [{'data.#a': {$exists: true}}, {'data.#1': {$exists: true}}]}},"
+				+ "{$addFields: {data: {$ifNull: ['$data.#a', '$data.#1']}}},"
+				+ "{$group: {_id: {group: '$group', value: '$data'}, count: {$sum: 1}}},"
+				+ "{$sort: {count: -1, _id: 1}}]"), pipeline.getValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectInvalidAggregations() {
+		mongoDBAggregator.process("sum A.a");
+	}
+
+	private static Object parseList(final String json) {
+		return BasicDBObject.parse("{list: " + json + "}").get("list");
+	}
+
+	private static DBCursor nameSegments(final DBObject... segments) {
+		final DBCursor dbCursor = mock(DBCursor.class);
+		final Iterator<DBObject> iterator = Arrays.asList(segments).iterator();
+		when(dbCursor.hasNext()).thenAnswer(invocation ->
+				Boolean.valueOf(iterator.hasNext()));
+		when(dbCursor.next()).thenAnswer(invocation -> iterator.next());
+		return dbCursor;
+	}
+
+}
@@ -15,23 +15,50 @@
  */
 package org.culturegraph.mf.mongodb;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
 import org.culturegraph.mf.framework.StreamReceiver;
 import org.culturegraph.mf.mongodb.MongoDBReader;
 import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.util.JSON;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
 
 /**
  *
@@ -56,6 +83,19 @@ public final class MongoDBReaderTest {
 			+ "   ]"
 			+ " }";
 
+	private static final String COMPACT_DBOBJECT_AS_JSON = "{ \"_id\" : \"23\","
+			+ "   \"format\" : 2,"
+			+ "   \"data\" : {"
+			+ "     \"0#c\" : \"value1\","
+			+ "     \"1#C\" : {"
+			+ "       \"0#D\" : {"
+			+ "         \"0#d\" : \"value2\""
+			+ "       },"
+			+ "       \"1#c\" : \"value3\""
+			+ "     }"
+			+ "   }"
+			+ " }";
+
 	@Rule
 	public MockitoRule mockitoRule = MockitoJUnit.rule();
 
@@ -67,9 +107,18 @@ public final class MongoDBReaderTest {
 	@Mock
 	private MongoDBConnection mongoDBConnection;
 
+	@Mock
+	private MongoDBConnection namesConnection;
+
 	@Mock
 	private DBCursor dbCursor;
 
+	@Mock
+	private Cursor cursor;
+
+	@Captor
+	private ArgumentCaptor<List<DBObject>> pipeline;
+
 	@Before
 	public void setup() {
 		mongoDBReader = new MongoDBReader(mongoDBConnection);
@@ -78,9 +127,9 @@ public void setup() {
 
 	@Test
 	public void shouldRetrieveSingleDBObjectAsStream() {
-		final DBObject queryDBObject = (DBObject) JSON.parse(
+		final DBObject queryDBObject = BasicDBObject.parse(
 				QUERY_DBOBJECT_AS_JSON);
-		final DBObject retrievedDBObject = (DBObject) JSON.parse(
+		final DBObject retrievedDBObject = BasicDBObject.parse(
 				RETRIEVED_DBOBJECT_AS_JSON);
 		when(dbCursor.hasNext()).thenReturn(true, false);
 		when(dbCursor.next()).thenReturn(retrievedDBObject);
@@ -101,4 +150,550 @@ public void shouldRetrieveSingleDBObjectAsStream() {
 		ordered.verify(receiver).endRecord();
 	}
 
+	@Test
+	public void shouldDecodeRawBsonResultsAsStream() {
+		final DBObject queryDBObject = BasicDBObject.parse(
+				QUERY_DBOBJECT_AS_JSON);
+		when(dbCursor.hasNext()).thenReturn(true, false);
+		when(dbCursor.next()).thenReturn(rawDBObject(RETRIEVED_DBOBJECT_AS_JSON));
+		when(mongoDBConnection.find(queryDBObject)).thenReturn(dbCursor);
+		mongoDBReader.setRawBson(true);
+
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		verify(dbCursor).setDecoderFactory(RawDBObject.DECODER_FACTORY);
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("23");
+		ordered.verify(receiver).literal("c", "value1");
+		ordered.verify(receiver).startEntity("C");
+		ordered.verify(receiver).startEntity("D");
+		ordered.verify(receiver).literal("d", "value2");
+		ordered.verify(receiver).endEntity();
+		ordered.verify(receiver).literal("c", "value3");
+		ordered.verify(receiver).endEntity();
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldDecodeCodesOfNameDictionary() {
+		final String coded = "{ \"_id\" : \"23\", \"format\" : 2,"
+				+ "   \"dictionary\" : true,"
+				+ "   \"data\" : { \"0#0\" : \"value1\", \"1#1\" : { \"0#a\" : null } }"
+				+ " }";
+		when(dbCursor.hasNext()).thenReturn(true, true, false);
+		when(dbCursor.next()).thenReturn(BasicDBObject.parse(coded),
+				rawDBObject(coded));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		final DBCursor loaded = nameSegments(nameSegment(0, "c", "C"));
+		final DBCursor reloaded = nameSegments(nameSegment(0, "c", "C"),
+				nameSegment(2, names(2, 11)));
+		when(namesConnection.find(new BasicDBObject())).thenReturn(loaded,
+				reloaded);
+		mongoDBReader = new MongoDBReader(mongoDBConnection, namesConnection);
+		mongoDBReader.setReceiver(receiver);
+
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		verify(namesConnection, times(2)).find(new BasicDBObject());
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord("23");
+			ordered.verify(receiver).literal("c", "value1");
+			ordered.verify(receiver).startEntity("C");
+			ordered.verify(receiver).literal("name10", null);
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).endRecord();
+		}
+	}
+
+	@Test
+	public void shouldDecodeCompactLayout() {
+		when(dbCursor.hasNext()).thenReturn(true, true, false);
+		when(dbCursor.next()).thenReturn(
+				BasicDBObject.parse(COMPACT_DBOBJECT_AS_JSON),
+				rawDBObject(COMPACT_DBOBJECT_AS_JSON));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord("23");
+			ordered.verify(receiver).literal("c", "value1");
+			ordered.verify(receiver).startEntity("C");
+			ordered.verify(receiver).startEntity("D");
+			ordered.verify(receiver).literal("d", "value2");
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).literal("c", "value3");
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).endRecord();
+		}
+	}
+
+	@Test
+	public void shouldDecodeCompressedPayloadAcrossStreamResets() {
+		final CompressedRecordEncoder encoder = new CompressedRecordEncoder(6);
+		final DBObject compressed = encodeCompressed(encoder);
+		encoder.reset();
+		final DBObject compressedAfterReset = encodeCompressed(encoder);
+		assertEquals(compressed, compressedAfterReset);
+		when(dbCursor.hasNext()).thenReturn(true, false, true, false);
+		when(dbCursor.next()).thenReturn(compressed, new RawDBObject(
+				new BasicBSONEncoder().encode(compressedAfterReset)));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+
+		mongoDBReader.process("23");
+		mongoDBReader.resetStream();
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord("23");
+			ordered.verify(receiver).literal("c", "value1");
+			ordered.verify(receiver).startEntity("C");
+			ordered.verify(receiver).literal("d", null);
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).literal("e", "value3");
+			ordered.verify(receiver).endRecord();
+		}
+	}
+
+	@Test
+	public void shouldLookUpConsecutiveIdsWithSingleQuery() {
+		final DBObject inQuery = BasicDBObject.parse(
+				"{ \"_id\" : { \"$in\" : [ \"1\", \"2\", \"3\" ] } }");
+		when(dbCursor.hasNext()).thenReturn(true, true, false);
+		when(dbCursor.next()).thenReturn(record("3"), record("1"));
+		when(mongoDBConnection.find(inQuery)).thenReturn(dbCursor);
+		mongoDBReader.setLookupBatchSize(3);
+		mongoDBReader.setKeepOrder(true);
+
+		mongoDBReader.process("1");
+		mongoDBReader.process("2");
+		verify(mongoDBConnection, never()).find(any(DBObject.class));
+		mongoDBReader.process("3");
+		mongoDBReader.closeStream();
+
+		verify(mongoDBConnection).find(inQuery);
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord("3");
+		ordered.verify(receiver).endRecord();
+		verify(receiver, never()).startRecord("2");
+	}
+
+	@Test
+	public void shouldSendPendingIdsOnClose() {
+		final DBObject inQuery = BasicDBObject.parse(
+				"{ \"_id\" : { \"$in\" : [ \"1\" ] } }");
+		when(dbCursor.hasNext()).thenReturn(true, false);
+		when(dbCursor.next()).thenReturn(record("1"));
+		when(mongoDBConnection.find(inQuery)).thenReturn(dbCursor);
+		mongoDBReader.setLookupBatchSize(10);
+
+		mongoDBReader.process("1");
+		mongoDBReader.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).closeStream();
+	}
+
+	@Test
+	public void shouldPrefetchResultsOfFieldQueries() {
+		when(dbCursor.hasNext()).thenReturn(true, true, true, false);
+		when(dbCursor.next()).thenReturn(record("1"), record("2"), record("3"));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		mongoDBReader.setPrefetch(2);
+		mongoDBReader.setCursorBatchSize(100);
+
+		mongoDBReader.process("#C.#c:value");
+		mongoDBReader.closeStream();
+
+		verify(dbCursor).batchSize(100);
+		verify(dbCursor).close();
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).startRecord("2");
+		ordered.verify(receiver).startRecord("3");
+		ordered.verify(receiver).closeStream();
+	}
+
+	@Test(timeout = 10000)
+	public void shouldEmitResultsOfConcurrentQueriesInInputOrder() {
+		final CountDownLatch secondQueryDone = new CountDownLatch(1);
+		final DBCursor firstCursor = mock(DBCursor.class);
+		when(firstCursor.hasNext()).thenAnswer(invocation -> {
+			secondQueryDone.await();
+			return Boolean.TRUE;
+		}).thenReturn(false);
+		when(firstCursor.next()).thenReturn(record("1"));
+		when(dbCursor.hasNext()).thenReturn(true, false);
+		when(dbCursor.next()).thenReturn(record("2"));
+		doAnswer(invocation -> {
+			secondQueryDone.countDown();
+			return null;
+		}).when(dbCursor).close();
+		when(mongoDBConnection.find(any(DBObject.class))).thenAnswer(invocation ->
+				invocation.getArgument(0).toString().contains("first")
+						? firstCursor : dbCursor);
+		mongoDBReader.setConcurrency(2);
+
+		mongoDBReader.process("#C.#c:first");
+		mongoDBReader.process("#C.#c:second");
+		mongoDBReader.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).startRecord("2");
+		ordered.verify(receiver).closeStream();
+	}
+
+	@Test(timeout = 10000)
+	public void shouldCancelPendingQueriesIfConcurrentQueryFails() {
+		final CountDownLatch secondQueryRunning = new CountDownLatch(1);
+		final DBCursor firstCursor = mock(DBCursor.class);
+		when(firstCursor.hasNext()).thenAnswer(invocation -> {
+			secondQueryRunning.await();
+			throw new MongoSocketReadException("Connection reset",
+					new ServerAddress());
+		});
+		when(dbCursor.hasNext()).thenAnswer(invocation -> {
+			secondQueryRunning.countDown();
+			// Blocks until the query is cancelled:
+			new CountDownLatch(1).await();
+			return Boolean.TRUE;
+		});
+		when(mongoDBConnection.find(any(DBObject.class))).thenAnswer(invocation ->
+				invocation.getArgument(0).toString().contains("first")
+						? firstCursor : dbCursor);
+		mongoDBReader.setConcurrency(2);
+
+		try {
+			mongoDBReader.process("#C.#c:first");
+			mongoDBReader.process("#C.#c:second");
+			mongoDBReader.closeStream();
+			fail("Expected MongoSocketReadException");
+		} catch (final MongoSocketReadException e) {
+			verify(firstCursor, timeout(1000)).close();
+			verify(dbCursor, timeout(1000)).close();
+			verify(receiver, never()).startRecord(any());
+		}
+	}
+
+	@Test
+	public void shouldThrowErrorsOfPrefetchingCursorOnProcessingThread() {
+		when(dbCursor.hasNext()).thenReturn(true);
+		when(dbCursor.next()).thenReturn(record("1")).thenThrow(
+				new MongoSocketReadException("Connection reset",
+						new ServerAddress()));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		mongoDBReader.setPrefetch(10);
+
+		try {
+			mongoDBReader.process("#C.#c:value");
+			fail("Expected MongoSocketReadException");
+		} catch (final MongoSocketReadException e) {
+			verify(receiver).startRecord("1");
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void shouldThrowJvmErrorsOfPrefetchingCursorOnProcessingThread() {
+		when(dbCursor.hasNext()).thenReturn(true);
+		when(dbCursor.next()).thenThrow(new OutOfMemoryError("Java heap space"));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		mongoDBReader.setPrefetch(10);
+
+		try {
+			mongoDBReader.process("#C.#c:value");
+			fail("Expected OutOfMemoryError");
+		} catch (final OutOfMemoryError e) {
+			verify(dbCursor).close();
+		}
+	}
+
+	@Test
+	public void shouldLetServerFilterSelectedFields() {
+		final List<DBObject> pipeline = Arrays.asList(
+				BasicDBObject.parse("{ \"$match\" : " + QUERY_DBOBJECT_AS_JSON + " }"),
+				BasicDBObject.parse("{ \"$project\" : { \"format\" : 1, \"codec\" : 1, \"dictionary\" : 1, \"data\" : { \"$cond\" : ["
+						+ " { \"$isArray\" : \"$data\" },"
+						+ " { \"$filter\" : {"
+						+ " \"input\" : \"$data\", \"as\" : \"element\", \"cond\" : { \"$cond\" : ["
+						+ " { \"$eq\" : [ \"$dictionary\", true ] }, false, { \"$or\" : ["
+						+ " { \"$ne\" : [ { \"$type\" : \"$$element.#c\" }, \"missing\" ] }"
+						+ " ] } ] } } },"
+						+ " { \"$cond\" : [ { \"$eq\" : [ { \"$type\" : \"$data\" }, \"object\" ] },"
+						+ " { \"$arrayToObject\" : { \"$filter\" : {"
+						+ " \"input\" : { \"$objectToArray\" : \"$data\" }, \"as\" : \"element\","
+						+ " \"cond\" : { \"$in\" : [ { \"$substrBytes\" : [ \"$$element.k\","
+						+ " { \"$add\" : [ { \"$indexOfBytes\" : [ \"$$element.k\", \"#\" ] }, 1 ] }, -1 ] },"
+						+ " { \"$cond\" : [ { \"$eq\" : [ \"$dictionary\", true ] }, [ ], [ \"c\" ] ] } ] } } } },"
+						+ " \"$data\" ] }"
+						+ " ] } } }"));
+		final DBObject filteredDBObject = BasicDBObject.parse(
+				"{ \"_id\" : \"23\", \"data\" : [ { \"#c\" : \"value1\" } ] }");
+		when(cursor.hasNext()).thenReturn(true, false);
+		when(cursor.next()).thenReturn(filteredDBObject);
+		when(mongoDBConnection.aggregate(eq(pipeline), any(AggregationOptions.class)))
+				.thenReturn(cursor);
+		mongoDBReader.setFields("c");
+
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		verify(mongoDBConnection, never()).find(any(DBObject.class));
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("23");
+		ordered.verify(receiver).literal("c", "value1");
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldLetServerFilterSelectedFieldsByCode() {
+		final DBCursor loaded = nameSegments(nameSegment(0, "C", "c"));
+		when(namesConnection.find(new BasicDBObject())).thenReturn(loaded);
+		mongoDBReader = new MongoDBReader(mongoDBConnection, namesConnection);
+		mongoDBReader.setReceiver(receiver);
+		when(cursor.hasNext()).thenReturn(true, false);
+		when(cursor.next()).thenReturn(BasicDBObject.parse(
+				"{ \"_id\" : \"23\", \"dictionary\" : true, \"data\" : [ { \"#1\" : \"value1\" } ] }"));
+		when(mongoDBConnection.aggregate(pipeline.capture(),
+				any(AggregationOptions.class))).thenReturn(cursor);
+		mongoDBReader.setFields("c");
+
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		final DBObject projection = (DBObject) pipeline.getValue().get(1)
+				.get("$project");
+		final List<?> data = (List<?>) ((DBObject) projection.get("data"))
+				.get("$cond");
+		assertEquals(BasicDBObject.parse("{ \"$cond\" : [ { \"$eq\" : [ \"$dictionary\", true ] },"
+				+ " { \"$or\" : [ { \"$ne\" : [ { \"$type\" : \"$$element.#1\" }, \"missing\" ] } ] },"
+				+ " { \"$or\" : [ { \"$ne\" : [ { \"$type\" : \"$$element.#c\" }, \"missing\" ] } ] } ] }"),
+				((DBObject) ((DBObject) data.get(1)).get("$filter")).get("cond"));
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("23");
+		ordered.verify(receiver).literal("c", "value1");
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldAnswerRepeatedQueriesFromCache() {
+		final DBObject queryDBObject = BasicDBObject.parse(
+				QUERY_DBOBJECT_AS_JSON);
+		when(dbCursor.hasNext()).thenReturn(true, false);
+		when(dbCursor.next()).thenReturn(
+				BasicDBObject.parse(RETRIEVED_DBOBJECT_AS_JSON));
+		when(mongoDBConnection.find(queryDBObject)).thenReturn(dbCursor);
+		mongoDBReader.setCacheSize(1);
+
+		mongoDBReader.process("23");
+		mongoDBReader.process("23");
+		mongoDBReader.closeStream();
+
+		verify(mongoDBConnection, times(1)).find(queryDBObject);
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord("23");
+			ordered.verify(receiver).literal("c", "value1");
+			ordered.verify(receiver).startEntity("C");
+			ordered.verify(receiver).startEntity("D");
+			ordered.verify(receiver).literal("d", "value2");
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).literal("c", "value3");
+			ordered.verify(receiver).endEntity();
+			ordered.verify(receiver).endRecord();
+		}
+		assertEquals(1, mongoDBReader.getCacheHits());
+		assertEquals(1, mongoDBReader.getCacheMisses());
+	}
+
+	@Test
+	public void shouldEmitResultsExceedingCacheMaxRecordsWithoutCaching() {
+		when(dbCursor.hasNext()).thenReturn(true, true, false, true, true, false);
+		when(dbCursor.next()).thenReturn(record("1"), record("2"), record("1"),
+				record("2"));
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		mongoDBReader.setCacheSize(1);
+		mongoDBReader.setCacheMaxRecords(1);
+
+		mongoDBReader.process("#C.#c:value");
+		mongoDBReader.process("#C.#c:value");
+		mongoDBReader.closeStream();
+
+		verify(mongoDBConnection, times(2)).find(any(DBObject.class));
+		final InOrder ordered = inOrder(receiver);
+		for (int i = 0; i < 2; ++i) {
+			ordered.verify(receiver).startRecord("1");
+			ordered.verify(receiver).startRecord("2");
+		}
+		assertEquals(0, mongoDBReader.getCacheHits());
+	}
+
+	@Test
+	public void shouldCacheBatchedLookupsAndMissingIds() {
+		final DBObject inQuery = BasicDBObject.parse(
+				"{ \"_id\" : { \"$in\" : [ \"1\", \"2\", \"3\" ] } }");
+		when(dbCursor.hasNext()).thenReturn(true, true, false);
+		when(dbCursor.next()).thenReturn(record("1"), record("2"));
+		when(mongoDBConnection.find(inQuery)).thenReturn(dbCursor);
+		mongoDBReader.setLookupBatchSize(3);
+		mongoDBReader.setCacheSize(2);
+
+		mongoDBReader.process("1");
+		mongoDBReader.process("2");
+		mongoDBReader.process("3");
+		mongoDBReader.process("3");
+		mongoDBReader.process("2");
+		mongoDBReader.closeStream();
+
+		verify(mongoDBConnection, times(1)).find(any(DBObject.class));
+		verify(receiver, times(2)).startRecord("2");
+		assertEquals(2, mongoDBReader.getCacheHits());
+		assertEquals(3, mongoDBReader.getCacheMisses());
+		assertEquals(1, mongoDBReader.getCacheEvictions());
+	}
+
+	@Test
+	public void shouldQueryRecordsModifiedSinceInStampOrder() {
+		final DBObject sinceQuery = new BasicDBObject(MongoDBKeys.MODIFIED_KEY,
+				new BasicDBObject("$gt", new Date(1485864000000L)));
+		when(dbCursor.hasNext()).thenReturn(true, true, false);
+		when(dbCursor.next()).thenReturn(record("1"), record("2"));
+		when(mongoDBConnection.find(sinceQuery)).thenReturn(dbCursor);
+		mongoDBReader.setCacheSize(10);
+
+		mongoDBReader.process("since:2017-01-31T12:00:00Z");
+		mongoDBReader.process("since:1485864000000");
+
+		verify(dbCursor, times(2)).sort(new BasicDBObject(
+				MongoDBKeys.MODIFIED_KEY, 1).append(MongoDBKeys.RECORD_ID_KEY, 1));
+		verify(mongoDBConnection, times(2)).find(sinceQuery);
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("1");
+		ordered.verify(receiver).startRecord("2");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectInvalidSinceTimestamp() {
+		mongoDBReader.process("since:yesterday");
+	}
+
+	@Test
+	public void shouldRouteKeyFieldQueriesToIndexedKeys() {
+		when(dbCursor.hasNext()).thenReturn(true, false);
+		when(dbCursor.next()).thenReturn(record("1"));
+		when(mongoDBConnection.find(new BasicDBObject(MongoDBKeys.KEYS_KEY,
+				"C.D.d:value2"))).thenReturn(dbCursor);
+		mongoDBReader.setKeyFields("C.D.d");
+
+		mongoDBReader.process("#C.#D.#d:value2");
+
+		verify(receiver).startRecord("1");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldCompileExtendedQueries() {
+		final DBObject expected = BasicDBObject.parse("{ \"$and\" : ["
+				+ " { \"$or\" : ["
+				+ "   { },"
+				+ "   { \"keys\" : { \"$elemMatch\" :"
+				+ "     { \"$gte\" : \"C.D.d:a b\", \"$lt\" : \"C.D.d;\" } } } ] },"
+				+ " { \"modified\" : { \"$gt\" : { \"$date\" : 1485864000000 } } } ] }");
+		// Parsing would turn the $regex string into a Pattern:
+		((List<Object>) ((DBObject) ((List<?>) expected.get("$and")).get(0))
+				.get("$or")).set(0, new BasicDBObject(MongoDBKeys.RECORD_ID_KEY,
+						new BasicDBObject("$regex", "^118\\.")));
+		when(dbCursor.hasNext()).thenReturn(false);
+		when(mongoDBConnection.find(expected)).thenReturn(dbCursor);
+		mongoDBReader.setQuerySyntax(MongoDBReader.QuerySyntax.EXTENDED);
+		mongoDBReader.setKeyFields("C.D.d");
+
+		mongoDBReader.process("(_id:118.* OR #C.#D.#d:[\"a b\" TO *}) "
+				+ "AND since:1485864000000 limit:5 sort:-_id");
+
+		verify(mongoDBConnection).find(expected);
+		verify(dbCursor).sort(new BasicDBObject(MongoDBKeys.RECORD_ID_KEY, -1));
+		verify(dbCursor).limit(5);
+	}
+
+	@Test
+	public void shouldReuseCompiledFormOfSameShapedQueries() {
+		when(dbCursor.hasNext()).thenReturn(false);
+		when(mongoDBConnection.find(any(DBObject.class))).thenReturn(dbCursor);
+		mongoDBReader.setQuerySyntax(MongoDBReader.QuerySyntax.EXTENDED);
+
+		mongoDBReader.process("#C.#c:[a TO b]");
+		mongoDBReader.process("#C.#c:[c TO d]");
+		mongoDBReader.process("#C.#c:{c TO d]");
+
+		verify(mongoDBConnection).find(BasicDBObject.parse(
+				"{ \"data.#C\" : { \"$elemMatch\" :"
+				+ " { \"#c\" : { \"$gte\" : \"c\", \"$lte\" : \"d\" } } } }"));
+		assertEquals(1, mongoDBReader.getPlanCacheHits());
+		assertEquals(2, mongoDBReader.getPlanCacheMisses());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnanchoredPatterns() {
+		mongoDBReader.setQuerySyntax(MongoDBReader.QuerySyntax.EXTENDED);
+
+		mongoDBReader.process("#C.#c:*value");
+	}
+
+	private static DBObject encodeCompressed(
+			final CompressedRecordEncoder encoder) {
+		encoder.startRecord("23");
+		encoder.literal("c", "value1");
+		encoder.startEntity("C");
+		encoder.literal("d", null);
+		encoder.endEntity();
+		encoder.literal("e", "value3");
+		return encoder.endRecord();
+	}
+
+	private static String[] names(final int from, final int to) {
+		final String[] names = new String[to - from];
+		for (int i = from; i < to; ++i) {
+			names[i - from] = "name" + i;
+		}
+		return names;
+	}
+
+	private static DBCursor nameSegments(final DBObject... segments) {
+		final DBCursor dbCursor = mock(DBCursor.class);
+		final Iterator<DBObject> iterator = Arrays.asList(segments).iterator();
+		when(dbCursor.hasNext()).thenAnswer(invocation ->
+				Boolean.valueOf(iterator.hasNext()));
+		when(dbCursor.next()).thenAnswer(invocation -> iterator.next());
+		return dbCursor;
+	}
+
+	private static DBObject nameSegment(final int start, final String... names) {
+		return new BasicDBObject(MongoDBKeys.RECORD_ID_KEY,
+				Integer.valueOf(start)).append("names", Arrays.asList(names));
+	}
+
+	private static DBObject record(final String id) {
+		return BasicDBObject.parse("{ \"_id\" : \"" + id
+				+ "\", \"data\" : [] }");
+	}
+
+	static RawDBObject rawDBObject(final String json) {
+		final ByteBuf byteBuf = RawBsonDocument.parse(json).getByteBuffer();
+		final byte[] bytes = new byte[byteBuf.remaining()];
+		byteBuf.get(bytes);
+		return new RawDBObject(bytes);
+	}
+
 }
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.bson.types.ObjectId;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public final class MongoDBScannerTest {
+
+	@Rule
+	public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+	private static final String TYPES_BEFORE_STRINGS = "{ \"_id\" : { \"$type\" : "
+			+ "[\"minKey\", \"null\", \"double\", \"int\", \"long\", \"decimal\"] } }";
+	private static final String TYPES_AFTER_STRINGS = "{ \"_id\" : { \"$not\" : "
+			+ "{ \"$type\" : [\"minKey\", \"null\", \"double\", \"int\", \"long\", "
+			+ "\"decimal\", \"string\", \"symbol\"] } } }";
+
+	private MongoDBScanner mongoDBScanner;
+
+	@Mock
+	private StreamReceiver receiver;
+
+	@Mock
+	private MongoDBConnection mongoDBConnection;
+
+	@Mock
+	private Cursor sampleCursor;
+
+	@Before
+	public void setup() {
+		mongoDBScanner = new MongoDBScanner(mongoDBConnection);
+		mongoDBScanner.setReceiver(receiver);
+	}
+
+	@Test
+	public void shouldReadIdRangesInIdOrder() {
+		when(mongoDBConnection.aggregate(anyList(), any(AggregationOptions.class)))
+				.thenReturn(sampleCursor);
+		when(sampleCursor.hasNext()).thenReturn(true, true, true, false);
+		when(sampleCursor.next()).thenReturn(record("a"), record("c"),
+				record("e"));
+		final DBCursor lowerRange = cursor(record("a"), record("b"));
+		final DBCursor upperRange = cursor(record("c"), record("d"));
+		final DBCursor otherIds = cursor();
+		when(mongoDBConnection.find(query("{ \"_id\" : { \"$lt\" : \"c\" } }")))
+				.thenReturn(lowerRange);
+		when(mongoDBConnection.find(query("{ \"_id\" : { \"$gte\" : \"c\" } }")))
+				.thenReturn(upperRange);
+		when(mongoDBConnection.find(query(TYPES_BEFORE_STRINGS)))
+				.thenReturn(otherIds);
+		when(mongoDBConnection.find(query(TYPES_AFTER_STRINGS)))
+				.thenReturn(otherIds);
+		mongoDBScanner.setThreads(2);
+		mongoDBScanner.setPartitions(2);
+		mongoDBScanner.setOrdered(true);
+
+		mongoDBScanner.process("");
+		mongoDBScanner.closeStream();
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("a");
+		ordered.verify(receiver).startRecord("b");
+		ordered.verify(receiver).startRecord("c");
+		ordered.verify(receiver).startRecord("d");
+		ordered.verify(receiver).closeStream();
+	}
+
+	@Test
+	public void shouldReadIdsOfOtherTypesThanTheSplitPoints() {
+		when(mongoDBConnection.aggregate(anyList(), any(AggregationOptions.class)))
+				.thenReturn(sampleCursor);
+		when(sampleCursor.hasNext()).thenReturn(true, true, true, false);
+		when(sampleCursor.next()).thenReturn(record("a"), record("c"),
+				record("e"));
+		final ObjectId objectId = new ObjectId();
+		final DBCursor lowerRange = cursor(record("b"));
+		final DBCursor upperRange = cursor(record("d"));
+		final DBCursor numberIds = cursor(record(Integer.valueOf(1)));
+		final DBCursor objectIds = cursor(record(objectId));
+		when(mongoDBConnection.find(query("{ \"_id\" : { \"$lt\" : \"c\" } }")))
+				.thenReturn(lowerRange);
+		when(mongoDBConnection.find(query("{ \"_id\" : { \"$gte\" : \"c\" } }")))
+				.thenReturn(upperRange);
+		when(mongoDBConnection.find(query(TYPES_BEFORE_STRINGS)))
+				.thenReturn(numberIds);
+		when(mongoDBConnection.find(query(TYPES_AFTER_STRINGS)))
+				.thenReturn(objectIds);
+		mongoDBScanner.setThreads(2);
+		mongoDBScanner.setPartitions(2);
+		mongoDBScanner.setOrdered(true);
+
+		mongoDBScanner.process("");
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord(null);
+		ordered.verify(receiver).startRecord("b");
+		ordered.verify(receiver).startRecord("d");
+		ordered.verify(receiver).startRecord(objectId.toHexString());
+	}
+
+	@Test
+	public void shouldScanWholeCollectionIfSampleHoldsMixedIdTypes() {
+		when(mongoDBConnection.aggregate(anyList(), any(AggregationOptions.class)))
+				.thenReturn(sampleCursor);
+		when(sampleCursor.hasNext()).thenReturn(true, true, true, false);
+		when(sampleCursor.next()).thenReturn(record("a"), record("c"),
+				record(new ObjectId()));
+		final DBCursor all = cursor(record("x"));
+		when(mongoDBConnection.find(query("{ }"))).thenReturn(all);
+		mongoDBScanner.setPartitions(2);
+
+		mongoDBScanner.process("");
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("x");
+		ordered.verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldScanWholeCollectionWithSinglePartition() {
+		final DBCursor all = cursor(record("x"));
+		when(mongoDBConnection.find(query("{ }"))).thenReturn(all);
+		mongoDBScanner.setPartitions(1);
+
+		mongoDBScanner.process("");
+
+		final InOrder ordered = inOrder(receiver);
+		ordered.verify(receiver).startRecord("x");
+		ordered.verify(receiver).endRecord();
+	}
+
+	private static DBCursor cursor() {
+		final DBCursor dbCursor = mock(DBCursor.class);
+		when(dbCursor.hasNext()).thenReturn(false);
+		return dbCursor;
+	}
+
+	private static DBCursor cursor(final DBObject first, final DBObject... rest) {
+		final DBCursor dbCursor = mock(DBCursor.class);
+		final Boolean[] more = new Boolean[rest.length + 1];
+		for (int i = 0; i < rest.length; ++i) {
+			more[i] = Boolean.TRUE;
+		}
+		more[rest.length] = Boolean.FALSE;
+		when(dbCursor.hasNext()).thenReturn(true, more);
+		when(dbCursor.next()).thenReturn(first, rest);
+		return dbCursor;
+	}
+
+	private static DBObject query(final String json) {
+		return BasicDBObject.parse(json);
+	}
+
+	private static DBObject record(final Object id) {
+		final DBObject record = BasicDBObject.parse("{ \"data\" : [] }");
+		record.put("_id", id);
+		return record;
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.AdditionalAnswers.returnsElementsOf;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.culturegraph.mf.framework.StreamReceiver;
+import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+public final class MongoDBWatcherTest {
+
+	@Rule
+	public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private MongoDBWatcher mongoDBWatcher;
+
+	@Mock
+	private StreamReceiver receiver;
+
+	@Mock
+	private MongoDBConnection mongoDBConnection;
+
+	@Mock
+	private MongoCursor<ChangeStreamDocument<DBObject>> cursor;
+
+	@Before
+	public void setup() {
+		mongoDBWatcher = new MongoDBWatcher(mongoDBConnection);
+		mongoDBWatcher.setReceiver(receiver);
+	}
+
+	@Test
+	public void shouldEmitChangedAndDeletedRecordsUntilInvalidated() {
+		when(mongoDBConnection.watch(anyList(), isNull())).thenReturn(cursor);
+		when(cursor.tryNext()).thenAnswer(returnsElementsOf(Arrays.asList(
+				change(1, OperationType.INSERT, "a", "value1"), null,
+				change(2, OperationType.REPLACE, "b", "value2"),
+				change(3, OperationType.DELETE, "c", null),
+				change(4, OperationType.INVALIDATE, null, null))));
+		mongoDBWatcher.setDeletions(true);
+
+		mongoDBWatcher.process("");
+
+		final InOrder ordered = inOrder(receiver, cursor);
+		ordered.verify(receiver).startRecord("a");
+		ordered.verify(receiver).literal("l", "value1");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord("b");
+		ordered.verify(receiver).literal("l", "value2");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(receiver).startRecord("c");
+		ordered.verify(receiver).literal(MongoDBWatcher.DELETION_LITERAL,
+				"true");
+		ordered.verify(receiver).endRecord();
+		ordered.verify(cursor).close();
+	}
+
+	@Test
+	public void shouldNotEmitDeletionsByDefault() {
+		when(mongoDBConnection.watch(anyList(), isNull())).thenReturn(cursor);
+		when(cursor.tryNext()).thenAnswer(returnsElementsOf(Arrays.asList(
+				change(1, OperationType.DELETE, "c", null),
+				change(2, OperationType.INVALIDATE, null, null))));
+
+		mongoDBWatcher.process("");
+
+		verify(receiver, never()).startRecord("c");
+	}
+
+	@Test
+	public void shouldEmitDeletionsOfObjectIdsAndSkipOtherIds() {
+		final ObjectId objectId = new ObjectId();
+		when(mongoDBConnection.watch(anyList(), isNull())).thenReturn(cursor);
+		when(cursor.tryNext()).thenAnswer(returnsElementsOf(Arrays.asList(
+				deletion(1, new BsonInt32(23)),
+				deletion(2, new BsonObjectId(objectId)),
+				change(3, OperationType.INVALIDATE, null, null))));
+		mongoDBWatcher.setDeletions(true);
+
+		mongoDBWatcher.process("");
+
+		verify(receiver).startRecord(objectId.toHexString());
+		verify(receiver).literal(MongoDBWatcher.DELETION_LITERAL, "true");
+		verify(receiver).endRecord();
+	}
+
+	@Test
+	public void shouldResumeAfterSavedToken() throws IOException {
+		final File tokenFile = new File(temporaryFolder.getRoot(), "token.json");
+		when(mongoDBConnection.watch(anyList(), isNull())).thenReturn(cursor);
+		when(cursor.tryNext()).thenAnswer(returnsElementsOf(Arrays.asList(
+				change(1, OperationType.INSERT, "a", "value1"),
+				change(2, OperationType.INSERT, "b", "value2"),
+				change(3, OperationType.INVALIDATE, null, null))));
+		mongoDBWatcher.setResumeTokenFile(tokenFile.getPath());
+
+		mongoDBWatcher.process("");
+
+		assertEquals(token(2), new ResumeTokenFile(tokenFile.toPath()).load());
+
+		final MongoDBWatcher restarted = new MongoDBWatcher(mongoDBConnection);
+		restarted.setReceiver(receiver);
+		restarted.setResumeTokenFile(tokenFile.getPath());
+		when(mongoDBConnection.watch(anyList(), eq(token(2))))
+				.thenReturn(cursor);
+		when(cursor.tryNext()).thenAnswer(returnsElementsOf(Arrays.asList(
+				change(4, OperationType.INVALIDATE, null, null))));
+
+		restarted.process("");
+
+		verify(mongoDBConnection).watch(anyList(), eq(token(2)));
+	}
+
+	private static ChangeStreamDocument<DBObject> change(final int token,
+			final OperationType operationType, final String id,
+			final String value) {
+		final DBObject fullDocument = value == null ? null
+				: BasicDBObject.parse("{\"_id\":\"" + id
+						+ "\",\"data\":[{\"l\":\"" + value + "\"}]}");
+		final BsonDocument documentKey = id == null ? null
+				: new BsonDocument("_id", new BsonString(id));
+		return new ChangeStreamDocument<>(token(token), null, fullDocument,
+				documentKey, operationType, null);
+	}
+
+	private static ChangeStreamDocument<DBObject> deletion(final int token,
+			final BsonValue id) {
+		return new ChangeStreamDocument<>(token(token), null, null,
+				new BsonDocument("_id", id), OperationType.DELETE, null);
+	}
+
+	private static BsonDocument token(final int token) {
+		return new BsonDocument("_data", new BsonInt32(token));
+	}
+
+}
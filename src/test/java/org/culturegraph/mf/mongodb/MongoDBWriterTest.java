@@ -15,16 +15,52 @@
  */
 package org.culturegraph.mf.mongodb;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.culturegraph.mf.framework.MetafactureException;
 import org.culturegraph.mf.mongodb.MongoDBWriter;
 import org.culturegraph.mf.mongodb.common.MongoDBConnection;
+import org.culturegraph.mf.mongodb.common.MongoDBKeys;
+import org.culturegraph.mf.mongodb.common.RawDBObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
-import com.mongodb.util.JSON;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
 
 /**
  *
@@ -47,11 +83,17 @@ public final class MongoDBWriterTest {
 			+ "   ]"
 			+ " }";
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	private MongoDBWriter mongoDBWriter;
 
 	@Mock
 	private MongoDBConnection mongoDBConnection;
 
+	@Mock
+	private MongoDBConnection namesConnection;
+
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
@@ -71,9 +113,667 @@ public void shouldSaveStreamAsSingleDBObject() {
 		mongoDBWriter.endRecord();
 		mongoDBWriter.closeStream();
 
-		final DBObject expected = (DBObject) JSON
-				.parse(EXPECTED_DBOBJECT_AS_JSON);
+		final DBObject expected = BasicDBObject.parse(EXPECTED_DBOBJECT_AS_JSON);
 		Mockito.verify(mongoDBConnection).save(expected);
 	}
 
+	@Test
+	public void shouldEncodeRawBsonInSameLayout() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setRawBson(true);
+
+		mongoDBWriter.startRecord("42");
+		mongoDBWriter.literal("a", "value1");
+		mongoDBWriter.startEntity("A");
+		mongoDBWriter.startEntity("B");
+		mongoDBWriter.literal("b", "value2");
+		mongoDBWriter.endEntity();
+		mongoDBWriter.literal("a", "value3");
+		mongoDBWriter.endEntity();
+		mongoDBWriter.endRecord();
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertEquals(BsonDocument.parse(EXPECTED_DBOBJECT_AS_JSON),
+				((RawDBObject) saved.getValue()).toRawBsonDocument());
+	}
+
+	@Test
+	public void shouldSaveCompactLayout() {
+		final String expected = "{ \"_id\" : \"42\", \"format\" : 2,"
+				+ "   \"data\" : {"
+				+ "     \"0#a\" : \"value1\","
+				+ "     \"1#A\" : { \"0#B\" : { \"0#b\" : \"value2\" }, \"1#a\" : \"value3\" }"
+				+ "   }"
+				+ " }";
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setLayout(MongoDBWriter.Layout.COMPACT);
+		writeNestedRecord();
+		mongoDBWriter.setRawBson(true);
+		writeNestedRecord();
+
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).save(
+				saved.capture());
+		assertEquals(BsonDocument.parse(expected), BsonDocument.parse(
+				saved.getAllValues().get(0).toString()));
+		assertEquals(BsonDocument.parse(expected),
+				((RawDBObject) saved.getAllValues().get(1)).toRawBsonDocument());
+	}
+
+	@Test
+	public void shouldStoreNewNamesOfRecordWithOneAppend() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		final DBCursor empty = nameSegments();
+		final DBCursor stillEmpty = nameSegments();
+		Mockito.when(namesConnection.find(new BasicDBObject())).thenReturn(
+				empty, stillEmpty);
+		mongoDBWriter = new MongoDBWriter(mongoDBConnection, namesConnection);
+		mongoDBWriter.setDictionary(true);
+
+		writeNestedRecord();
+		writeNestedRecord();
+
+		Mockito.verify(namesConnection).save(nameSegment(0, "a", "A", "B",
+				"b"));
+		Mockito.verify(namesConnection, Mockito.times(2)).find(
+				new BasicDBObject());
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).save(
+				saved.capture());
+		assertEquals(BsonDocument.parse("{ \"_id\" : \"42\", \"dictionary\" : true,"
+				+ "   \"data\" : ["
+				+ "     { \"#0\" : \"value1\" },"
+				+ "     { \"#1\" : [ { \"#2\" : [ { \"#3\" : \"value2\" } ] },"
+				+ "       { \"#0\" : \"value3\" } ] }"
+				+ "   ]"
+				+ " }"), BsonDocument.parse(saved.getValue().toString()));
+	}
+
+	@Test
+	public void shouldEncodeRecordAgainIfNameDictionaryWasExtended() {
+		final String expected = "{ \"_id\" : \"42\", \"dictionary\" : true,"
+				+ "   \"data\" : ["
+				+ "     { \"#0\" : \"value1\" },"
+				+ "     { \"#2\" : [ { \"#1\" : [ { \"#3\" : \"value2\" } ] },"
+				+ "       { \"#0\" : \"value3\" } ] }"
+				+ "   ]"
+				+ " }";
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		final DBCursor loaded = nameSegments(nameSegment(0, "a"));
+		// Another writer adds "B" and "A" after the dictionary was loaded:
+		final DBCursor checked = nameSegments(nameSegment(0, "a"),
+				nameSegment(1, "B", "A"));
+		final DBCursor reloaded = nameSegments(nameSegment(0, "a"),
+				nameSegment(1, "B", "A"));
+		final DBCursor checkedAgain = nameSegments(nameSegment(0, "a"),
+				nameSegment(1, "B", "A"));
+		Mockito.when(namesConnection.find(new BasicDBObject())).thenReturn(
+				loaded, checked, reloaded, checkedAgain);
+		mongoDBWriter = new MongoDBWriter(mongoDBConnection, namesConnection);
+		mongoDBWriter.setDictionary(true);
+
+		writeNestedRecord();
+		mongoDBWriter.setRawBson(true);
+		writeNestedRecord();
+
+		Mockito.verify(namesConnection).save(nameSegment(3, "b"));
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).save(
+				saved.capture());
+		assertEquals(BsonDocument.parse(expected), BsonDocument.parse(
+				saved.getAllValues().get(0).toString()));
+		assertEquals(BsonDocument.parse(expected),
+				((RawDBObject) saved.getAllValues().get(1)).toRawBsonDocument());
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldFailWithoutNamesConnection() {
+		mongoDBWriter.setDictionary(true);
+
+		writeNestedRecord();
+	}
+
+	@Test
+	public void shouldSaveCompressedPayloadWithCodecAndLevel() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setCompression(MongoDBWriter.Compression.DEFLATE);
+		mongoDBWriter.setCompressionLevel(9);
+
+		writeNestedRecord();
+
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		final DBObject record = saved.getValue();
+		assertEquals("42", record.get(MongoDBKeys.RECORD_ID_KEY));
+		assertEquals(Integer.valueOf(MongoDBKeys.BINARY_FORMAT),
+				record.get(MongoDBKeys.FORMAT_KEY));
+		assertEquals(MongoDBKeys.DEFLATE_CODEC, record.get(MongoDBKeys.CODEC_KEY));
+		assertEquals(Integer.valueOf(9), record.get(MongoDBKeys.LEVEL_KEY));
+		assertTrue(record.get(MongoDBKeys.DATA_KEY) instanceof byte[]);
+	}
+
+	@Test
+	public void shouldSaveRecordsInBatches() {
+		final List<List<DBObject>> batches = recordBatches();
+		mongoDBWriter.setBatchSize(2);
+
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		writeRecord("3", "c");
+		assertEquals(1, batches.size());
+		mongoDBWriter.closeStream();
+
+		assertEquals(2, batches.size());
+		assertEquals(Arrays.asList("1", "2"), recordIds(batches.get(0)));
+		assertEquals(Arrays.asList("3"), recordIds(batches.get(1)));
+		Mockito.verify(mongoDBConnection, Mockito.never()).save(
+				Mockito.any(DBObject.class));
+		Mockito.verify(mongoDBConnection).close();
+	}
+
+	@Test
+	public void shouldFlushBatchWhenByteBudgetIsExceeded() {
+		final List<List<DBObject>> batches = recordBatches();
+		mongoDBWriter.setBatchSize(100);
+		mongoDBWriter.setBatchBytes(1);
+
+		writeRecord("1", "a");
+
+		assertEquals(1, batches.size());
+	}
+
+	@Test
+	public void shouldKeepLastWriteOfRecordsWithSameIdInBatch() {
+		final List<List<DBObject>> batches = recordBatches();
+		mongoDBWriter.setBatchSize(10);
+
+		writeRecord("1", "old");
+		writeRecord("2", "b");
+		writeRecord("1", "new");
+		mongoDBWriter.closeStream();
+
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList("1", "2"), recordIds(batches.get(0)));
+		assertEquals(BasicDBObject.parse("{ \"_id\" : \"1\", \"data\" : [ { \"#a\" : \"new\" } ] }"),
+				batches.get(0).get(0));
+	}
+
+	@Test
+	public void shouldNameFailedRecordsInBulkWriteError() {
+		final MongoBulkWriteException bulkWriteException =
+				new MongoBulkWriteException(BulkWriteResult.unacknowledged(),
+						Arrays.asList(new BulkWriteError(11000, "duplicate key",
+								new BsonDocument(), 1)),
+						null, new ServerAddress());
+		doThrow(bulkWriteException).when(mongoDBConnection).saveAll(anyList());
+		mongoDBWriter.setBatchSize(2);
+
+		writeRecord("1", "a");
+		try {
+			writeRecord("2", "b");
+			fail("Expected MetafactureException");
+		} catch (final MetafactureException e) {
+			assertTrue(e.getMessage().contains("[2: duplicate key]"));
+		}
+	}
+
+	@Test
+	public void shouldWriteRecordsAsynchronously() {
+		final List<List<DBObject>> batches = recordBatches();
+		mongoDBWriter.setFlushThreads(2);
+		mongoDBWriter.setQueueSize(2);
+		mongoDBWriter.setBatchSize(3);
+
+		for (int i = 0; i < 10; ++i) {
+			writeRecord(Integer.toString(i), "value");
+		}
+		mongoDBWriter.closeStream();
+
+		int records = 0;
+		for (final List<DBObject> batch : batches) {
+			records += batch.size();
+		}
+		assertEquals(10, records);
+		Mockito.verify(mongoDBConnection).close();
+	}
+
+	@Test
+	public void shouldKeepWriteOrderOfEachRecordAcrossThreads() {
+		final List<DBObject> saved = Collections.synchronizedList(
+				new ArrayList<>());
+		doAnswer(invocation -> saved.add(invocation.getArgument(0)))
+				.when(mongoDBConnection).save(Mockito.any(DBObject.class));
+		mongoDBWriter.setFlushThreads(4);
+		mongoDBWriter.setQueueSize(4);
+
+		for (int version = 0; version < 20; ++version) {
+			for (int id = 0; id < 8; ++id) {
+				writeRecord(Integer.toString(id), Integer.toString(version));
+			}
+		}
+		mongoDBWriter.closeStream();
+
+		assertEquals(160, saved.size());
+		final int[] lastVersion = new int[8];
+		Arrays.fill(lastVersion, -1);
+		for (final DBObject record : saved) {
+			final int id = Integer.parseInt((String) record.get(
+					MongoDBKeys.RECORD_ID_KEY));
+			final int version = Integer.parseInt((String) ((DBObject) ((List<?>)
+					record.get(MongoDBKeys.DATA_KEY)).get(0)).get("#a"));
+			assertEquals(lastVersion[id] + 1, version);
+			lastVersion[id] = version;
+		}
+	}
+
+	@Test
+	public void shouldRethrowAsynchronousFailureOnClose() {
+		doThrow(new MongoException("connection lost")).when(mongoDBConnection)
+				.save(Mockito.any(DBObject.class));
+		mongoDBWriter.setFlushThreads(1);
+
+		writeRecord("1", "a");
+		try {
+			mongoDBWriter.closeStream();
+			fail("Expected MetafactureException");
+		} catch (final MetafactureException e) {
+			assertTrue(e.getMessage().contains("connection lost"));
+		}
+		Mockito.verify(mongoDBConnection).close();
+	}
+
+	@Test(timeout = 10000)
+	public void shouldRethrowAsynchronousErrorOnFlushAndClose() {
+		doThrow(new OutOfMemoryError("Java heap space")).when(mongoDBConnection)
+				.save(Mockito.any(DBObject.class));
+		mongoDBWriter.setFlushThreads(1);
+
+		writeRecord("1", "a");
+		try {
+			mongoDBWriter.resetStream();
+			fail("Expected MetafactureException");
+		} catch (final MetafactureException e) {
+			assertTrue(e.getCause() instanceof OutOfMemoryError);
+		}
+		try {
+			mongoDBWriter.closeStream();
+			fail("Expected MetafactureException");
+		} catch (final MetafactureException e) {
+			assertTrue(e.getCause() instanceof OutOfMemoryError);
+		}
+		Mockito.verify(mongoDBConnection).close();
+	}
+
+	@Test
+	public void shouldStoreContentHashWhenSkippingUnchangedRecords() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		storedRecords();
+		mongoDBWriter.setSkipUnchanged(true);
+		mongoDBWriter.setHashLookupBatchSize(1);
+
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertTrue(saved.getValue().get(MongoDBKeys.HASH_KEY) instanceof Long);
+	}
+
+	@Test
+	public void shouldSkipUnchangedRecords() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		storedRecords();
+		mongoDBWriter.setSkipUnchanged(true);
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+
+		Mockito.reset(mongoDBConnection);
+		storedRecords(saved.getValue());
+		mongoDBWriter = new MongoDBWriter(mongoDBConnection);
+		mongoDBWriter.setSkipUnchanged(true);
+		mongoDBWriter.setHashLookup(MongoDBWriter.HashLookup.PRELOAD);
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertEquals("2", saved.getValue().get(MongoDBKeys.RECORD_ID_KEY));
+	}
+
+	@Test
+	public void shouldRewriteUnchangedRecordsIfKeyFieldsAreAdded() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		storedRecords();
+		mongoDBWriter.setSkipUnchanged(true);
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+
+		Mockito.reset(mongoDBConnection);
+		storedRecords(saved.getValue());
+		mongoDBWriter = new MongoDBWriter(mongoDBConnection);
+		mongoDBWriter.setSkipUnchanged(true);
+		mongoDBWriter.setKeyFields("a");
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertEquals(Arrays.asList("a:a"),
+				saved.getValue().get(MongoDBKeys.KEYS_KEY));
+	}
+
+	@Test
+	public void shouldSkipUnchangedRecordsFoundByBatchLookup() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		final ArgumentCaptor<DBObject> lookup = ArgumentCaptor
+				.forClass(DBObject.class);
+		storedRecords();
+		mongoDBWriter.setSkipUnchanged(true);
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+
+		Mockito.reset(mongoDBConnection);
+		storedRecords(saved.getValue());
+		mongoDBWriter = new MongoDBWriter(mongoDBConnection);
+		mongoDBWriter.setSkipUnchanged(true);
+		mongoDBWriter.setHashLookupBatchSize(2);
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).find(lookup.capture(),
+				Mockito.any(DBObject.class));
+		assertEquals(BasicDBObject.parse(
+				"{ \"_id\" : { \"$in\" : [ \"1\", \"2\" ] } }"), lookup.getValue());
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertEquals("2", saved.getValue().get(MongoDBKeys.RECORD_ID_KEY));
+	}
+
+	@Test
+	public void shouldWriteBatchedRecordsIfHashLookupFailsOnClose() {
+		final List<List<DBObject>> batches = recordBatches();
+		final DBCursor dbCursor = Mockito.mock(DBCursor.class);
+		Mockito.when(mongoDBConnection.find(Mockito.any(DBObject.class),
+				Mockito.any(DBObject.class))).thenReturn(dbCursor)
+				.thenThrow(new MongoException("lookup failed"));
+		mongoDBWriter.setSkipUnchanged(true);
+		mongoDBWriter.setHashLookupBatchSize(2);
+		mongoDBWriter.setBatchSize(10);
+
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		writeRecord("3", "c");
+		try {
+			mongoDBWriter.closeStream();
+			fail("Expected MongoException");
+		} catch (final MongoException e) {
+			assertEquals("lookup failed", e.getMessage());
+		}
+
+		assertEquals(1, batches.size());
+		assertEquals(Arrays.asList("1", "2"), recordIds(batches.get(0)));
+	}
+
+	@Test
+	public void shouldStampRecordsWithModificationTime() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setModificationStamp(true);
+		mongoDBWriter.setRawBson(true);
+		final long before = System.currentTimeMillis();
+
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).createIndex(new BasicDBObject(
+				MongoDBKeys.MODIFIED_KEY, 1).append(MongoDBKeys.RECORD_ID_KEY, 1));
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).save(saved.capture());
+		final Date first = (Date) saved.getAllValues().get(0)
+				.get(MongoDBKeys.MODIFIED_KEY);
+		final Date second = (Date) saved.getAllValues().get(1)
+				.get(MongoDBKeys.MODIFIED_KEY);
+		assertTrue(first.getTime() >= before);
+		assertTrue(second.compareTo(first) >= 0);
+	}
+
+	@Test
+	public void shouldStampRecordsWhenSentByFlushThreads()
+			throws InterruptedException {
+		final List<List<DBObject>> batches = recordBatches();
+		mongoDBWriter.setModificationStamp(true);
+		mongoDBWriter.setRawBson(true);
+		mongoDBWriter.setFlushThreads(2);
+		mongoDBWriter.setBatchSize(2);
+		final List<Long> started = new ArrayList<>();
+
+		for (int i = 0; i < 6; ++i) {
+			started.add(Long.valueOf(System.currentTimeMillis()));
+			writeRecord(Integer.toString(i), "value");
+			Thread.sleep(2);
+		}
+		mongoDBWriter.closeStream();
+
+		int records = 0;
+		for (final List<DBObject> batch : batches) {
+			final Date stamp = (Date) batch.get(0).get(MongoDBKeys.MODIFIED_KEY);
+			for (final DBObject record : batch) {
+				assertEquals(stamp, record.get(MongoDBKeys.MODIFIED_KEY));
+				final int id = Integer.parseInt((String) record
+						.get(MongoDBKeys.RECORD_ID_KEY));
+				assertTrue(stamp.getTime() >= started.get(id).longValue());
+			}
+			records += batch.size();
+		}
+		assertEquals(6, records);
+	}
+
+	@Test
+	public void shouldCopyKeyFieldsIntoIndexedKeys() {
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setKeyFields("a, A.B.b, A.a, B.b");
+
+		writeNestedRecord();
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection).createIndex(new BasicDBObject(
+				MongoDBKeys.KEYS_KEY, 1));
+		Mockito.verify(mongoDBConnection).save(saved.capture());
+		assertEquals(Arrays.asList("a:value1", "A.B.b:value2", "A.a:value3"),
+				saved.getValue().get(MongoDBKeys.KEYS_KEY));
+	}
+
+	@Test
+	public void shouldSkipRecordsUpToCheckpointWhenResuming() {
+		final File checkpointFile = new File(temporaryFolder.getRoot(),
+				"checkpoint.json");
+		final ArgumentCaptor<DBObject> saved = ArgumentCaptor
+				.forClass(DBObject.class);
+		mongoDBWriter.setCheckpointFile(checkpointFile.getPath());
+		mongoDBWriter.setCheckpointInterval(2);
+		mongoDBWriter.setResume(true);
+
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		writeRecord("3", "c");
+		// the load is interrupted before the stream is closed
+
+		final CheckpointFile.Checkpoint checkpoint = new CheckpointFile(
+				checkpointFile.toPath()).load();
+		assertEquals(2, checkpoint.records);
+		assertEquals("2", checkpoint.id);
+
+		final MongoDBConnection restartedConnection = Mockito
+				.mock(MongoDBConnection.class);
+		mongoDBWriter = new MongoDBWriter(restartedConnection);
+		mongoDBWriter.setCheckpointFile(checkpointFile.getPath());
+		mongoDBWriter.setCheckpointInterval(2);
+		mongoDBWriter.setResume(true);
+		for (int i = 1; i <= 5; ++i) {
+			writeRecord(Integer.toString(i), "value");
+		}
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(restartedConnection, Mockito.times(3)).save(
+				saved.capture());
+		assertEquals(Arrays.asList("3", "4", "5"),
+				recordIds(saved.getAllValues()));
+		assertEquals(5, new CheckpointFile(checkpointFile.toPath()).load()
+				.records);
+	}
+
+	@Test(expected = MetafactureException.class)
+	public void shouldFailToResumeIfInputDiffersFromCheckpoint()
+			throws IOException {
+		final File checkpointFile = temporaryFolder.newFile();
+		new CheckpointFile(checkpointFile.toPath()).save(2, "2");
+		mongoDBWriter.setCheckpointFile(checkpointFile.getPath());
+		mongoDBWriter.setResume(true);
+
+		writeRecord("1", "a");
+		writeRecord("x", "b");
+	}
+
+	@Test
+	public void shouldRepeatWritesAfterTransientErrors() {
+		doThrow(new MongoSocketException("connection reset",
+				new ServerAddress())).doNothing().when(mongoDBConnection)
+				.save(Mockito.any(DBObject.class));
+		mongoDBWriter.setRetries(2);
+		mongoDBWriter.setRetryBackoff(0);
+
+		writeRecord("1", "a");
+		mongoDBWriter.closeStream();
+
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).save(
+				Mockito.any(DBObject.class));
+	}
+
+	@Test
+	public void shouldWriteRejectedRecordsToDeadLetterFile()
+			throws IOException {
+		final File deadLetterFile = new File(temporaryFolder.getRoot(),
+				"rejected.json");
+		final MongoBulkWriteException bulkWriteException =
+				new MongoBulkWriteException(BulkWriteResult.unacknowledged(),
+						Arrays.asList(new BulkWriteError(11000, "duplicate key",
+								new BsonDocument(), 1)),
+						null, new ServerAddress());
+		doThrow(bulkWriteException).doNothing().when(mongoDBConnection)
+				.saveAll(anyList());
+		mongoDBWriter.setBatchSize(2);
+		mongoDBWriter.setDeadLetterFile(deadLetterFile.getPath());
+
+		writeRecord("1", "a");
+		writeRecord("2", "b");
+		writeRecord("3", "c");
+		mongoDBWriter.closeStream();
+
+		final List<String> lines = Files.readAllLines(deadLetterFile.toPath(),
+				StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+		final DBObject deadLetter = BasicDBObject.parse(lines.get(0));
+		assertEquals("duplicate key", deadLetter.get(DeadLetterFile.ERROR_KEY));
+		assertEquals("2", ((DBObject) deadLetter.get(DeadLetterFile.RECORD_KEY))
+				.get(MongoDBKeys.RECORD_ID_KEY));
+		Mockito.verify(mongoDBConnection, Mockito.times(2)).saveAll(anyList());
+	}
+
+	@Test
+	public void shouldNotWriteRecordsWithWriteConcernErrorToDeadLetterFile()
+			throws IOException {
+		final File deadLetterFile = new File(temporaryFolder.getRoot(),
+				"rejected.json");
+		doThrow(new MongoWriteException(new WriteError(11000, "duplicate key",
+				new BsonDocument()), new ServerAddress()))
+				.doThrow(new MongoWriteConcernException(new WriteConcernError(64,
+						"waiting for replication timed out", new BsonDocument()),
+						new ServerAddress()))
+				.when(mongoDBConnection).save(Mockito.any(DBObject.class));
+		mongoDBWriter.setDeadLetterFile(deadLetterFile.getPath());
+
+		writeRecord("1", "a");
+		try {
+			writeRecord("2", "b");
+			fail("Expected MetafactureException");
+		} catch (final MetafactureException e) {
+			assertTrue(e.getCause() instanceof MongoWriteConcernException);
+		}
+		mongoDBWriter.closeStream();
+
+		final List<String> lines = Files.readAllLines(deadLetterFile.toPath(),
+				StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+		assertEquals("1", ((DBObject) BasicDBObject.parse(lines.get(0))
+				.get(DeadLetterFile.RECORD_KEY)).get(MongoDBKeys.RECORD_ID_KEY));
+	}
+
+	private void writeNestedRecord() {
+		mongoDBWriter.startRecord("42");
+		mongoDBWriter.literal("a", "value1");
+		mongoDBWriter.startEntity("A");
+		mongoDBWriter.startEntity("B");
+		mongoDBWriter.literal("b", "value2");
+		mongoDBWriter.endEntity();
+		mongoDBWriter.literal("a", "value3");
+		mongoDBWriter.endEntity();
+		mongoDBWriter.endRecord();
+	}
+
+	private static DBCursor nameSegments(final DBObject... segments) {
+		final DBCursor dbCursor = Mockito.mock(DBCursor.class);
+		final Iterator<DBObject> iterator = Arrays.asList(segments).iterator();
+		Mockito.when(dbCursor.hasNext()).thenAnswer(invocation ->
+				Boolean.valueOf(iterator.hasNext()));
+		Mockito.when(dbCursor.next()).thenAnswer(invocation -> iterator.next());
+		return dbCursor;
+	}
+
+	private static DBObject nameSegment(final int start, final String... names) {
+		return new BasicDBObject(MongoDBKeys.RECORD_ID_KEY,
+				Integer.valueOf(start)).append("names", Arrays.asList(names));
+	}
+
+	private void writeRecord(final String id, final String value) {
+		mongoDBWriter.startRecord(id);
+		mongoDBWriter.literal("a", value);
+		mongoDBWriter.endRecord();
+	}
+
+	private List<List<DBObject>> recordBatches() {
+		final List<List<DBObject>> batches = Collections
+				.synchronizedList(new ArrayList<>());
+		doAnswer(invocation -> {
+			final List<DBObject> batch = invocation.getArgument(0);
+			batches.add(new ArrayList<>(batch));
+			return null;
+		}).when(mongoDBConnection).saveAll(anyList());
+		return batches;
+	}
+
+	private void storedRecords(final DBObject... records) {
+		final Iterator<DBObject> iterator = Arrays.asList(records).iterator();
+		final DBCursor dbCursor = Mockito.mock(DBCursor.class);
+		Mockito.when(dbCursor.hasNext()).then(invocation -> iterator.hasNext());
+		Mockito.when(dbCursor.next()).then(invocation -> iterator.next());
+		Mockito.when(mongoDBConnection.find(Mockito.any(DBObject.class),
+				Mockito.any(DBObject.class))).thenReturn(dbCursor);
+	}
+
+	private static List<Object> recordIds(final List<DBObject> records) {
+		final List<Object> ids = new ArrayList<>();
+		for (final DBObject record : records) {
+			ids.add(record.get("_id"));
+		}
+		return ids;
+	}
+
 }
@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public final class RecordCacheTest {
+
+	private long now;
+
+	@Test
+	public void shouldExpireEntriesAfterTtl() {
+		final RecordCache recordCache = new RecordCache(10, 60, () -> now);
+		final DBObject query = new BasicDBObject("_id", "23");
+		recordCache.put(query, RecordedEvents.EMPTY);
+
+		now += TimeUnit.SECONDS.toNanos(60);
+		assertSame(RecordedEvents.EMPTY, recordCache.get(query));
+
+		now += 1;
+		assertNull(recordCache.get(query));
+		assertEquals(0, recordCache.size());
+		assertEquals(1, recordCache.getHits());
+		assertEquals(1, recordCache.getMisses());
+		assertEquals(1, recordCache.getEvictions());
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedEntries() {
+		final RecordCache recordCache = new RecordCache(2, 0, () -> now);
+		final DBObject first = new BasicDBObject("_id", "1");
+		final DBObject second = new BasicDBObject("_id", "2");
+		recordCache.put(first, RecordedEvents.EMPTY);
+		recordCache.put(second, RecordedEvents.EMPTY);
+
+		recordCache.get(first);
+		recordCache.put(new BasicDBObject("_id", "3"), RecordedEvents.EMPTY);
+
+		assertNull(recordCache.get(second));
+		assertSame(RecordedEvents.EMPTY, recordCache.get(first));
+		assertEquals(1, recordCache.getEvictions());
+	}
+
+}
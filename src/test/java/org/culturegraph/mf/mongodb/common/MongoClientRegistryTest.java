@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2026 The metafacture-mongodb contributors
+ *
+ *  Licensed under the Apache License, Version 2.0 the "License";
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.culturegraph.mf.mongodb.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+public final class MongoClientRegistryTest {
+
+	private MongoServer server;
+	private String uri;
+
+	@Before
+	public void setup() {
+		server = new MongoServer(new MemoryBackend());
+		uri = "mongodb://localhost:" + server.bind().getPort();
+	}
+
+	@After
+	public void cleanup() {
+		server.shutdownNow();
+	}
+
+	@Test
+	public void shouldShareClientBetweenCollectionsUntilLastRelease()
+			throws UnknownHostException {
+		final int initialSize = MongoClientRegistry.size();
+		final MongoClient first = MongoClientRegistry.acquire(new MongoClientURI(
+				uri + "/db.records"));
+		final MongoClient second = MongoClientRegistry.acquire(new MongoClientURI(
+				uri + "/other.collection"));
+
+		assertSame(first, second);
+		assertEquals(initialSize + 1, MongoClientRegistry.size());
+		MongoClientRegistry.release(first);
+		assertEquals(initialSize + 1, MongoClientRegistry.size());
+		MongoClientRegistry.release(second);
+		assertEquals(initialSize, MongoClientRegistry.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldCloseClientOnLastRelease() throws UnknownHostException {
+		final MongoClient client = MongoClientRegistry.acquire(new MongoClientURI(
+				uri + "/db.records"));
+		client.getDatabase("db").getCollection("records").count();
+
+		MongoClientRegistry.release(client);
+
+		client.getDatabase("db").getCollection("records").count();
+	}
+
+	@Test
+	public void shouldUseSeparateClientsForDifferentOptions()
+			throws UnknownHostException {
+		final MongoClient first = MongoClientRegistry.acquire(new MongoClientURI(
+				uri + "/db.records?maxPoolSize=10"));
+		final MongoClient second = MongoClientRegistry.acquire(new MongoClientURI(
+				uri + "/db.records?maxPoolSize=20"));
+
+		assertNotSame(first, second);
+		assertEquals(10, first.getMongoClientOptions().getConnectionsPerHost());
+		MongoClientRegistry.release(first);
+		MongoClientRegistry.release(second);
+	}
+
+}
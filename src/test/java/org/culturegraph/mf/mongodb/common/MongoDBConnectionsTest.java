@@ -15,13 +15,41 @@
  */
 package org.culturegraph.mf.mongodb.common;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bson.BasicBSONEncoder;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+import com.mongodb.MongoTimeoutException;
 
 /**
  * 
@@ -47,8 +75,134 @@ public void unclosableMongoDBConnectionShouldForwardAllCallsExceptClose() {
 				.unclosableConnection(mongoDBConnection);
 		unclosableMongoDBConnection.find(dbObject);
 		Mockito.verify(mongoDBConnection).find(dbObject);
+		unclosableMongoDBConnection.find(dbObject, dbObject);
+		Mockito.verify(mongoDBConnection).find(dbObject, dbObject);
+		final List<DBObject> pipeline = Collections.singletonList(dbObject);
+		final AggregationOptions options = AggregationOptions.builder().build();
+		unclosableMongoDBConnection.aggregate(pipeline, options);
+		Mockito.verify(mongoDBConnection).aggregate(pipeline, options);
 		unclosableMongoDBConnection.save(dbObject);
 		Mockito.verify(mongoDBConnection).save(dbObject);
+		final List<DBObject> dbObjects = Collections.singletonList(dbObject);
+		unclosableMongoDBConnection.saveAll(dbObjects);
+		Mockito.verify(mongoDBConnection).saveAll(dbObjects);
+	}
+
+	@Test
+	public void instrumentedMongoDBConnectionShouldRecordOperations()
+			throws JMException {
+		final Cursor cursor = Mockito.mock(Cursor.class);
+		Mockito.when(cursor.hasNext()).thenReturn(true, false);
+		Mockito.when(cursor.next()).thenReturn(dbObject);
+		final List<DBObject> pipeline = Collections.singletonList(dbObject);
+		final AggregationOptions options = AggregationOptions.builder().build();
+		Mockito.when(mongoDBConnection.aggregate(pipeline, options))
+				.thenReturn(cursor);
+		final MongoDBConnection instrumentedMongoDBConnection =
+				MongoDBConnections.instrumentedConnection(mongoDBConnection,
+						"test", 0);
+		final ObjectName objectName = new ObjectName(
+				"org.culturegraph.mf.mongodb:type=MongoDBConnection,"
+						+ "name=\"test\",operation=saveAll");
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		instrumentedMongoDBConnection.save(dbObject);
+		instrumentedMongoDBConnection.saveAll(Arrays.asList(dbObject, dbObject));
+		final Cursor instrumentedCursor = instrumentedMongoDBConnection
+				.aggregate(pipeline, options);
+		while (instrumentedCursor.hasNext()) {
+			instrumentedCursor.next();
+		}
+
+		Mockito.verify(mongoDBConnection).save(dbObject);
+		assertEquals(Long.valueOf(2), server.getAttribute(objectName, "Documents"));
+		final OperationStats saveAllStats = ((InstrumentedMongoDBConnection)
+				instrumentedMongoDBConnection).getStats("saveAll");
+		assertEquals(1, saveAllStats.getCalls());
+		final OperationStats cursorStats = ((InstrumentedMongoDBConnection)
+				instrumentedMongoDBConnection).getStats("cursor");
+		assertEquals(1, cursorStats.getDocuments());
+		instrumentedMongoDBConnection.close();
+		Mockito.verify(mongoDBConnection).close();
+		assertFalse(server.isRegistered(objectName));
+	}
+
+	@Test
+	public void instrumentedMongoDBConnectionShouldTimeFirstFetchAsFind()
+			throws UnknownHostException {
+		final MongoServer server = new MongoServer(new MemoryBackend());
+		final InetSocketAddress address = server.bind();
+		try {
+			final InstrumentedMongoDBConnection instrumentedMongoDBConnection =
+					(InstrumentedMongoDBConnection) MongoDBConnections
+							.instrumentedConnection(new SimpleMongoDBConnection(
+									"mongodb://localhost:" + address.getPort()
+											+ "/test.records"), "find", 0);
+			for (int i = 1; i <= 3; ++i) {
+				instrumentedMongoDBConnection.save(new BasicDBObject("_id",
+						Integer.valueOf(i)));
+			}
+
+			final DBCursor cursor = instrumentedMongoDBConnection
+					.find(new BasicDBObject())
+					.setDecoderFactory(DefaultDBDecoder.FACTORY)
+					.sort(new BasicDBObject("_id", Integer.valueOf(-1)))
+					.limit(2).batchSize(1);
+			assertEquals(0, instrumentedMongoDBConnection.getStats("find")
+					.getCalls());
+			final List<Object> ids = new ArrayList<>();
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().get("_id"));
+			}
+			cursor.close();
+
+			assertSame(DefaultDBDecoder.FACTORY, cursor.getDecoderFactory());
+			assertEquals(1, cursor.getBatchSize());
+			assertEquals(Arrays.asList(Integer.valueOf(3), Integer.valueOf(2)),
+					ids);
+			assertEquals(1, instrumentedMongoDBConnection.getStats("find")
+					.getCalls());
+			final OperationStats cursorStats = instrumentedMongoDBConnection
+					.getStats("cursor");
+			assertEquals(2, cursorStats.getCalls());
+			assertEquals(2, cursorStats.getDocuments());
+			instrumentedMongoDBConnection.close();
+		} finally {
+			server.shutdownNow();
+		}
+	}
+
+	@Test
+	public void instrumentedMongoDBConnectionShouldCountBytesOfDocuments() {
+		final DBObject decoded = new BasicDBObject("_id", "1").append("data",
+				Arrays.asList(new BasicDBObject("#a", "v\u00e4lue"),
+						new BasicDBObject("#A", null)));
+		final byte[] encoded = new BasicBSONEncoder().encode(decoded);
+		final Cursor cursor = Mockito.mock(Cursor.class);
+		Mockito.when(cursor.hasNext()).thenReturn(true, false);
+		Mockito.when(cursor.next()).thenReturn(decoded);
+		Mockito.when(mongoDBConnection.aggregate(Mockito.anyList(),
+				Mockito.any())).thenReturn(cursor);
+		final InstrumentedMongoDBConnection instrumentedMongoDBConnection =
+				(InstrumentedMongoDBConnection) MongoDBConnections
+						.instrumentedConnection(mongoDBConnection, "bytes", 0);
+
+		instrumentedMongoDBConnection.saveAll(Arrays.asList(
+				new RawDBObject(encoded), new RawDBObject(encoded)));
+		final Cursor instrumentedCursor = instrumentedMongoDBConnection
+				.aggregate(Collections.<DBObject>emptyList(),
+						AggregationOptions.builder().build());
+		while (instrumentedCursor.hasNext()) {
+			instrumentedCursor.next();
+		}
+
+		assertEquals(2 * encoded.length, instrumentedMongoDBConnection
+				.getStats("saveAll").getBytes());
+		final OperationStats cursorStats = instrumentedMongoDBConnection
+				.getStats("cursor");
+		assertEquals(encoded.length, cursorStats.getBytes());
+		assertEquals(2, cursorStats.getCalls());
+		instrumentedMongoDBConnection.close();
 	}
 
 	@Test
@@ -59,4 +213,26 @@ public void unclosableMongoDBConnectionShouldIgnoreCloseCall() {
 		Mockito.verify(mongoDBConnection, Mockito.never()).close();
 	}
 
+	@Test
+	public void retryingMongoDBConnectionShouldRepeatOnlyTransientErrors() {
+		final MongoDBConnection retryingMongoDBConnection = MongoDBConnections
+				.retryingConnection(mongoDBConnection, 3, 0);
+		final List<DBObject> dbObjects = Collections.singletonList(dbObject);
+		Mockito.doThrow(new MongoTimeoutException("no server"))
+				.doThrow(new MongoTimeoutException("no server"))
+				.doNothing().when(mongoDBConnection).saveAll(dbObjects);
+		retryingMongoDBConnection.saveAll(dbObjects);
+		Mockito.verify(mongoDBConnection, Mockito.times(3)).saveAll(dbObjects);
+
+		Mockito.doThrow(new MongoException("invalid document"))
+				.when(mongoDBConnection).save(dbObject);
+		try {
+			retryingMongoDBConnection.save(dbObject);
+			fail("Expected MongoException");
+		} catch (final MongoException e) {
+			assertEquals("invalid document", e.getMessage());
+		}
+		Mockito.verify(mongoDBConnection).save(dbObject);
+	}
+
 }